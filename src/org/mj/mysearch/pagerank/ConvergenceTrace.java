@@ -0,0 +1,86 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+
+
+/**
+ * Residual and wall time of each iteration, to compare the solvers.
+ */
+public class ConvergenceTrace {
+	
+	private final String name;
+	private final long startTime;
+	private int size;
+	private double[] residuals;
+	private long[] wallTimes;
+	
+	
+	/**
+	 * constructor class, the clock starts now
+	 * @param name solver name
+	 */
+	public ConvergenceTrace(String name) {
+		this.name = name;
+		this.startTime = System.nanoTime();
+		this.residuals = new double[128];
+		this.wallTimes = new long[128];
+	}
+	
+	
+	/**
+	 * Record the residual at the end of the next iteration
+	 * @param residual
+	 */
+	public void record(double residual) {
+		if (size == residuals.length) {
+			residuals = Arrays.copyOf(residuals, 2 * size);
+			wallTimes = Arrays.copyOf(wallTimes, 2 * size);
+		}
+		residuals[size] = residual;
+		wallTimes[size] = System.nanoTime() - startTime;
+		size++;
+	}
+	
+	
+	public int getNumOfIterations() {
+		return size;
+	}
+	
+	
+	/**
+	 * @param iter 1 based iteration
+	 */
+	public double getResidual(int iter) {
+		return residuals[iter - 1];
+	}
+	
+	
+	/**
+	 * @param iter 1 based iteration
+	 * @return milliseconds from the start to the end of the iteration
+	 */
+	public double getWallTime(int iter) {
+		return wallTimes[iter - 1] / 1.0e6;
+	}
+	
+	
+	/**
+	 * Log one line per iteration: iteration, residual, wall time
+	 */
+	public void log(Logger logger) {
+		logger.info("Convergence trace of {}: iteration, residual, wall time (ms)", name);
+		for (int iter = 1; iter <= size; iter++) {
+			logger.info("{}\t{}\t{}", iter, getResidual(iter), getWallTime(iter));
+		}
+		if (size > 0) {
+			logger.info("{}: {} iterations, residual {}, {} ms", name, size, getResidual(size), getWallTime(size));
+		}
+	}
+
+}
@@ -0,0 +1,634 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The link graph on disk for out-of-core PageRank (see OutOfCoreIterator): the incoming links
+ * sorted by destination, streamed from the file in one sequential pass per iteration, so the
+ * links never have to fit in memory.
+ *
+ * Pages are numbered by dense ordinals as in GraphStore (the crawled docIds, sorted). The file is
+ * int magic, int version, int numOfNodes, int numOfDangling, long numOfEdges,
+ * numOfNodes x int docId, then a record per ordinal, in increasing order:
+ * int inDeg, int outDeg, inDeg x int source ordinal (increasing).
+ *
+ * It is built by Builder with an external sort: the crawled pages are spilled to disk, the links
+ * are partitioned into blocks of destinations holding at most maxBlockEdges links, and each
+ * block is sorted in memory and appended to the file.
+ */
+public class EdgeFile {
+
+	private static final Logger logger = LoggerFactory.getLogger(EdgeFile.class);
+
+	private static final int MAGIC = 0x4d534544;	// "MSED"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	/** bytes read or written at a time by a stream of the file */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** bytes written at a time to each block of Builder */
+	private static final int BLOCK_BUFFER_SIZE = 1 << 16;
+
+	/** links sorted in memory at a time by Builder, 128 MB of long */
+	public static final int DEFAULT_MAX_BLOCK_EDGES = 1 << 24;
+
+	private final File file;
+	private final int numOfNodes;
+	private final int numOfDangling;
+	private final long numOfEdges;
+
+
+	/**
+	 * constructor class
+	 * @param file
+	 * @param numOfNodes
+	 * @param numOfDangling number of pages without outgoing link in the graph
+	 * @param numOfEdges
+	 */
+	private EdgeFile(File file, int numOfNodes, int numOfDangling, long numOfEdges) {
+		this.file = file;
+		this.numOfNodes = numOfNodes;
+		this.numOfDangling = numOfDangling;
+		this.numOfEdges = numOfEdges;
+	}
+
+
+	/**
+	 * Open an edge file written by Builder, only its header is read.
+	 * @param file
+	 */
+	public static EdgeFile open(File file) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " edge file: " + file);
+			}
+			int numOfNodes = header.getInt();
+			int numOfDangling = header.getInt();
+			long numOfEdges = header.getLong();
+			if (channel.size() != HEADER_SIZE + 4L * (3L * numOfNodes + numOfEdges)) {
+				throw new IOException("Truncated edge file: " + file);
+			}
+			return new EdgeFile(file, numOfNodes, numOfDangling, numOfEdges);
+		}
+	}
+
+
+	public File getFile() {
+		return file;
+	}
+
+
+	public int getNumOfNodes() {
+		return numOfNodes;
+	}
+
+
+	public int getNumOfDangling() {
+		return numOfDangling;
+	}
+
+
+	public long getNumOfEdges() {
+		return numOfEdges;
+	}
+
+
+	/**
+	 * The docIds by ordinal, sorted
+	 */
+	public int[] readDocIds() throws IOException {
+
+		try (IntReader reader = new IntReader(file, HEADER_SIZE)) {
+			int[] docIds = new int[numOfNodes];
+			reader.read(docIds, 0, numOfNodes);
+			return docIds;
+		}
+	}
+
+
+	/**
+	 * A reader of the records, positioned on the record of ordinal 0
+	 */
+	public IntReader openRecords() throws IOException {
+		return new IntReader(file, HEADER_SIZE + 4L * numOfNodes);
+	}
+
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+
+	/**
+	 * Sequential reader of the ints of a file through a direct buffer.
+	 */
+	public static class IntReader implements Closeable {
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final IntBuffer ints;
+
+
+		/**
+		 * constructor class
+		 * @param file
+		 * @param position byte position of the first int
+		 */
+		public IntReader(File file, long position) throws IOException {
+			this(file, position, BUFFER_SIZE);
+		}
+
+
+		/**
+		 * constructor class
+		 * @param file
+		 * @param position byte position of the first int
+		 * @param bufferSize bytes read at a time, a multiple of 4
+		 */
+		public IntReader(File file, long position, int bufferSize) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			channel.position(position);
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			ints = buffer.asIntBuffer();
+			ints.limit(0);
+		}
+
+
+		public int next() throws IOException {
+			if (!ints.hasRemaining()) {
+				fill();
+			}
+			return ints.get();
+		}
+
+
+		/**
+		 * Read the next n ints into array from offset
+		 */
+		public void read(int[] array, int offset, int n) throws IOException {
+			while (n > 0) {
+				if (!ints.hasRemaining()) {
+					fill();
+				}
+				int chunk = Math.min(n, ints.remaining());
+				ints.get(array, offset, chunk);
+				offset += chunk;
+				n -= chunk;
+			}
+		}
+
+
+		/**
+		 * Skip the next n ints
+		 */
+		public void skip(long n) throws IOException {
+			if (n <= ints.remaining()) {
+				ints.position(ints.position() + (int) n);
+			} else {
+				channel.position(channel.position() + 4 * (n - ints.remaining()));
+				ints.limit(0);
+			}
+		}
+
+
+		/**
+		 * Refill the buffer with the next ints of the file
+		 */
+		private void fill() throws IOException {
+			buffer.clear();
+			while (buffer.position() < 4) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+			}
+			// a partial int stays in the file for the next fill
+			int n = buffer.position() / 4;
+			channel.position(channel.position() - (buffer.position() - 4 * n));
+			ints.clear();
+			ints.limit(n);
+		}
+
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Sequential writer of the ints of a file through a direct buffer, from a byte position.
+	 */
+	static class IntWriter implements Closeable {
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final IntBuffer ints;
+
+
+		/**
+		 * constructor class, the file is truncated to position
+		 * @param file
+		 * @param position byte position of the first int
+		 * @param bufferSize bytes written at a time, a multiple of 4
+		 */
+		IntWriter(File file, long position, int bufferSize) throws IOException {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(position);
+			channel = raf.getChannel();
+			channel.position(position);
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			ints = buffer.asIntBuffer();
+		}
+
+
+		void write(int value) throws IOException {
+			if (!ints.hasRemaining()) {
+				flush();
+			}
+			ints.put(value);
+		}
+
+
+		void write(int[] array, int offset, int n) throws IOException {
+			while (n > 0) {
+				if (!ints.hasRemaining()) {
+					flush();
+				}
+				int chunk = Math.min(n, ints.remaining());
+				ints.put(array, offset, chunk);
+				offset += chunk;
+				n -= chunk;
+			}
+		}
+
+
+		private void flush() throws IOException {
+			buffer.clear().limit(4 * ints.position());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			ints.clear();
+		}
+
+
+		FileChannel getChannel() {
+			return channel;
+		}
+
+
+		/**
+		 * Flush and close the file
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Collects the outgoing links of the crawled pages in a temporary file, then builds the edge
+	 * file with an external sort. Memory is a few ints per page, the links stay on disk.
+	 *
+	 * As GraphStore.Builder, links from or to pages not added are dropped, repeated links between
+	 * the same two pages count once, and a page added again replaces the former one.
+	 */
+	public static class Builder {
+
+		private final File file;
+		private final int maxBlockEdges;
+		private final File pagesFile;
+		private IntWriter pages;
+		private IOException error;
+
+		private int numOfPages;
+		private int[] pageDocIds = new int[1024];
+
+
+		/**
+		 * constructor class
+		 * @param file the edge file to build, its temporary files are written next to it
+		 */
+		public Builder(File file) {
+			this(file, DEFAULT_MAX_BLOCK_EDGES);
+		}
+
+
+		/**
+		 * constructor class
+		 * @param file the edge file to build, its temporary files are written next to it
+		 * @param maxBlockEdges links sorted in memory at a time, 8 bytes each
+		 */
+		public Builder(File file, int maxBlockEdges) {
+			this.file = file;
+			this.maxBlockEdges = Math.max(1, maxBlockEdges);
+			this.pagesFile = new File(file.getPath() + ".pages");
+		}
+
+
+		/**
+		 * Add a crawled page, an I/O error is thrown by build()
+		 * @param docId
+		 * @param linkDocIds docIds of the outgoing urls
+		 */
+		public void addPage(int docId, int[] linkDocIds) {
+
+			if (error != null) {
+				return;
+			}
+			try {
+				if (pages == null) {
+					pages = createPages();
+				}
+				pages.write(docId);
+				pages.write(linkDocIds.length);
+				pages.write(linkDocIds, 0, linkDocIds.length);
+			} catch (IOException e) {
+				error = e;
+				return;
+			}
+
+			if (numOfPages == pageDocIds.length) {
+				pageDocIds = Arrays.copyOf(pageDocIds, 2 * numOfPages);
+			}
+			pageDocIds[numOfPages++] = docId;
+		}
+
+
+		public int getNumOfPages() {
+			return numOfPages;
+		}
+
+
+		/**
+		 * Number the pages, sort the links by destination and write the edge file.
+		 *
+		 * Reads the pages twice, once to count the degrees and once to partition the links into
+		 * blocks, then each block once. The temporary files are deleted.
+		 */
+		public EdgeFile build() throws IOException {
+
+			if (error != null) {
+				throw error;
+			}
+			if (pages == null) {
+				pages = createPages();
+			}
+			pages.close();
+
+			File tmp = new File(file.getPath() + ".tmp");
+			File[] blockFiles = new File[0];
+			try {
+
+				// (docId, page) pairs sorted by docId then page, the last page of a docId wins
+				long[] order = new long[numOfPages];
+				for (int page = 0; page < numOfPages; page++) {
+					order[page] = (long) pageDocIds[page] << 32 | page;
+				}
+				pageDocIds = null;
+				Arrays.sort(order);
+
+				int numOfNodes = 0;
+				int[] docIds = new int[numOfPages];
+				BitSet replaced = new BitSet(numOfPages);
+				for (int k = 0; k < numOfPages; k++) {
+					int docId = (int) (order[k] >> 32);
+					if (k + 1 < numOfPages && (int) (order[k + 1] >> 32) == docId) {
+						replaced.set((int) order[k]);
+						continue;
+					}
+					docIds[numOfNodes++] = docId;
+				}
+				order = null;
+				docIds = Arrays.copyOf(docIds, numOfNodes);
+
+				// degrees within the graph
+				final int[] inDegs = new int[numOfNodes];
+				final int[] outDegs = new int[numOfNodes];
+				long numOfEdges = scanPages(docIds, replaced, new LinkVisitor() {
+
+					@Override
+					public void visit(int source, int[] targets, int n) {
+						outDegs[source] = n;
+						for (int k = 0; k < n; k++) {
+							inDegs[targets[k]]++;
+						}
+					}
+				});
+
+				// blocks of consecutive destinations with at most maxBlockEdges links, or one destination
+				int[] blockStarts = new int[16];
+				int numOfBlocks = 0;
+				long blockEdges = 0;
+				for (int i = 0; i < numOfNodes; i++) {
+					if (numOfBlocks == 0 || blockEdges + inDegs[i] > maxBlockEdges) {
+						if (numOfBlocks == blockStarts.length) {
+							blockStarts = Arrays.copyOf(blockStarts, 2 * numOfBlocks);
+						}
+						blockStarts[numOfBlocks++] = i;
+						blockEdges = 0;
+					}
+					blockEdges += inDegs[i];
+				}
+				final int[] starts = Arrays.copyOf(blockStarts, numOfBlocks);
+				logger.info("Building edge file {}: {} nodes, {} edges, {} blocks.", file, numOfNodes, numOfEdges, numOfBlocks);
+
+				// (destination, source) pairs of each block
+				blockFiles = new File[numOfBlocks];
+				final IntWriter[] blocks = new IntWriter[numOfBlocks];
+				try {
+					for (int b = 0; b < numOfBlocks; b++) {
+						blockFiles[b] = new File(file.getPath() + ".block" + b);
+						blocks[b] = new IntWriter(blockFiles[b], 0, BLOCK_BUFFER_SIZE);
+					}
+					scanPages(docIds, replaced, new LinkVisitor() {
+
+						@Override
+						public void visit(int source, int[] targets, int n) throws IOException {
+							for (int k = 0; k < n; k++) {
+								IntWriter block = blocks[block(starts, targets[k])];
+								block.write(targets[k]);
+								block.write(source);
+							}
+						}
+					});
+				} finally {
+					for (IntWriter block : blocks) {
+						if (block != null) {
+							block.close();
+						}
+					}
+				}
+
+				int numOfDangling = 0;
+				try (IntWriter out = new IntWriter(tmp, HEADER_SIZE, BUFFER_SIZE)) {
+
+					out.write(docIds, 0, numOfNodes);
+					docIds = null;
+
+					int[] sources = new int[0];
+					for (int b = 0; b < numOfBlocks; b++) {
+
+						int first = starts[b];
+						int end = b + 1 < numOfBlocks ? starts[b + 1] : numOfNodes;
+						long[] pairs = new long[(int) (blockFiles[b].length() / 8)];
+						try (IntReader in = new IntReader(blockFiles[b], 0)) {
+							for (int k = 0; k < pairs.length; k++) {
+								pairs[k] = (long) in.next() << 32 | in.next();
+							}
+						}
+						blockFiles[b].delete();
+						Arrays.sort(pairs);
+
+						int k = 0;
+						for (int i = first; i < end; i++) {
+							if (sources.length < inDegs[i]) {
+								sources = new int[Math.max(inDegs[i], 2 * sources.length)];
+							}
+							for (int s = 0; s < inDegs[i]; s++) {
+								sources[s] = (int) pairs[k++];
+							}
+							out.write(inDegs[i]);
+							out.write(outDegs[i]);
+							out.write(sources, 0, inDegs[i]);
+							if (outDegs[i] == 0) {
+								numOfDangling++;
+							}
+						}
+					}
+
+					ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+					header.putInt(MAGIC).putInt(VERSION).putInt(numOfNodes).putInt(numOfDangling).putLong(numOfEdges);
+					header.flip();
+					FileChannel channel = out.getChannel();
+					while (header.hasRemaining()) {
+						channel.write(header, header.position());
+					}
+				}
+
+				if (!tmp.renameTo(file)) {
+					file.delete();
+					if (!tmp.renameTo(file)) {
+						throw new IOException("Cannot rename " + tmp + " to " + file);
+					}
+				}
+				return new EdgeFile(file, numOfNodes, numOfDangling, numOfEdges);
+
+			} finally {
+				pagesFile.delete();
+				for (File blockFile : blockFiles) {
+					if (blockFile != null) {
+						blockFile.delete();
+					}
+				}
+				tmp.delete();
+			}
+		}
+
+
+		private IntWriter createPages() throws IOException {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			return new IntWriter(pagesFile, 0, BUFFER_SIZE);
+		}
+
+
+		/**
+		 * Receives the outgoing links of a page as ordinals, sorted and distinct.
+		 */
+		private interface LinkVisitor {
+
+			void visit(int source, int[] targets, int n) throws IOException;
+		}
+
+
+		/**
+		 * Read the spilled pages, skipping the replaced ones, and pass their links within the graph.
+		 * @return number of links passed
+		 */
+		private long scanPages(int[] docIds, BitSet replaced, LinkVisitor visitor) throws IOException {
+
+			long numOfLinks = 0;
+			int[] targets = new int[16];
+			try (IntReader in = new IntReader(pagesFile, 0)) {
+				for (int page = 0; page < numOfPages; page++) {
+
+					int docId = in.next();
+					int numOfLinkDocIds = in.next();
+					if (replaced.get(page)) {
+						in.skip(numOfLinkDocIds);
+						continue;
+					}
+
+					if (targets.length < numOfLinkDocIds) {
+						targets = new int[Math.max(numOfLinkDocIds, 2 * targets.length)];
+					}
+					int n = 0;
+					for (int k = 0; k < numOfLinkDocIds; k++) {
+						int target = Arrays.binarySearch(docIds, in.next());
+						if (target >= 0) {
+							targets[n++] = target;
+						}
+					}
+					Arrays.sort(targets, 0, n);
+					int distinct = 0;
+					for (int k = 0; k < n; k++) {
+						if (distinct == 0 || targets[distinct - 1] != targets[k]) {
+							targets[distinct++] = targets[k];
+						}
+					}
+
+					visitor.visit(Arrays.binarySearch(docIds, docId), targets, distinct);
+					numOfLinks += distinct;
+				}
+			}
+			return numOfLinks;
+		}
+
+
+		/**
+		 * Block of destination ordinal target
+		 */
+		private static int block(int[] starts, int target) {
+			int block = Arrays.binarySearch(starts, target);
+			return block >= 0 ? block : -block - 2;
+		}
+	}
+
+}
@@ -0,0 +1,300 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * The link graph of the crawl with dense ordinals: the crawled docIds, sorted, are numbered
+ * 0 .. N-1, and the graph (see LinkGraph) is held in int arrays over the ordinals, about
+ * 8 bytes per link while it is built and 4 once built, instead of a boxed Integer and a
+ * list slot per link in HashMaps.
+ * 
+ * The docId of an ordinal is docIds[ordinal], the ordinal of a docId is found by binary search.
+ * 
+ * It is saved as a binary file read back in one sequential pass:
+ * int magic, int version, int numOfNodes, int numOfEdges, numOfNodes x int docId,
+ * (numOfNodes + 1) x int offset, numOfEdges x int source, numOfNodes x int outgoing degree.
+ */
+public class GraphStore {
+	
+	private static final int MAGIC = 0x4d534752;	// "MSGR"
+	private static final int VERSION = 1;
+	
+	/** bytes read from the graph file at a time */
+	private static final int READ_BUFFER_SIZE = 1 << 20;
+	
+	private final int[] docIds;
+	private final int[] outDegs;
+	private final LinkGraph linkGraph;
+	
+	
+	/**
+	 * constructor class
+	 * @param docIds sorted docIds by ordinal
+	 * @param offsets row offsets of the incoming links, see LinkGraph
+	 * @param sources incoming source ordinal of each link
+	 * @param outDegs outgoing degree of each ordinal within the graph
+	 */
+	GraphStore(int[] docIds, int[] offsets, int[] sources, int[] outDegs) {
+		
+		this.docIds = docIds;
+		this.outDegs = outDegs;
+		
+		double[] invOutDegs = new double[docIds.length];
+		for (int j = 0; j < docIds.length; j++) {
+			invOutDegs[j] = outDegs[j] == 0 ? 0 : 1. / outDegs[j];
+		}
+		linkGraph = new LinkGraph(offsets, sources, invOutDegs);
+	}
+	
+	
+	/**
+	 * Ordinal of docId, -1 if it is not a crawled page
+	 */
+	public int ordinal(int docId) {
+		int ordinal = Arrays.binarySearch(docIds, docId);
+		return ordinal >= 0 ? ordinal : -1;
+	}
+	
+	
+	public int docIdAt(int ordinal) {
+		return docIds[ordinal];
+	}
+	
+	
+	/**
+	 * The docIds by ordinal, sorted, not to be modified
+	 */
+	public int[] getDocIds() {
+		return docIds;
+	}
+	
+	
+	public int getNumOfNodes() {
+		return docIds.length;
+	}
+	
+	
+	public LinkGraph getLinkGraph() {
+		return linkGraph;
+	}
+	
+	
+	/**
+	 * Save the graph to file.
+	 * @param file
+	 */
+	public void write(File file) throws IOException {
+		
+		int[] offsets = linkGraph.getOffsets();
+		int[] sources = linkGraph.getSources();
+		
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(docIds.length);
+			out.writeInt(sources.length);
+			for (int[] array : new int[][] {docIds, offsets, sources, outDegs}) {
+				for (int value : array) {
+					out.writeInt(value);
+				}
+			}
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Cannot rename " + tmp + " to " + file);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Read a graph saved by write().
+	 * @param file
+	 */
+	public static GraphStore read(File file) throws IOException {
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			
+			ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+			buffer.limit(16);
+			readFully(channel, buffer);
+			buffer.flip();
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " graph file: " + file);
+			}
+			int numOfNodes = buffer.getInt();
+			int numOfEdges = buffer.getInt();
+			if (channel.size() != 16 + 4L * (3L * numOfNodes + 1 + numOfEdges)) {
+				throw new IOException("Truncated graph file: " + file);
+			}
+			
+			int[] docIds = new int[numOfNodes];
+			int[] offsets = new int[numOfNodes + 1];
+			int[] sources = new int[numOfEdges];
+			int[] outDegs = new int[numOfNodes];
+			for (int[] array : new int[][] {docIds, offsets, sources, outDegs}) {
+				readInts(channel, buffer, array);
+			}
+			return new GraphStore(docIds, offsets, sources, outDegs);
+		}
+	}
+	
+	
+	/**
+	 * Fill array with the next ints of channel, buffer is reused
+	 */
+	private static void readInts(FileChannel channel, ByteBuffer buffer, int[] array) throws IOException {
+		
+		for (int done = 0; done < array.length;) {
+			int n = Math.min(array.length - done, buffer.capacity() / 4);
+			buffer.clear().limit(4 * n);
+			readFully(channel, buffer);
+			buffer.flip();
+			IntBuffer ints = buffer.asIntBuffer();
+			ints.get(array, done, n);
+			done += n;
+		}
+	}
+	
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Unexpected end of graph file");
+			}
+		}
+	}
+	
+	
+	/**
+	 * Collects the outgoing links of the crawled pages in growable int arrays, then numbers
+	 * the pages and builds the graph.
+	 */
+	public static class Builder {
+		
+		private int numOfPages;
+		private int numOfLinks;
+		private int[] pageDocIds = new int[1024];
+		private int[] linkEnds = new int[1024];
+		private int[] links = new int[4096];
+		
+		
+		/**
+		 * Add a crawled page, a page added again replaces the former one
+		 * @param docId
+		 * @param linkDocIds docIds of the outgoing urls
+		 */
+		public void addPage(int docId, int[] linkDocIds) {
+			
+			if (numOfPages == pageDocIds.length) {
+				pageDocIds = Arrays.copyOf(pageDocIds, 2 * numOfPages);
+				linkEnds = Arrays.copyOf(linkEnds, 2 * numOfPages);
+			}
+			if (links.length - numOfLinks < linkDocIds.length) {
+				links = Arrays.copyOf(links, Math.max(2 * links.length, numOfLinks + linkDocIds.length));
+			}
+			System.arraycopy(linkDocIds, 0, links, numOfLinks, linkDocIds.length);
+			numOfLinks += linkDocIds.length;
+			pageDocIds[numOfPages] = docId;
+			linkEnds[numOfPages++] = numOfLinks;
+		}
+		
+		
+		public int getNumOfPages() {
+			return numOfPages;
+		}
+		
+		
+		/**
+		 * Number the pages and build the graph.
+		 *
+		 * Links from or to pages not added (linked but never crawled) are dropped, repeated
+		 * links between the same two pages count once. The outgoing degree of a page counts
+		 * the links that are kept, so every column of matrixA sums to 1 or is a dangling node,
+		 * and no rank leaks out of the graph.
+		 */
+		public GraphStore build() {
+			
+			// (docId, page) pairs sorted by docId then page, the last page of a docId wins
+			long[] order = new long[numOfPages];
+			for (int page = 0; page < numOfPages; page++) {
+				order[page] = (long) pageDocIds[page] << 32 | page;
+			}
+			Arrays.sort(order);
+			
+			int numOfNodes = 0;
+			int[] docIds = new int[numOfPages];
+			int[] pageOf = new int[numOfPages];
+			for (int k = 0; k < numOfPages; k++) {
+				int docId = (int) (order[k] >> 32);
+				if (k + 1 < numOfPages && (int) (order[k + 1] >> 32) == docId) {
+					continue;
+				}
+				docIds[numOfNodes] = docId;
+				pageOf[numOfNodes++] = (int) order[k];
+			}
+			order = null;
+			docIds = Arrays.copyOf(docIds, numOfNodes);
+			
+			// outgoing links as ordinals, sorted and distinct per page
+			int[] outOffsets = new int[numOfNodes + 1];
+			int[] targets = new int[numOfLinks];
+			int[] outDegs = new int[numOfNodes];
+			int[] inDegs = new int[numOfNodes];
+			int numOfEdges = 0;
+			for (int j = 0; j < numOfNodes; j++) {
+				int page = pageOf[j];
+				int start = numOfEdges;
+				for (int k = page == 0 ? 0 : linkEnds[page - 1]; k < linkEnds[page]; k++) {
+					int target = Arrays.binarySearch(docIds, links[k]);
+					if (target >= 0) {
+						targets[numOfEdges++] = target;
+					}
+				}
+				Arrays.sort(targets, start, numOfEdges);
+				int end = start;
+				for (int k = start; k < numOfEdges; k++) {
+					if (end == start || targets[end - 1] != targets[k]) {
+						targets[end++] = targets[k];
+						inDegs[targets[k]]++;
+					}
+				}
+				numOfEdges = end;
+				outDegs[j] = end - start;
+				outOffsets[j + 1] = end;
+			}
+			
+			// transposed: the incoming sources of each ordinal, in increasing order
+			int[] offsets = new int[numOfNodes + 1];
+			for (int i = 0; i < numOfNodes; i++) {
+				offsets[i + 1] = offsets[i] + inDegs[i];
+			}
+			int[] next = Arrays.copyOf(offsets, numOfNodes);
+			int[] sources = new int[numOfEdges];
+			for (int j = 0; j < numOfNodes; j++) {
+				for (int k = outOffsets[j]; k < outOffsets[j + 1]; k++) {
+					sources[next[targets[k]]++] = j;
+				}
+			}
+			
+			return new GraphStore(docIds, offsets, sources, outDegs);
+		}
+	}
+
+}
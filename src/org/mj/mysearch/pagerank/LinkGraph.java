@@ -0,0 +1,149 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+
+/**
+ * Sparse link graph in compressed sparse row (CSR) layout.
+ *
+ * Row i holds the pages pointing to page i, so row i of the graph is row i
+ * of the dense matrixA = matrixAdj x matrixDeg. The incoming sources of page i
+ * are sources[offsets[i]] ... sources[offsets[i+1] - 1], and each source j
+ * contributes with weight invOutDegs[j].
+ *
+ * Pages without any outgoing link inside the graph are dangling nodes,
+ * their rank is redistributed along the teleport vector in every iteration.
+ *
+ * Memory is O(N + E) instead of O(N^2).
+ */
+public class LinkGraph {
+
+	private final int numOfNodes;
+	private final int[] offsets;
+	private final int[] sources;
+	private final double[] invOutDegs;
+	private final int[] danglingNodes;
+
+
+	/**
+	 * constructor class
+	 * @param offsets row offsets, length numOfNodes + 1
+	 * @param sources incoming source index of each edge, length offsets[numOfNodes]
+	 * @param invOutDegs 1 / (outgoing degree) of each node, 0 for no outgoing link
+	 */
+	public LinkGraph(int[] offsets, int[] sources, double[] invOutDegs) {
+		this.numOfNodes = offsets.length - 1;
+		this.offsets = offsets;
+		this.sources = sources;
+		this.invOutDegs = invOutDegs;
+		
+		int numOfDangling = 0;
+		for (double invOutDeg : invOutDegs) {
+			if (invOutDeg == 0) numOfDangling++;
+		}
+		danglingNodes = new int[numOfDangling];
+		for (int i = 0, k = 0; i < numOfNodes; i++) {
+			if (invOutDegs[i] == 0) danglingNodes[k++] = i;
+		}
+	}
+
+
+	/**
+	 * One fused power iteration step over rows from (inclusive) to to (exclusive):
+	 * vectorPr[i] = parameterD * (A x previousPr)[i] + teleportScale * vectorD[i]
+	 * 
+	 * Damping, teleport and residual are done in the same pass over the row.
+	 * 
+	 * @param vectorD teleport distribution, sums to 1
+	 * @param teleportScale (1 - parameterD) + parameterD * danglingMass(previousPr)
+	 * @return squared L2 norm of (previousPr - vectorPr) over the rows
+	 */
+	public double iterate(double[] previousPr, double[] vectorPr, double[] vectorD,
+			double parameterD, double teleportScale, int from, int to) {
+		double residual = 0;
+		for (int i = from; i < to; i++) {
+			double pr = parameterD * rowDot(i, previousPr) + teleportScale * vectorD[i];
+			double diff = previousPr[i] - pr;
+			residual += diff * diff;
+			vectorPr[i] = pr;
+		}
+		return residual;
+	}
+
+
+	/**
+	 * One in-place Gauss-Seidel sweep over rows from (inclusive) to to (exclusive):
+	 * vectorPr[i] = parameterD * (A x vectorPr)[i] + teleportScale * vectorD[i],
+	 * rows later in the sweep already see the new ranks of the earlier rows.
+	 * 
+	 * @return squared L2 norm of the change of vectorPr over the rows
+	 */
+	public double gaussSeidel(double[] vectorPr, double[] vectorD, double parameterD, double teleportScale, int from, int to) {
+		double residual = 0;
+		for (int i = from; i < to; i++) {
+			double pr = parameterD * rowDot(i, vectorPr) + teleportScale * vectorD[i];
+			double diff = vectorPr[i] - pr;
+			residual += diff * diff;
+			vectorPr[i] = pr;
+		}
+		return residual;
+	}
+
+
+	/**
+	 * Sum of A[i][j] * x[j] over the incoming sources j of row i.
+	 */
+	public double rowDot(int i, double[] x) {
+		double sum = 0;
+		for (int k = offsets[i], end = offsets[i + 1]; k < end; k++) {
+			int j = sources[k];
+			sum += x[j] * invOutDegs[j];
+		}
+		return sum;
+	}
+
+
+	/**
+	 * Total rank held by the dangling nodes.
+	 */
+	public double danglingMass(double[] x) {
+		double sum = 0;
+		for (int j : danglingNodes) {
+			sum += x[j];
+		}
+		return sum;
+	}
+
+
+	public int getNumOfNodes() {
+		return numOfNodes;
+	}
+
+
+	public int getNumOfEdges() {
+		return offsets[numOfNodes];
+	}
+
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+
+	public int[] getSources() {
+		return sources;
+	}
+
+
+	public double[] getInvOutDegs() {
+		return invOutDegs;
+	}
+
+
+	public int[] getDanglingNodes() {
+		return danglingNodes;
+	}
+
+}
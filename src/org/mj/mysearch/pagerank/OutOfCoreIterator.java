@@ -0,0 +1,138 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs PageRank power iterations over an EdgeFile too large for memory.
+ *
+ * Each iteration streams the records of the file once, sequentially, and only the two rank
+ * vectors stay in memory, off the heap in direct DoubleBuffers (16 bytes per page). As in
+ * X-Stream, the random accesses go to the vectors only, never to the links.
+ *
+ * The vectors hold the rank divided by the outgoing degree (the rank itself for a dangling node),
+ * so a link costs one read of the source, and the outgoing degree of a page, stored in its record,
+ * is all that is needed to recover its rank. The dangling mass and the residual are summed in the
+ * same pass, an iteration is exactly LinkGraph.iterate() with the uniform teleport vector.
+ */
+public class OutOfCoreIterator {
+
+	private static final Logger logger = LoggerFactory.getLogger(OutOfCoreIterator.class);
+
+	private final EdgeFile edgeFile;
+	private final int numOfNodes;
+	private DoubleBuffer previousPr, vectorPr;
+	private double danglingMass;
+
+
+	/**
+	 * constructor class, every page starts at initialScore
+	 * @param edgeFile
+	 * @param initialScore
+	 */
+	public OutOfCoreIterator(EdgeFile edgeFile, double initialScore) throws IOException {
+
+		this.edgeFile = edgeFile;
+		this.numOfNodes = edgeFile.getNumOfNodes();
+		if (numOfNodes > Integer.MAX_VALUE / 8) {
+			throw new IllegalArgumentException("Too many pages for a rank vector: " + numOfNodes);
+		}
+		previousPr = allocate(numOfNodes);
+		vectorPr = allocate(numOfNodes);
+
+		try (EdgeFile.IntReader records = edgeFile.openRecords()) {
+			for (int i = 0; i < numOfNodes; i++) {
+				int inDeg = records.next();
+				int outDeg = records.next();
+				records.skip(inDeg);
+				vectorPr.put(i, outDeg == 0 ? initialScore : initialScore / outDeg);
+			}
+		}
+		danglingMass = initialScore * edgeFile.getNumOfDangling();
+
+		logger.info("Out-of-core iteration over {}: {} nodes, {} edges, {} MB of rank vectors off heap.",
+				edgeFile.getFile(), numOfNodes, edgeFile.getNumOfEdges(), (16L * numOfNodes) >> 20);
+	}
+
+
+	private static DoubleBuffer allocate(int numOfNodes) {
+		return ByteBuffer.allocateDirect(8 * numOfNodes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+
+	/**
+	 * One power iteration step, one sequential pass over the edge file:
+	 * vectorPr[i] = parameterD * (A x previousPr)[i] + teleportScale / N
+	 *
+	 * @return squared L2 norm of (previousPr - vectorPr)
+	 */
+	public double iterate(double parameterD) throws IOException {
+
+		DoubleBuffer swap = previousPr;
+		previousPr = vectorPr;
+		vectorPr = swap;
+
+		double teleport = ((1 - parameterD) + parameterD * danglingMass) / numOfNodes;
+		double residual = 0;
+		double nextDanglingMass = 0;
+
+		try (EdgeFile.IntReader records = edgeFile.openRecords()) {
+			for (int i = 0; i < numOfNodes; i++) {
+
+				int inDeg = records.next();
+				int outDeg = records.next();
+				double sum = 0;
+				for (int k = 0; k < inDeg; k++) {
+					sum += previousPr.get(records.next());
+				}
+				double pr = parameterD * sum + teleport;
+
+				double diff = (outDeg == 0 ? previousPr.get(i) : previousPr.get(i) * outDeg) - pr;
+				residual += diff * diff;
+				if (outDeg == 0) {
+					vectorPr.put(i, pr);
+					nextDanglingMass += pr;
+				} else {
+					vectorPr.put(i, pr / outDeg);
+				}
+			}
+		}
+
+		danglingMass = nextDanglingMass;
+		return residual;
+	}
+
+
+	/**
+	 * The ranks of the last iteration by ordinal, copied to the heap
+	 */
+	public double[] getScores() throws IOException {
+
+		double[] scores = new double[numOfNodes];
+		try (EdgeFile.IntReader records = edgeFile.openRecords()) {
+			for (int i = 0; i < numOfNodes; i++) {
+				int inDeg = records.next();
+				int outDeg = records.next();
+				records.skip(inDeg);
+				scores[i] = outDeg == 0 ? vectorPr.get(i) : vectorPr.get(i) * outDeg;
+			}
+		}
+		return scores;
+	}
+
+
+	public int getNumOfNodes() {
+		return numOfNodes;
+	}
+
+}
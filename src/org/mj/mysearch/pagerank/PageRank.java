@@ -1,18 +1,20 @@
 package org.mj.mysearch.pagerank;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
-import weka.core.matrix.Matrix;
-
-import com.mongodb.Block;
-import com.mongodb.MongoClient;
-import com.mongodb.client.FindIterable;
-import com.mongodb.client.MongoDatabase;
-
-import org.bson.Document;
+import org.mj.mysearch.storage.LinkStore;
+import org.mj.mysearch.storage.ScoreStore;
+import org.mj.mysearch.storage.Storage;
+import org.mj.mysearch.storage.Storages;
+import org.mj.mysearch.webcrawler.BdbCrawlReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,41 +23,56 @@ public class PageRank {
 	
 	private static final Logger logger = LoggerFactory.getLogger(PageRank.class);
 	
-	private HashMap<Integer, List<Integer>> incomingUrls;
-	private HashMap<Integer, Integer> outgoingDegs;
-	private HashMap<Integer, Integer> pageIndices;
+	private GraphStore.Builder graphBuilder;
+	private GraphStore graph;
 	
-	private double[][] matrixA;
-	private double[][] matrixDeg;
-	private double[] vectorPr, vectorD;
-	private Matrix wekaA, wekaPr, wekaPreviousPr, wekaDeg, wekaD;
-	private double defaulScoreValue;
+	private LinkGraph linkGraph;
+	private double[] vectorPr, previousPr, olderPr, oldestPr, vectorD;
+	private double defaulScoreValue, convergedDistance;
 	
-	private static final String URL_DB_NAME = "OutgoingUrlDB", PRSCORE_DB_NAME = "PrScoreDB";
+	private RankSolver solver = RankSolver.JACOBI;
+	private int extrapolationPeriod = 10;
+	private ConvergenceTrace trace;
+	private File scoreDir;
+	private File bdbLinkDir;
+	private File graphFile;
+	private File edgeFile;
+	private EdgeFile.Builder edgeBuilder;
+	private EdgeFile edges;
+	private int[] outOfCoreDocIds;
 	
-	private MongoClient mongoClient;
-	private MongoDatabase outgoingUrlDB, prScoreDB;
+	private static final String PRSCORE_DB_NAME = "PrScoreDB";
+	
+	private Storage storage;
+	private boolean ownsStorage;
 	
 	private int numOfPages;
-	public int maxIterNum;
+	public int maxIterNum, numOfThreads;
 	public double convergeThreshold, parameterD;
 	
 	/**
-	 * constructor class
+	 * constructor class, single threaded iterations
 	 * @param defaultScoreValue 
 	 */
 	public PageRank(int maxIterNum, double convergeThreshold, double defaultScoreValue, double parameterD) {
+		this(maxIterNum, convergeThreshold, defaultScoreValue, parameterD, 1);
+	}
+	
+	
+	/**
+	 * constructor class
+	 * @param defaultScoreValue 
+	 * @param numOfThreads number of threads running each iteration, 1 for single threaded
+	 */
+	public PageRank(int maxIterNum, double convergeThreshold, double defaultScoreValue, double parameterD, int numOfThreads) {
 		
 		
 		
-		incomingUrls = new HashMap<>();
-		outgoingDegs = new HashMap<>();
-		pageIndices = new HashMap<>();
-		
 		this.defaulScoreValue = defaultScoreValue;
 		this.convergeThreshold = convergeThreshold;
 		this.maxIterNum = maxIterNum;
 		this.parameterD = parameterD;
+		this.numOfThreads = Math.max(1, numOfThreads);
 		
 	}
 	
@@ -63,177 +80,151 @@ public class PageRank {
 	/**
 	 * Initialize matrix A and scores Pr
 	 * 
-	 * Construct matrixA N x N (N = number of pages)
+	 * Construct matrixA N x N (N = number of pages) as a sparse LinkGraph
 	 * 1. matrixAdj[i][j] = 1 indicates page j points to page i, 0 otherwise.
-	 * 2. construct diagonal matrix matrixDeg[i][i] = 1/(number of pages leaving page i)
-	 * 3. matrixA = matrixAdj x matrixDeg
+	 * 2. diagonal matrixDeg[i][i] = 1/(number of pages leaving page i)
+	 * 3. matrixA = matrixAdj x matrixDeg, only the non-zero entries are stored
+	 * 
+	 * With a graph file (see setGraphFile()), the graph is read from it if it exists,
+	 * otherwise loaded as usual and saved to it.
+	 * 
+	 * Out of core (see setEdgeFile()), the links are only written to the edge file, if it does
+	 * not exist, and no vector is allocated until iterRun().
 	 */
 	public void initialize() {
 		logger.info("Initializing Page Rank settings ...");
-		loadMatrixAFromMongoDB();
+		if (edgeFile != null) {
+			initializeOutOfCore();
+			logger.info("Initialization complete,");
+			return;
+		}
+		graph = graphFile != null && graphFile.isFile() ? readGraph(graphFile) : null;
+		if (graph == null) {
+			graphBuilder = new GraphStore.Builder();
+			if (bdbLinkDir != null) {
+				loadMatrixAFromBdb(bdbLinkDir);
+			} else {
+				loadMatrixAFromStorage();
+			}
+			graph = graphBuilder.build();
+			graphBuilder = null;
+			if (graphFile != null) {
+				writeGraph(graphFile);
+			}
+		}
 		constructMatrices();
 		logger.info("Initialization complete,");
 	}
 	
 	
 	/**
-	 * Use the constructed HashMap: incomingUrls, outgoingDegs
-	 * construct the weka Matrices: wekaA, wekaPc
-	 * 
-	 * Steps:
-	 * 1. construct page indices: HashMap docId=>int, position in the matrix row/col
-	 * 2. construct matrixA, vectorPr
-	 * 3. construct wekaA, wekaP from matrixA and vectorPr
+	 * Use the constructed GraphStore: the page indices are its dense ordinals (docIds in
+	 * increasing order), the sparse graph in CSR layout its LinkGraph,
+	 * construct the vectors: vectorPr, vectorD
 	 */
 	private void constructMatrices() {
 		
 		
 		logger.info("Constucting Matrics ...");
 		
-		numOfPages = outgoingDegs.keySet().size();
+		numOfPages = graph.getNumOfNodes();
+		linkGraph = graph.getLinkGraph();
+		logger.info("linkGraph nodes: {}, edges: {}, dangling nodes: {}", linkGraph.getNumOfNodes(), 
+				linkGraph.getNumOfEdges(), linkGraph.getDanglingNodes().length);
 		
-		int currentIndex = 0;
-		for (int docId : outgoingDegs.keySet()) {
-			if (!pageIndices.containsKey(docId)) {
-				pageIndices.put(docId, currentIndex++);
-			}
-		}
-		
-		assert (currentIndex + 1) == numOfPages;
-		
-		matrixA = new double[numOfPages][numOfPages];
-		matrixDeg = new double[numOfPages][numOfPages];
 		vectorPr = new double[numOfPages];
 		vectorD = new double[numOfPages];
-		Arrays.fill(vectorPr, new Double(defaulScoreValue));
-		
-		for (int docId : outgoingDegs.keySet()) {
-			if (!incomingUrls.containsKey(docId)) continue;
-			for (int incomingUrlDocId : incomingUrls.get(docId)) {
-				if (pageIndices.containsKey(incomingUrlDocId)) {
-					try {
-						matrixA[pageIndices.get(docId)][pageIndices.get(incomingUrlDocId)] = 1.;
-					} catch (Exception e) {
-						logger.info("contains docId {}:{}", docId, pageIndices.containsKey(docId));
-						logger.info("contains incomingUrlDocId {}:{}", incomingUrlDocId, pageIndices.containsKey(incomingUrlDocId));
-					}
-					
-				}
-			}
-			matrixDeg[pageIndices.get(docId)][pageIndices.get(docId)] = outgoingDegs.get(docId) == 0 ? 0 : 1. / outgoingDegs.get(docId);
-			
-		}
+		Arrays.fill(vectorPr, defaulScoreValue);
+		Arrays.fill(vectorD, 1. / numOfPages);
+		previousPr = null;
 		
+	}
+	
+	
+	private GraphStore readGraph(File file) {
 		
-		for (int i = 0; i < numOfPages; i++) {
-			vectorD[i] = 1. / numOfPages;
+		logger.info("Reading the link graph from {} ...", file);
+		try {
+			return GraphStore.read(file);
+		} catch (IOException e) {
+			logger.error("Error while reading graph file {}, loading the links again.", file);
+			e.printStackTrace();
+			return null;
 		}
+	}
+	
+	
+	private void writeGraph(File file) {
 		
-		wekaA = new Matrix(matrixA);
-		logger.info("wekaA norm: {}, wekaA dim: {},{}, 1st element:{}", wekaA.normF(), wekaA.getRowDimension(), wekaA.getColumnDimension(), wekaA.get(0, 0));
-		wekaDeg = new Matrix(matrixDeg);
-		logger.info("wekaDeg norm: {}, wekaDeg dim: {}, {}, 1st element:{}", wekaDeg.normF(), wekaDeg.getRowDimension(), wekaDeg.getColumnDimension(), wekaDeg.get(0, 0));
-		wekaA = wekaA.times(wekaDeg);
-		logger.info("wekaA norm: {}, wekaA dim: {},{}, 1st element:{}", wekaA.normF(), wekaA.getRowDimension(), wekaA.getColumnDimension(), wekaA.get(0, 0));
-		logger.info("wekaA norminf: {}, wekaA norm1: {}", wekaA.normInf(), wekaA.norm1());
-		
-
+		logger.info("Saving the link graph to {} ...", file);
+		try {
+			graph.write(file);
+		} catch (IOException e) {
+			logger.error("Error while writing graph file {}.", file);
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Open the edge file, or build it from the links of the crawl if it does not exist.
+	 */
+	private void initializeOutOfCore() {
 		
-		// Normalization
-		for (int i = 0; i < numOfPages; i++) {
-			int sum = 0;
-			for (int j = 0; j < numOfPages; j++) {
-				sum += wekaA.get(i, j);
-			}
-			for (int j = 0; j < numOfPages; j++) {
-				if (sum == 0) {
-					wekaA.set(i, j, 0);
+		try {
+			if (edgeFile.isFile()) {
+				logger.info("Opening the edge file {} ...", edgeFile);
+				edges = EdgeFile.open(edgeFile);
+			} else {
+				edgeBuilder = new EdgeFile.Builder(edgeFile);
+				if (bdbLinkDir != null) {
+					loadMatrixAFromBdb(bdbLinkDir);
 				} else {
-					wekaA.set(i, j, (double) wekaA.get(i, j) / sum);
+					loadMatrixAFromStorage();
 				}
-				
+				edges = edgeBuilder.build();
 			}
+		} catch (IOException e) {
+			logger.error("Error while building edge file {}.", edgeFile);
+			e.printStackTrace();
+			throw new IllegalStateException("No edge file " + edgeFile, e);
+		} finally {
+			edgeBuilder = null;
 		}
 		
-		
-		// value check
-//		for (int i = 0; i < numOfPages; i++) {
-//		for (int j = 0; j < numOfPages; j++) {
-//			if (wekaA.get(i, j) == 1) {
-//				logger.info("{}, {} in wekaA == 1", i, j);
-//			}
-//		}
-//	}
-		
-		wekaPr = new Matrix(vectorPr, vectorPr.length);
-		wekaD = new Matrix(vectorD, vectorD.length);
-		wekaPreviousPr = null;
-		
-		matrixA = null;
-		matrixDeg = null;
-		wekaDeg = null;
-		vectorPr = null;
-		
-		
+		numOfPages = edges.getNumOfNodes();
+		logger.info("Edge file nodes: {}, edges: {}, dangling nodes: {}", numOfPages, edges.getNumOfEdges(), 
+				edges.getNumOfDangling());
 	}
 	
 	
 	
 	/**
-	 * For each docId : outgoing LinkedDocIds pair, reverse it as docId : incoming LinkedDocIds, 
-	 * save in a HashMap: incomingUrls
-	 * Also save the outgoing degree in a HashMap: outgoingDegs
+	 * Add each docId : outgoing LinkedDocIds pair to graphBuilder, which reverses them
+	 * as docId : incoming LinkedDocIds
 	 */
-	private void loadMatrixAFromMongoDB() {
+	private void loadMatrixAFromStorage() {
 		
-		logger.info("Loading Matrix A from MongoDB ...");
-		logger.info("Reading from database {}", URL_DB_NAME);
+		logger.info("Loading Matrix A from the LinkStore ...");
 		
 		try {
-			mongoClient = new MongoClient();
-			outgoingUrlDB = mongoClient.getDatabase(URL_DB_NAME);
-			logger.info("Successfully opened database {}.", URL_DB_NAME);
-
-			FindIterable<Document> iterable = outgoingUrlDB.getCollection("DocId_LinkDocId").find();
-			iterable.noCursorTimeout(true);
-			
-			iterable.forEach(new Block<Document>() {
+			openStorage().getLinkStore().forEach(new LinkStore.LinkVisitor() {
 				
 				@Override
-				public void apply(final Document document) {
+				public void visit(int docId, int[] linkDocIds) {
 					
-					int docId = document.getInteger("doc_id");
+					logger.info("docId:{}, size:{}", Integer.toString(docId), linkDocIds.length);
 					
-					@SuppressWarnings("unchecked")
-					ArrayList<Integer> outgoingDocIdList = (ArrayList<Integer>) document.get("link_docId");
-					logger.info("docId:{}, size:{}", Integer.toString(docId), outgoingDocIdList.size());
-					
-					if (!outgoingDegs.containsKey(docId)) {
-						outgoingDegs.put(docId, Math.max(1, outgoingDocIdList.size()));
-					} else {
-						logger.warn("Repeated docId {} found in {}", docId, URL_DB_NAME);
-						outgoingDegs.put(docId, Math.max(1, outgoingDocIdList.size()));
-					}
-					
-
-					for (int item : outgoingDocIdList) {
-						
-						int outgoingDocId = item;
-						
-						if (!incomingUrls.containsKey(outgoingDocId)) {
-							incomingUrls.put(outgoingDocId, new ArrayList<Integer>(Arrays.asList(docId)));
-						} else {
-							incomingUrls.get(outgoingDocId).add(docId);
-						}
-						
-					}
+					// links to pages never crawled are dropped by GraphStore.Builder.build, 
+					// which counts the real outgoing degree over the kept links
+					addPage(docId, linkDocIds);
 					
 				}
 			});
 			
 			
 		} catch (Exception dbe) {
-			logger.error("Error while openining index or outgoingUrlDB database.");
+			logger.error("Error while reading the LinkStore.");
 			dbe.printStackTrace();			
 		} finally {
 			shutDownDB();
@@ -244,97 +235,694 @@ public class PageRank {
 	
 	
 	/**
-	 *  Shut down database.
+	 * Same as loadMatrixAFromStorage(), from the link database of TextCrawlerBDB
+	 */
+	private void loadMatrixAFromBdb(File outgoingEnvDir) {
+		
+		try {
+			BdbCrawlReader.readLinks(outgoingEnvDir, new BdbCrawlReader.LinkVisitor() {
+				
+				@Override
+				public void visit(int docId, int[] linkDocIds) {
+					
+					addPage(docId, linkDocIds);
+				}
+			});
+			
+		} catch (IOException e) {
+			logger.error("Error while reading the link database in {}", outgoingEnvDir);
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Add a page to the builder being loaded, the edge file builder out of core
+	 */
+	private void addPage(int docId, int[] linkDocIds) {
+		if (edgeBuilder != null) {
+			edgeBuilder.addPage(docId, linkDocIds);
+		} else {
+			graphBuilder.addPage(docId, linkDocIds);
+		}
+	}
+	
+	
+	/**
+	 * The storage set by setStorage(), or else the one of the system properties (see Storages),
+	 * opened until shutDownDB().
+	 */
+	private Storage openStorage() {
+		if (storage == null) {
+			storage = Storages.fromSystemProperties();
+			ownsStorage = true;
+		}
+		return storage;
+	}
+	
+	
+	/**
+	 *  Shut down database, if opened by openStorage().
 	 */
 	private void shutDownDB() {
-		logger.info("Shutting down MongoDB.");
+		
+		if (ownsStorage) {
+			logger.info("Shutting down storage.");
+			storage.close();
+			storage = null;
+			ownsStorage = false;
+		}
+	}
+	
+	
+	
+	/**
+	 * Use a personalized (topic sensitive) teleport vector D.
+	 * 
+	 * @param teleportWeights docId => non-negative weight, normalized to sum 1 over the crawled pages
+	 */
+	public void setTeleport(Map<Integer, Double> teleportWeights) {
+		
+		double sum = 0;
+		Arrays.fill(vectorD, 0);
+		for (Map.Entry<Integer, Double> entry : teleportWeights.entrySet()) {
+			int index = graph.ordinal(entry.getKey());
+			if (index >= 0 && entry.getValue() > 0) {
+				vectorD[index] += entry.getValue();
+				sum += entry.getValue();
+			}
+		}
+		
+		if (sum == 0) {
+			throw new IllegalArgumentException("No crawled page in the teleport vector.");
+		}
+		for (int i = 0; i < numOfPages; i++) {
+			vectorD[i] /= sum;
+		}
+	}
+	
+	
+	/**
+	 * Teleport uniformly to a set of seed pages.
+	 * @param seedDocIds
+	 */
+	public void setTeleport(Collection<Integer> seedDocIds) {
+		HashMap<Integer, Double> teleportWeights = new HashMap<>();
+		for (int docId : seedDocIds) {
+			teleportWeights.put(docId, 1.);
+		}
+		setTeleport(teleportWeights);
+	}
+	
+	
+	/**
+	 * Back to the uniform teleport vector D[i] = 1 / N.
+	 */
+	public void resetTeleport() {
+		Arrays.fill(vectorD, 1. / numOfPages);
+	}
+	
+	
+	/**
+	 * Restart the iterations from defaultScoreValue.
+	 */
+	public void resetPr() {
+		Arrays.fill(vectorPr, defaulScoreValue);
+	}
+	
+	
+	/**
+	 * Warm start: seed vectorPr with the scores saved in PrScoreDB by the last run.
+	 * 
+	 * Pages crawled since then start at 1 / N, and the vector is scaled back to a total of 1,
+	 * so only the part of the graph that changed is far from the fixed point.
+	 * Falls back to defaultScoreValue when no score is found.
+	 * 
+	 * @return number of pages found in PrScoreDB
+	 */
+	public int loadPr() {
+		
+		logger.info("Loading PageRank score {} ...", PRSCORE_DB_NAME);
+		
+		final boolean[] found = new boolean[numOfPages];
+		final int[] numOfFound = new int[1];
 		
 		try {
+			openStorage().getScoreStore().forEach(PRSCORE_DB_NAME, new ScoreStore.ScoreVisitor() {
+				
+				@Override
+				public void visit(int docId, double score) {
+					int index = graph.ordinal(docId);
+					if (index >= 0 && !found[index]) {
+						vectorPr[index] = score;
+						found[index] = true;
+						numOfFound[0]++;
+					}
+				}
+			});
 			
-			if (mongoClient != null) {
-				mongoClient.close();
+		} catch (Exception dbe) {
+			logger.error("Error while reading scores {}.", PRSCORE_DB_NAME);
+			dbe.printStackTrace();
+		} finally {
+			shutDownDB();
+		}
+		
+		if (numOfFound[0] == 0) {
+			logger.info("No previous score found, starting from {}", defaulScoreValue);
+			resetPr();
+			return 0;
+		}
+		
+		double sum = 0;
+		for (int i = 0; i < numOfPages; i++) {
+			if (!found[i]) {
+				vectorPr[i] = 1. / numOfPages;
 			}
-
-		} catch (Exception e) {
-			logger.error("Error while shutting down MongoDB Client.");
-			e.printStackTrace();
+			sum += vectorPr[i];
+		}
+		for (int i = 0; i < numOfPages; i++) {
+			vectorPr[i] /= sum;
+		}
+		
+		logger.info("Warm start with {} previous scores, {} new pages.", numOfFound[0], numOfPages - numOfFound[0]);
+		return numOfFound[0];
+	}
+	
+	
+	/**
+	 * Read from the UrlStore the docIds of the pages whose host is domain or a sub-domain of it.
+	 * @param domain e.g. "ics.uci.edu"
+	 * @return
+	 */
+	public Set<Integer> loadDomainDocIds(String domain) {
+		
+		Set<Integer> docIds = new HashSet<>();
+		String hostPattern = "^[a-z]+://([^/]*\\.)?" + Pattern.quote(domain.toLowerCase()) + "(:[0-9]+)?(/|$)";
+		
+		try {
+			docIds = openStorage().getUrlStore().findDocIds(hostPattern);
+			
+		} catch (Exception dbe) {
+			logger.error("Error while reading the UrlStore.");
+			dbe.printStackTrace();
+		} finally {
+			shutDownDB();
 		}
-		logger.info("MongoDB is shut down.");
+		
+		logger.info("{} pages found in domain {}", docIds.size(), domain);
+		return docIds;
+	}
+	
+	
+	
+	/**
+	 * Select the iteration scheme of iterRun(), see RankSolver.
+	 * @param solver
+	 */
+	public void setSolver(RankSolver solver) {
+		this.solver = solver;
+	}
+	
+	
+	/**
+	 * @param extrapolationPeriod iterations between two extrapolations of RankSolver.EXTRAPOLATION
+	 */
+	public void setExtrapolationPeriod(int extrapolationPeriod) {
+		this.extrapolationPeriod = Math.max(3, extrapolationPeriod);
+	}
+	
+	
+	/**
+	 * Also save the scores as memory mappable score files (see ScoreSegment),
+	 * one file collectionName.bin per saved collection, none if scoreDir is null.
+	 * @param scoreDir
+	 */
+	public void setScoreDir(File scoreDir) {
+		this.scoreDir = scoreDir;
+	}
+	
+	
+	/**
+	 * Read the links from the link environment of a TextCrawlerBDB crawl (see BdbCrawlReader)
+	 * instead of the LinkStore, null for the LinkStore. The scores are saved as usual.
+	 * @param bdbLinkDir
+	 */
+	public void setBdbLinkDir(File bdbLinkDir) {
+		this.bdbLinkDir = bdbLinkDir;
+	}
+	
+	
+	/**
+	 * Read the link graph from file (see GraphStore) if it exists, instead of the links of the
+	 * crawl, otherwise save it there. Delete it to load the links again after a crawl.
+	 * @param graphFile
+	 */
+	public void setGraphFile(File graphFile) {
+		this.graphFile = graphFile;
+	}
+	
+	
+	/**
+	 * Rank out of core (see EdgeFile and OutOfCoreIterator): the links are read from edgeFile if
+	 * it exists, otherwise written there, and streamed from it every iteration, so the graph does
+	 * not have to fit in memory. Only run() is supported, with power iterations and the uniform
+	 * teleport vector. Null to rank in memory.
+	 * @param edgeFile
+	 */
+	public void setEdgeFile(File edgeFile) {
+		this.edgeFile = edgeFile;
 	}
 	
 	
+	/**
+	 * Read and write the pipeline data in storage, which stays open, instead of the storage
+	 * of the system properties opened for each operation.
+	 * @param storage
+	 */
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+		this.ownsStorage = false;
+	}
+	
+	
+	/**
+	 * Residual and wall time of each iteration of the last iterRun()
+	 * @return
+	 */
+	public ConvergenceTrace getTrace() {
+		return trace;
+	}
+	
 	
 	/**
 	 * core function running PageRank
+	 * 
+	 * Pr = d * (A x Pr + danglingMass * D) + (1 - d) * D, one sparse matrix-vector product per iteration.
+	 * The rank of the dangling nodes (danglingMass) is spread along the teleport vector D,
+	 * so the total rank is kept and none leaks out of the graph.
+	 * The iteration scheme is chosen by setSolver(), the residual and wall time
+	 * of every iteration is kept in a ConvergenceTrace.
 	 */
 	protected void iterRun() {
 		
+		logger.info("Start page ranking iterations with {} ...", solver);
+		
+		if (numOfThreads > 1 && (solver == RankSolver.GAUSS_SEIDEL || solver == RankSolver.ADAPTIVE)) {
+			logger.warn("{} runs single threaded.", solver);
+		}
+		
+		trace = new ConvergenceTrace(solver.toString());
+		
+		if (edges != null) {
+			if (solver != RankSolver.JACOBI) {
+				logger.warn("{} runs in memory only, out of core runs power iterations.", solver);
+			}
+			outOfCoreRun();
+			trace.log(logger);
+			logger.info("distance: {}", getConvergedDistance());
+			logger.info("Iteration completed.");
+			return;
+		}
+		
+		switch (solver) {
+		case GAUSS_SEIDEL:
+			gaussSeidelRun();
+			break;
+		case ADAPTIVE:
+			adaptiveRun();
+			break;
+		case AITKEN:
+		case QUADRATIC:
+			jacobiRun(true);
+			break;
+		default:
+			jacobiRun(false);
+		}
+		
+		trace.log(logger);
+		logger.info("distance: {}", getConvergedDistance());
+		logger.info("Iteration completed.");
+	}
+	
+	
+	/**
+	 * Power iteration.
+	 * vectorPr and previousPr are allocated once and swapped every iteration,
+	 * damping, teleport and residual are folded into the same pass (LinkGraph.iterate).
+	 * With numOfThreads > 1 the rows are updated in parallel blocks, see ParallelRankIterator.
+	 * 
+	 * @param extrapolate extrapolation every extrapolationPeriod iterations,
+	 * olderPr and oldestPr then keep the vectors of two and three iterations ago
+	 */
+	private void jacobiRun(boolean extrapolate) {
+		
+		int iter = 0;
+		double dist = 10 * convergeThreshold;
+		
+		ParallelRankIterator rankIterator = numOfThreads > 1 ? new ParallelRankIterator(linkGraph, numOfThreads) : null;
+		previousPr = new double[numOfPages];
+		olderPr = extrapolate ? new double[numOfPages] : null;
+		oldestPr = extrapolate ? new double[numOfPages] : null;
+		
+		try {
+			while (dist > convergeThreshold && iter++ < maxIterNum) {
+				
+				double[] swap = extrapolate ? oldestPr : previousPr;
+				if (extrapolate) {
+					oldestPr = olderPr;
+					olderPr = previousPr;
+				}
+				previousPr = vectorPr;
+				vectorPr = swap;
+				
+				double teleportScale = (1 - parameterD) + parameterD * linkGraph.danglingMass(previousPr);
+				if (rankIterator != null) {
+					convergedDistance = rankIterator.iterate(previousPr, vectorPr, vectorD, parameterD, teleportScale);
+				} else {
+					convergedDistance = Math.sqrt(linkGraph.iterate(previousPr, vectorPr, vectorD, parameterD, 
+							teleportScale, 0, numOfPages));
+				}
+				dist = getConvergedDistance();
+				
+				if (extrapolate && iter >= 4 && iter % extrapolationPeriod == 0 && dist > convergeThreshold) {
+					if (solver == RankSolver.QUADRATIC) {
+						quadraticExtrapolation();
+					} else {
+						aitkenExtrapolation();
+					}
+				}
+				
+				trace.record(dist);
+				logger.info("Iter :{} distance: {}", iter, dist);
+			}
+		} finally {
+			if (rankIterator != null) {
+				rankIterator.shutDown();
+			}
+		}
+		
+		olderPr = null;
+		oldestPr = null;
+	}
+	
+	
+	/**
+	 * Power iterations streaming the edge file, see OutOfCoreIterator.
+	 * The ranks are copied to vectorPr at the end, to be saved as usual.
+	 */
+	private void outOfCoreRun() {
+		
 		int iter = 0;
 		double dist = 10 * convergeThreshold;
 		
-		logger.info("Start page ranking iterations ...");
+		try {
+			OutOfCoreIterator iterator = new OutOfCoreIterator(edges, defaulScoreValue);
+			while (dist > convergeThreshold && iter++ < maxIterNum) {
+				convergedDistance = Math.sqrt(iterator.iterate(parameterD));
+				dist = getConvergedDistance();
+				trace.record(dist);
+				logger.info("Iter :{} distance: {}", iter, dist);
+			}
+			vectorPr = iterator.getScores();
+			outOfCoreDocIds = edges.readDocIds();
+		
+		} catch (IOException e) {
+			logger.error("Error while reading edge file {}.", edges.getFile());
+			e.printStackTrace();
+			throw new IllegalStateException("Cannot rank " + edges.getFile(), e);
+		}
+	}
+	
+	
+	/**
+	 * Component-wise Aitken delta^2 extrapolation from olderPr, previousPr, vectorPr:
+	 * Pr = Pr - (Pr - previousPr)^2 / (Pr - 2 * previousPr + olderPr)
+	 * The error of an entry shrinks at most by d per iteration, so a correction larger than
+	 * d / (1 - d) times the last step is noise and the entry is kept, as are negative results.
+	 * The vector is scaled back to its total before the extrapolation.
+	 */
+	private void aitkenExtrapolation() {
+		
+		double maxRatio = parameterD / (1 - parameterD);
+		double sumBefore = 0, sumAfter = 0;
+		for (int i = 0; i < numOfPages; i++) {
+			double pr = vectorPr[i];
+			sumBefore += pr;
+			double delta = pr - previousPr[i];
+			double delta2 = delta - (previousPr[i] - olderPr[i]);
+			if (delta2 != 0) {
+				double correction = delta * delta / delta2;
+				if (Math.abs(correction) <= maxRatio * Math.abs(delta) && pr - correction > 0) {
+					pr -= correction;
+				}
+			}
+			vectorPr[i] = pr;
+			sumAfter += pr;
+		}
+		
+		double scale = sumBefore / sumAfter;
+		for (int i = 0; i < numOfPages; i++) {
+			vectorPr[i] *= scale;
+		}
+	}
+	
+	
+	/**
+	 * Quadratic extrapolation (Kamvar, Haveliwala, Manning, Golub) from the last four vectors:
+	 * y1 = olderPr - oldestPr, y2 = previousPr - oldestPr, y3 = Pr - oldestPr,
+	 * (g1, g2) = least squares solution of [y1 y2] (g1, g2) = -y3, g3 = 1,
+	 * Pr = (g1 + g2 + g3) * olderPr + (g2 + g3) * previousPr + g3 * Pr
+	 * 
+	 * Takes two passes, one for the 2 x 2 normal equations and one for the update.
+	 */
+	private void quadraticExtrapolation() {
+		
+		double y11 = 0, y12 = 0, y22 = 0, y13 = 0, y23 = 0;
+		for (int i = 0; i < numOfPages; i++) {
+			double y1 = olderPr[i] - oldestPr[i];
+			double y2 = previousPr[i] - oldestPr[i];
+			double y3 = vectorPr[i] - oldestPr[i];
+			y11 += y1 * y1;
+			y12 += y1 * y2;
+			y22 += y2 * y2;
+			y13 += y1 * y3;
+			y23 += y2 * y3;
+		}
+		
+		double det = y11 * y22 - y12 * y12;
+		if (Math.abs(det) <= 1.0e-12 * y11 * y22) {
+			return;
+		}
+		double g1 = -(y22 * y13 - y12 * y23) / det;
+		double g2 = -(y11 * y23 - y12 * y13) / det;
+		double b0 = g1 + g2 + 1, b1 = g2 + 1;
+		
+		double sumBefore = 0, sumAfter = 0;
+		for (int i = 0; i < numOfPages; i++) {
+			sumBefore += vectorPr[i];
+			double pr = b0 * olderPr[i] + b1 * previousPr[i] + vectorPr[i];
+			vectorPr[i] = pr > 0 ? pr : vectorPr[i];
+			sumAfter += vectorPr[i];
+		}
+		
+		double scale = sumBefore / sumAfter;
+		for (int i = 0; i < numOfPages; i++) {
+			vectorPr[i] *= scale;
+		}
+	}
+	
+	
+	/**
+	 * In-place Gauss-Seidel sweeps over a single vectorPr, see LinkGraph.gaussSeidel.
+	 * 
+	 * Sweeps solve y = d * A x y + (1 - d) * D, leaving the dangling nodes out, and y
+	 * is scaled to a total of 1 at the end. This is the same vector as with the dangling
+	 * mass spread along D, without a global term that changes inside a sweep.
+	 */
+	private void gaussSeidelRun() {
+		
+		int iter = 0;
+		double dist = 10 * convergeThreshold;
 		
-		wekaD = wekaD.times((1 - parameterD));
 		while (dist > convergeThreshold && iter++ < maxIterNum) {
-			
-			//logger.info("element in welaPr: {}");
-			wekaPreviousPr = wekaPr.copy();
-			logger.info("wekaA norm: {}", wekaA.normF());
-			wekaPr = wekaA.times(wekaPr).times(parameterD).plus(wekaD);
-			logger.info("Norm in the middle: {}", wekaPr.normF());
-			//wekaPr = wekaPr.times(parameterD).plus(wekaD);
-			logger.info("wekaPreviousPr Norm: {}", wekaPreviousPr.normF());
-			logger.info("WekaPr Norm: {}", wekaPr.normF());
+			convergedDistance = Math.sqrt(linkGraph.gaussSeidel(vectorPr, vectorD, parameterD, 1 - parameterD, 0, numOfPages));
 			dist = getConvergedDistance();
+			trace.record(dist);
 			logger.info("Iter :{} distance: {}", iter, dist);
 		}
 		
-		logger.info("distance: {}", dist);
-		logger.info("Iteration completed.");
+		double sum = 0;
+		for (int i = 0; i < numOfPages; i++) {
+			sum += vectorPr[i];
+		}
+		for (int i = 0; i < numOfPages; i++) {
+			vectorPr[i] /= sum;
+		}
 	}
 	
-
 	
 	/**
-	 * Return the converged distance.
+	 * Adaptive power iteration: a page whose rank moved by less than
+	 * convergeThreshold / N is frozen and no longer recomputed.
+	 * The active rows are kept compacted in an int[], so the work of an
+	 * iteration follows the number of pages still moving.
+	 * Once the active rows converge, all pages are thawed for a full check
+	 * iteration, so the run stops on the same criterion as the power iteration.
+	 */
+	private void adaptiveRun() {
+		
+		int iter = 0;
+		double dist = 10 * convergeThreshold;
+		double freezeTolerance = convergeThreshold / numOfPages;
+		
+		int[] active = new int[numOfPages];
+		int numOfActive = numOfPages;
+		for (int i = 0; i < numOfPages; i++) {
+			active[i] = i;
+		}
+		
+		// frozen rows are never written again, both buffers must hold their rank
+		previousPr = vectorPr.clone();
+		
+		while (dist > convergeThreshold && iter++ < maxIterNum) {
+			
+			double[] swap = previousPr;
+			previousPr = vectorPr;
+			vectorPr = swap;
+			
+			double teleportScale = (1 - parameterD) + parameterD * linkGraph.danglingMass(previousPr);
+			double residual = 0;
+			int stillActive = 0;
+			
+			for (int k = 0; k < numOfActive; k++) {
+				int i = active[k];
+				double pr = parameterD * linkGraph.rowDot(i, previousPr) + teleportScale * vectorD[i];
+				double diff = previousPr[i] - pr;
+				residual += diff * diff;
+				vectorPr[i] = pr;
+				
+				if (Math.abs(diff) > freezeTolerance) {
+					active[stillActive++] = i;
+				} else {
+					previousPr[i] = pr;
+				}
+			}
+			
+			convergedDistance = Math.sqrt(residual);
+			dist = getConvergedDistance();
+			trace.record(dist);
+			logger.info("Iter :{} distance: {}, active pages: {}", iter, dist, numOfActive);
+			
+			if (dist <= convergeThreshold && numOfActive < numOfPages) {
+				// thaw everything and check again
+				numOfActive = numOfPages;
+				for (int i = 0; i < numOfPages; i++) {
+					active[i] = i;
+				}
+				dist = 10 * convergeThreshold;
+			} else {
+				numOfActive = stillActive;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Delta propagation instead of full iterations, see ResidualPush.
+	 * Meant to follow loadPr(), each page stops once its residual is
+	 * below convergeThreshold / sqrt(N), so the L2 residual is below convergeThreshold.
+	 */
+	protected void pushRun() {
+		
+		logger.info("Start residual push ...");
+		
+		double tolerance = convergeThreshold / Math.sqrt(numOfPages);
+		long maxPushes = (long) maxIterNum * (numOfPages + linkGraph.getNumOfEdges());
+		
+		long pushes = new ResidualPush(linkGraph).run(vectorPr, vectorD, parameterD, tolerance, maxPushes);
+		
+		logger.info("Residual push completed, {} pushes, {} full iterations equivalent.", pushes, 
+				(double) pushes / numOfPages);
+	}
+	
+	
+	
+	/**
+	 * Return the converged distance of the last iteration, L2 norm of (previousPr - Pr).
 	 * @return
 	 */
 	protected double getConvergedDistance() {
-		return wekaPreviousPr.minus(wekaPr).normF();	
+		return convergedDistance;
 	}
 	
 	
 	/**
-	 * Save results to MongoDB
+	 * Save results to the ScoreStore
 	 */
 	protected void savePr() {
+		savePr(PRSCORE_DB_NAME);
+	}
+	
+	
+	/**
+	 * Save results to the scores collectionName of the ScoreStore (a collection of PrScoreDB on MongoDB)
+	 * @param collectionName
+	 */
+	protected void savePr(String collectionName) {
 		
-		logger.info("Saving PageRank score to MongoDB {} ...", PRSCORE_DB_NAME);
+		logger.info("Saving PageRank score to {} ...", collectionName);
 		
 		try {
 			
-			mongoClient = new MongoClient();
-			prScoreDB = mongoClient.getDatabase(PRSCORE_DB_NAME);
-			logger.info("Successfully opened database {}.", PRSCORE_DB_NAME);
-			
-			for (int docId : pageIndices.keySet()) {
-				prScoreDB.getCollection(PRSCORE_DB_NAME).insertOne(new Document().append("doc_id", docId)
-						.append("pr_score", wekaPr.get(pageIndices.get(docId), 0) ));
-			}
+			// replace the scores of the last run, loadPr() reads them back for warm starts
+			openStorage().getScoreStore().save(collectionName, getDocIds(), vectorPr);
 			
 			
 		} catch (Exception dbe) {
-			logger.error("Error while openining index or outgoingUrlDB database.");
+			logger.error("Error while saving scores {}.", collectionName);
 			dbe.printStackTrace();			
 		} finally {
 			shutDownDB();
 		}
 		
+		if (scoreDir != null) {
+			saveScoreFile(new File(scoreDir, collectionName + ".bin"));
+		}
+		
 		logger.info("Saving PageRank score completed.");
 		
 	}
 	
 	
+	/**
+	 * Save results to a score file
+	 * @param file
+	 */
+	protected void saveScoreFile(File file) {
+		
+		logger.info("Saving PageRank score to {} ...", file);
+		
+		try {
+			if (!scoreDir.isDirectory() && !scoreDir.mkdirs()) {
+				throw new IOException("Cannot create " + scoreDir);
+			}
+			ScoreSegment.write(file, getDocIds(), vectorPr);
+		} catch (IOException e) {
+			logger.error("Error while writing score file {}.", file);
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * The docIds of vectorPr, by ordinal
+	 */
+	private int[] getDocIds() {
+		return edges != null ? outOfCoreDocIds : graph.getDocIds();
+	}
+	
+	
 	/**
 	 * call this function to run
 	 */
@@ -343,5 +931,58 @@ public class PageRank {
 		iterRun();
 		savePr();
 	}
+	
+	
+	/**
+	 * Incremental run, warm started from the scores of the last run.
+	 * @param deltaPropagation push residuals from the changed pages only instead of full iterations
+	 */
+	public void runIncremental(boolean deltaPropagation) {
+		checkInMemory();
+		initialize();
+		loadPr();
+		if (deltaPropagation) {
+			pushRun();
+		} else {
+			iterRun();
+		}
+		savePr();
+	}
+	
+	
+	/**
+	 * Topic sensitive PageRank, one personalized run per topic over the same graph.
+	 * Scores of topic t are saved in the collection PrScore_t of PrScoreDB.
+	 * 
+	 * @param topics topic name => seed docIds of the topic
+	 */
+	public void runTopics(Map<String, ? extends Collection<Integer>> topics) {
+		
+		checkInMemory();
+		initialize();
+		
+		for (Map.Entry<String, ? extends Collection<Integer>> topic : topics.entrySet()) {
+			
+			logger.info("Running topic {} with {} seed pages.", topic.getKey(), topic.getValue().size());
+			try {
+				setTeleport(topic.getValue());
+			} catch (IllegalArgumentException e) {
+				logger.warn("Skipping topic {}: {}", topic.getKey(), e.getMessage());
+				continue;
+			}
+			resetPr();
+			iterRun();
+			savePr("PrScore_" + topic.getKey());
+		}
+		
+		resetTeleport();
+	}
+	
+	
+	private void checkInMemory() {
+		if (edgeFile != null) {
+			throw new IllegalStateException("Out of core (edge file " + edgeFile + ") only run() is supported.");
+		}
+	}
 
 }
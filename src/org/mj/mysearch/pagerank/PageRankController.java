@@ -4,6 +4,12 @@
 
 package org.mj.mysearch.pagerank;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,11 +24,73 @@ public class PageRankController {
 		double convergeThreshold = 1.0e-7;
 		double defaultScoreValue = 0.01;
 		double parameterD = 0.85;
+		int numOfThreads = 1;
+		
+		boolean warmStart = false, deltaPropagation = false;
+		RankSolver solver = RankSolver.JACOBI;
+		File scoreDir = null;
+		File bdbLinkDir = null;
+		File graphFile = null;
+		File edgeFile = null;
+		HashMap<String, Set<Integer>> topics = new HashMap<>();
+		List<String> domains = new ArrayList<>();
+		
+		if (args.length > 0) {
+			// numOfThreads (number of threads per iteration, 0 for all available cores)
+			numOfThreads = Integer.parseInt(args[0]);
+			if (numOfThreads <= 0) {
+				numOfThreads = Runtime.getRuntime().availableProcessors();
+			}
+		}
+		
+		for (int i = 1; i < args.length; i++) {
+			if ("--warm".equals(args[i])) {
+				// start from the scores of the last run
+				warmStart = true;
+			} else if ("--delta".equals(args[i])) {
+				// start from the scores of the last run, push residuals instead of full iterations
+				warmStart = true;
+				deltaPropagation = true;
+			} else if (args[i].startsWith("--solver=")) {
+				// jacobi, gauss-seidel, aitken, quadratic or adaptive
+				solver = RankSolver.parse(args[i].substring("--solver=".length()));
+			} else if (args[i].startsWith("--scores=")) {
+				// also write memory mappable score files in this directory
+				scoreDir = new File(args[i].substring("--scores=".length()));
+			} else if (args[i].startsWith("--bdb=")) {
+				// read the links from the link environment of TextCrawlerBDB instead of the LinkStore
+				bdbLinkDir = new File(args[i].substring("--bdb=".length()));
+			} else if (args[i].startsWith("--graph=")) {
+				// read the link graph from this file, or save it there if it does not exist
+				graphFile = new File(args[i].substring("--graph=".length()));
+			} else if (args[i].startsWith("--edges=")) {
+				// rank out of core, streaming the links from this edge file, built if it does not exist
+				edgeFile = new File(args[i].substring("--edges=".length()));
+			} else {
+				// domain1 domain2 ... (topic sensitive PageRank, one topic per domain)
+				domains.add(args[i]);
+			}
+		}
+		
+		logger.info("Page Rank with {} thread(s), solver {}.", numOfThreads, solver);
 		
-		logger.info("Page Rank.");
+		PageRank pageRank = new PageRank(maxIterNum, convergeThreshold, defaultScoreValue, parameterD, numOfThreads);
+		pageRank.setSolver(solver);
+		pageRank.setScoreDir(scoreDir);
+		pageRank.setBdbLinkDir(bdbLinkDir);
+		pageRank.setGraphFile(graphFile);
+		pageRank.setEdgeFile(edgeFile);
 		
-		PageRank pageRank = new PageRank(maxIterNum, convergeThreshold, defaultScoreValue, parameterD);
-		pageRank.run();
+		if (!domains.isEmpty()) {
+			for (String domain : domains) {
+				topics.put(domain, pageRank.loadDomainDocIds(domain));
+			}
+			pageRank.runTopics(topics);
+		} else if (warmStart) {
+			pageRank.runIncremental(deltaPropagation);
+		} else {
+			pageRank.run();
+		}
 		
 		logger.info("All complete.");
 		
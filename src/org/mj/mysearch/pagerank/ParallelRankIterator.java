@@ -0,0 +1,161 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs one PageRank power iteration on a ForkJoinPool.
+ *
+ * The rows of the LinkGraph are split into blocks holding about the same
+ * number of links, so that pages with many incoming links do not pile up
+ * in a single block. The block tasks are created once and reinitialized
+ * each iteration, every task writes its own rows of the next vector and
+ * keeps its own partial squared residual, so an iteration allocates nothing.
+ */
+public class ParallelRankIterator {
+
+	private static final Logger logger = LoggerFactory.getLogger(ParallelRankIterator.class);
+
+	/** blocks per thread, more blocks give the pool room to balance the load */
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	private final LinkGraph linkGraph;
+	private final ForkJoinPool pool;
+	private final BlockTask[] blocks;
+	private final RootTask root;
+
+	private double[] previousPr, vectorPr, vectorD;
+	private double parameterD, teleportScale;
+
+
+	/**
+	 * constructor class
+	 * @param linkGraph
+	 * @param numOfThreads parallelism of the ForkJoinPool
+	 */
+	public ParallelRankIterator(LinkGraph linkGraph, int numOfThreads) {
+
+		this.linkGraph = linkGraph;
+		this.pool = new ForkJoinPool(numOfThreads);
+
+		int[] bounds = splitRows(linkGraph, numOfThreads * BLOCKS_PER_THREAD);
+		blocks = new BlockTask[bounds.length - 1];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new BlockTask(bounds[i], bounds[i + 1]);
+		}
+		root = new RootTask();
+
+		logger.info("Parallel iteration with {} threads, {} blocks.", numOfThreads, blocks.length);
+	}
+
+
+	/**
+	 * Split rows [0, N) into at most numOfBlocks ranges of about equal rows + links.
+	 * @return block boundaries, block k is [bounds[k], bounds[k+1])
+	 */
+	private static int[] splitRows(LinkGraph linkGraph, int numOfBlocks) {
+
+		int numOfNodes = linkGraph.getNumOfNodes();
+		int[] offsets = linkGraph.getOffsets();
+		numOfBlocks = Math.max(1, Math.min(numOfBlocks, numOfNodes));
+
+		long totalWork = (long) numOfNodes + linkGraph.getNumOfEdges();
+		int[] bounds = new int[numOfBlocks + 1];
+		int block = 1;
+		for (int i = 0; i < numOfNodes && block < numOfBlocks; i++) {
+			long work = (long) i + offsets[i];
+			if (work * numOfBlocks >= totalWork * block) {
+				bounds[block++] = i;
+			}
+		}
+		while (block <= numOfBlocks) {
+			bounds[block++] = numOfNodes;
+		}
+		return bounds;
+	}
+
+
+	/**
+	 * vectorPr = parameterD * A x previousPr + teleportScale * vectorD
+	 *
+	 * @param previousPr rank vector of the last iteration, read only
+	 * @param vectorPr output rank vector, overwritten
+	 * @param vectorD teleport distribution
+	 * @param parameterD damping factor
+	 * @param teleportScale see LinkGraph.iterate
+	 * @return L2 norm of (previousPr - vectorPr)
+	 */
+	public double iterate(double[] previousPr, double[] vectorPr, double[] vectorD, double parameterD, double teleportScale) {
+
+		this.previousPr = previousPr;
+		this.vectorPr = vectorPr;
+		this.vectorD = vectorD;
+		this.parameterD = parameterD;
+		this.teleportScale = teleportScale;
+
+		root.reinitialize();
+		pool.invoke(root);
+
+		double sum = 0;
+		for (BlockTask block : blocks) {
+			sum += block.residual;
+		}
+		return Math.sqrt(sum);
+	}
+
+
+	/**
+	 * Shut down the thread pool.
+	 */
+	public void shutDown() {
+		pool.shutdown();
+	}
+
+
+	/**
+	 * Forks all the block tasks and waits for them.
+	 */
+	private class RootTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			for (BlockTask block : blocks) {
+				block.reinitialize();
+			}
+			invokeAll(blocks);
+		}
+	}
+
+
+	/**
+	 * Updates rows [from, to) and their partial squared residual.
+	 */
+	private class BlockTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to;
+		private double residual;
+
+		BlockTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			residual = linkGraph.iterate(previousPr, vectorPr, vectorD, parameterD, teleportScale, from, to);
+		}
+	}
+
+}
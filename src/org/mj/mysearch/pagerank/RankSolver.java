@@ -0,0 +1,36 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+
+/**
+ * Iteration schemes of PageRank.iterRun()
+ */
+public enum RankSolver {
+	
+	/** plain power iteration, new vector from the previous one, runs in parallel */
+	JACOBI,
+	
+	/** in-place sweeps, rows use the ranks already updated in the same sweep, single threaded */
+	GAUSS_SEIDEL,
+	
+	/** power iteration with a component-wise Aitken extrapolation every extrapolationPeriod iterations */
+	AITKEN,
+	
+	/** power iteration with a quadratic extrapolation (Kamvar et al.) every extrapolationPeriod iterations */
+	QUADRATIC,
+	
+	/** power iteration that stops recomputing the pages which already converged, single threaded */
+	ADAPTIVE;
+	
+	
+	/**
+	 * Parse a command line name, e.g. "gauss-seidel"
+	 */
+	public static RankSolver parse(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+
+}
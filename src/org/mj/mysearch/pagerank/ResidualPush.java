@@ -0,0 +1,158 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Delta propagation (Gauss-Southwell style) PageRank solver.
+ *
+ * Solves Pr = d * (A x Pr + danglingMass * D) + (1 - d) * D starting from a warm
+ * vector, for instance the scores of the last run. It keeps the residual
+ * r = d * (A x Pr + danglingMass * D) + (1 - d) * D - Pr and only pushes from the
+ * nodes whose residual is above the tolerance: page j adds r[j] to its own rank
+ * and sends d * r[j] / outDeg(j) to each page it links to.
+ *
+ * When only a small part of the graph changed since the scores were computed,
+ * the residual is only large around the changed pages and the work after the
+ * first residual pass follows the size of the change, not the size of the graph.
+ */
+public class ResidualPush {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResidualPush.class);
+
+	private final LinkGraph linkGraph;
+	private final int numOfNodes;
+	private final int[] outOffsets, targets;
+	private final double[] invOutDegs;
+
+	private final double[] residual;
+	private final int[] queue;
+	private final boolean[] queued;
+	private int head, size;
+
+
+	/**
+	 * constructor class, builds the outgoing adjacency (transpose of linkGraph)
+	 * @param linkGraph
+	 */
+	public ResidualPush(LinkGraph linkGraph) {
+
+		this.linkGraph = linkGraph;
+		this.numOfNodes = linkGraph.getNumOfNodes();
+		this.invOutDegs = linkGraph.getInvOutDegs();
+
+		int[] offsets = linkGraph.getOffsets();
+		int[] sources = linkGraph.getSources();
+
+		outOffsets = new int[numOfNodes + 1];
+		for (int k = 0; k < sources.length; k++) {
+			outOffsets[sources[k] + 1]++;
+		}
+		for (int j = 0; j < numOfNodes; j++) {
+			outOffsets[j + 1] += outOffsets[j];
+		}
+
+		targets = new int[sources.length];
+		int[] fill = new int[numOfNodes];
+		for (int i = 0; i < numOfNodes; i++) {
+			for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+				int j = sources[k];
+				targets[outOffsets[j] + fill[j]++] = i;
+			}
+		}
+
+		residual = new double[numOfNodes];
+		queue = new int[numOfNodes];
+		queued = new boolean[numOfNodes];
+	}
+
+
+	/**
+	 * Push residuals until every |r[i]| <= tolerance.
+	 *
+	 * @param vectorPr warm start rank vector, updated in place
+	 * @param vectorD teleport distribution, sums to 1
+	 * @param parameterD damping factor
+	 * @param tolerance per node residual bound
+	 * @param maxPushes give up after this many pushes
+	 * @return number of pushes
+	 */
+	public long run(double[] vectorPr, double[] vectorD, double parameterD, double tolerance, long maxPushes) {
+
+		// r = one Jacobi step from vectorPr, minus vectorPr
+		double teleportScale = (1 - parameterD) + parameterD * linkGraph.danglingMass(vectorPr);
+		linkGraph.iterate(vectorPr, residual, vectorD, parameterD, teleportScale, 0, numOfNodes);
+
+		head = 0;
+		size = 0;
+		for (int i = 0; i < numOfNodes; i++) {
+			residual[i] -= vectorPr[i];
+			queued[i] = false;
+			offer(i, tolerance);
+		}
+		logger.info("{} of {} pages above tolerance {}", size, numOfNodes, tolerance);
+
+		long pushes = 0;
+		double danglingPending = 0;
+
+		while (pushes < maxPushes) {
+
+			if (size == 0) {
+				// rank pushed into dangling nodes is spread along D in one O(N) pass, only when everything else settled
+				if (Math.abs(danglingPending) <= tolerance) break;
+				for (int i = 0; i < numOfNodes; i++) {
+					residual[i] += danglingPending * vectorD[i];
+					offer(i, tolerance);
+				}
+				danglingPending = 0;
+				if (size == 0) break;
+			}
+
+			int j = queue[head];
+			head = head + 1 == numOfNodes ? 0 : head + 1;
+			size--;
+			queued[j] = false;
+
+			double r = residual[j];
+			residual[j] = 0;
+			vectorPr[j] += r;
+			pushes++;
+
+			if (invOutDegs[j] == 0) {
+				danglingPending += parameterD * r;
+				continue;
+			}
+
+			double share = parameterD * r * invOutDegs[j];
+			for (int k = outOffsets[j], end = outOffsets[j + 1]; k < end; k++) {
+				int i = targets[k];
+				residual[i] += share;
+				offer(i, tolerance);
+			}
+		}
+
+		if (pushes >= maxPushes) {
+			logger.warn("Residual push stopped after {} pushes with {} pages above tolerance.", pushes, size);
+		}
+		return pushes;
+	}
+
+
+	/**
+	 * Queue node i if its residual is above tolerance and it is not queued yet.
+	 */
+	private void offer(int i, double tolerance) {
+		if (!queued[i] && Math.abs(residual[i]) > tolerance) {
+			int tail = head + size;
+			queue[tail >= numOfNodes ? tail - numOfNodes : tail] = i;
+			queued[i] = true;
+			size++;
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.pagerank;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+
+/**
+ * PageRank scores in a read only file, served from a memory mapped buffer.
+ *
+ * Layout: int magic, int version, int numOfDocs, int padding, double maxScore,
+ * numOfDocs x int docId (sorted), padded to 8 bytes, numOfDocs x double score,
+ * then the max score of every RANGE_SIZE consecutive docs.
+ *
+ * getScore() binary searches the mapped docIds, nothing is loaded on the heap.
+ * MaxScoreCursor bounds the scores of docId ranges for query pruning.
+ */
+public class ScoreSegment {
+
+	private static final int MAGIC = 0x4d535052;	// "MSPR"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+
+	/** docs per stored max score */
+	private static final int RANGE_SIZE = 64;
+	/** getMaxScore() falls back to maxScore above this many ranges */
+	private static final int MAX_RANGES_SCANNED = 32;
+
+	private final File file;
+	private final int numOfDocs;
+	private final IntBuffer docIds;
+	private final DoubleBuffer scores;
+	private final DoubleBuffer rangeMaxScores;
+	private final double maxScore;
+	private final long generation;
+
+
+	/**
+	 * Map the score file.
+	 * @param file
+	 */
+	public ScoreSegment(File file) throws IOException {
+
+		this.file = file;
+		this.generation = file.lastModified();
+
+		ByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to be mapped in one buffer");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " score file: " + file);
+		}
+		numOfDocs = buffer.getInt(8);
+		maxScore = buffer.getDouble(16);
+		if (numOfDocs < 0 || buffer.limit() < scoresStart(numOfDocs) + 8L * (numOfDocs + numOfRanges(numOfDocs))) {
+			throw new IOException("Truncated score file: " + file);
+		}
+
+		int scoresStart = scoresStart(numOfDocs);
+		int rangesStart = scoresStart + 8 * numOfDocs;
+		buffer.limit(HEADER_SIZE + 4 * numOfDocs).position(HEADER_SIZE);
+		docIds = buffer.slice().asIntBuffer();
+		buffer.limit(rangesStart).position(scoresStart);
+		scores = buffer.slice().asDoubleBuffer();
+		buffer.limit(rangesStart + 8 * numOfRanges(numOfDocs)).position(rangesStart);
+		rangeMaxScores = buffer.slice().asDoubleBuffer();
+	}
+
+
+	private static int numOfRanges(int numOfDocs) {
+		return (numOfDocs + RANGE_SIZE - 1) / RANGE_SIZE;
+	}
+
+
+	private static int scoresStart(int numOfDocs) {
+		return HEADER_SIZE + 4 * (numOfDocs + (numOfDocs & 1));
+	}
+
+
+	/**
+	 * Write a score file.
+	 * @param file
+	 * @param docIds
+	 * @param scores score of each docId
+	 */
+	public static void write(File file, int[] docIds, double[] scores) throws IOException {
+
+		long[] order = new long[docIds.length];
+		for (int k = 0; k < docIds.length; k++) {
+			order[k] = ((long) docIds[k] << 32) | k;
+		}
+		Arrays.sort(order);
+
+		double maxScore = 0;
+		double[] rangeMaxScores = new double[numOfRanges(docIds.length)];
+		for (int k = 0; k < order.length; k++) {
+			double score = scores[(int) order[k]];
+			maxScore = Math.max(maxScore, score);
+			rangeMaxScores[k / RANGE_SIZE] = Math.max(rangeMaxScores[k / RANGE_SIZE], score);
+		}
+
+		// written aside and renamed, a query process that has the former file mapped keeps reading it whole
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(docIds.length);
+			out.writeInt(0);
+			out.writeDouble(maxScore);
+			for (long entry : order) {
+				out.writeInt((int) (entry >>> 32));
+			}
+			if ((docIds.length & 1) != 0) {
+				out.writeInt(0);
+			}
+			for (long entry : order) {
+				out.writeDouble(scores[(int) entry]);
+			}
+			for (double rangeMaxScore : rangeMaxScores) {
+				out.writeDouble(rangeMaxScore);
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * PageRank score of docId
+	 * @param docId
+	 * @param defaultScore returned if docId has no score
+	 * @return
+	 */
+	public double getScore(int docId, double defaultScore) {
+		int k = search(docId);
+		return k < 0 ? defaultScore : scores.get(k);
+	}
+
+
+	/**
+	 * Index of docId, or -(insertion point) - 1 like Arrays.binarySearch
+	 */
+	private int search(int docId) {
+		int low = 0, high = numOfDocs - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midDocId = docIds.get(mid);
+			if (midDocId < docId) {
+				low = mid + 1;
+			} else if (midDocId > docId) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+
+	/**
+	 * Cursor over the max scores of the ranges of RANGE_SIZE docs, for a query
+	 * bounding the scores of docId ranges in increasing order.
+	 */
+	public MaxScoreCursor maxScoreCursor() {
+		return new MaxScoreCursor();
+	}
+
+
+	/**
+	 * Bounds docId ranges from the max scores of the ranges they cover. The ranges
+	 * must come with a non decreasing fromDocId, the cursor only moves forward, so
+	 * bounding all the ranges of a query costs one pass over the range maxima at most.
+	 */
+	public class MaxScoreCursor {
+
+		private int range;
+
+		/**
+		 * Upper bound of the scores of docIds from (inclusive) to to (inclusive),
+		 * maxScore for very long ranges.
+		 */
+		public double getMaxScore(int fromDocId, int toDocId) {
+
+			int numOfRanges = rangeMaxScores.limit();
+			while (range + 1 < numOfRanges && docIds.get((range + 1) * RANGE_SIZE) <= fromDocId) {
+				range++;
+			}
+			if (range >= numOfRanges) {
+				return 0;
+			}
+
+			double max = rangeMaxScores.get(range);
+			for (int next = range + 1, scanned = 0; next < numOfRanges && docIds.get(next * RANGE_SIZE) <= toDocId; next++) {
+				if (++scanned > MAX_RANGES_SCANNED) {
+					return maxScore;
+				}
+				max = Math.max(max, rangeMaxScores.get(next));
+			}
+			return max;
+		}
+	}
+
+
+	/**
+	 * Largest score of the file
+	 */
+	public double getMaxScore() {
+		return maxScore;
+	}
+
+
+	public int getNumOfDocs() {
+		return numOfDocs;
+	}
+
+
+	/**
+	 * Identifies the published scores, the modification time of the file
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+
+	public File getFile() {
+		return file;
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.List;
+
+import org.mj.mysearch.revindexer.DocLengths;
+import org.mj.mysearch.revindexer.SegmentReader;
+
+
+/**
+ * Collection statistics of the BM25 part of the score over all the shards of an index:
+ * number of documents, average doc length, and document frequency of a term summed
+ * over the shard dictionaries. Scored with them, a document gets the same score in
+ * its shard as in a single segment of the whole index.
+ */
+class IndexStats {
+	
+	private final List<SegmentReader> segments;
+	private final int numOfDocs;
+	private final double avgDocLength;
+	
+	
+	/**
+	 * constructor class
+	 * @param segments shard segments
+	 * @param docLengths doc lengths of each shard segment
+	 */
+	IndexStats(List<SegmentReader> segments, List<DocLengths> docLengths) {
+		this.segments = segments;
+		
+		int numOfDocs = 0;
+		long totalLength = 0;
+		for (DocLengths lengths : docLengths) {
+			numOfDocs += lengths.getNumOfDocs();
+			totalLength += lengths.getTotalLength();
+		}
+		this.numOfDocs = numOfDocs;
+		this.avgDocLength = numOfDocs == 0 ? 0 : (double) totalLength / numOfDocs;
+	}
+	
+	
+	int getNumOfDocs() {
+		return numOfDocs;
+	}
+	
+	
+	double getAvgDocLength() {
+		return avgDocLength;
+	}
+	
+	
+	/**
+	 * Number of documents of all the shards containing term
+	 */
+	int docFreq(String term) {
+		int docFreq = 0;
+		for (SegmentReader segment : segments) {
+			docFreq += segment.docFreq(term);
+		}
+		return docFreq;
+	}
+
+}
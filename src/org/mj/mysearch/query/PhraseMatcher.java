@@ -0,0 +1,110 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+
+/**
+ * Checks a phrase on the document all its terms are on, from their positions.
+ * 
+ * Term i of the phrase sits offsets[i] tokens after the first one (the dropped
+ * stopwords keep their place, see Analyzer.position()). Once its offset is taken
+ * off, every occurrence of term i points at a possible start of the phrase. The
+ * phrase matches if one occurrence of each term points at starts at most slop apart,
+ * all at the same start for an exact phrase (slop 0). The smallest range holding
+ * one start of each term is found by moving forward the term with the smallest
+ * start, one pass over the positions.
+ * 
+ * The slots of a repeated term walk the positions of the same scorer and must take
+ * distinct occurrences. Swapping two occurrences of a term between its slots never
+ * widens the range of starts, so the slots of a term take its occurrences in phrase
+ * order and a slot is pushed past the one of the previous slot of the same term.
+ * 
+ * The positions are only read here, for the documents that hold every term of the
+ * phrase and could still make it to the top k.
+ */
+class PhraseMatcher {
+	
+	private final TermScorer[] scorers;
+	private final int[] offsets;
+	private final int slop;
+	private final int[] next;
+	// next slot of the same term, -1 for none
+	private final int[] repeat;
+	
+	
+	/**
+	 * constructor class
+	 * @param scorers scorer of each term of the phrase, the same scorer for a repeated term
+	 * @param offsets position of each term from the first one
+	 * @param slop largest distance between the starts
+	 */
+	PhraseMatcher(TermScorer[] scorers, int[] offsets, int slop) {
+		this.scorers = scorers;
+		this.offsets = offsets;
+		this.slop = slop;
+		this.next = new int[scorers.length];
+		this.repeat = new int[scorers.length];
+		for (int i = 0; i < scorers.length; i++) {
+			repeat[i] = -1;
+			for (int j = i + 1; j < scorers.length && repeat[i] < 0; j++) {
+				if (scorers[j] == scorers[i]) {
+					repeat[i] = j;
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * The phrase appears in the document every scorer is on.
+	 */
+	boolean matches() {
+		
+		int n = scorers.length;
+		for (int i = 0; i < n; i++) {
+			next[i] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			if (repeat[i] >= 0 && !pushRepeats(i)) {
+				return false;
+			}
+		}
+		
+		while (true) {
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, minTerm = 0;
+			for (int i = 0; i < n; i++) {
+				int start = scorers[i].positions()[next[i]] - offsets[i];
+				if (start < min) {
+					min = start;
+					minTerm = i;
+				}
+				max = Math.max(max, start);
+			}
+			if (max - min <= slop) {
+				return true;
+			}
+			if (++next[minTerm] == scorers[minTerm].postings.tf() || !pushRepeats(minTerm)) {
+				return false;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Move the next slots of the term of slot i past the occurrence it takes, false if the
+	 * term has no occurrence left for one of them.
+	 */
+	private boolean pushRepeats(int i) {
+		int tf = scorers[i].postings.tf();
+		for (int j = repeat[i]; j >= 0 && next[j] <= next[i]; i = j, j = repeat[j]) {
+			next[j] = next[i] + 1;
+			if (next[j] == tf) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
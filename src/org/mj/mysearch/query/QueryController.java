@@ -0,0 +1,317 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.mj.mysearch.pagerank.ScoreSegment;
+import org.mj.mysearch.revindexer.DocLengths;
+import org.mj.mysearch.revindexer.IndexManifest;
+import org.mj.mysearch.revindexer.PostingsEnum;
+import org.mj.mysearch.revindexer.RevIndexer;
+import org.mj.mysearch.revindexer.SegmentReader;
+import org.mj.mysearch.revindexer.Tombstones;
+import org.mj.mysearch.webcrawler.Analyzer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class QueryController {
+	
+	private static final Logger logger = LoggerFactory.getLogger(QueryController.class);
+	
+	private static final int CACHE_STRIPES = 16;
+	private static final int STATS_PERIOD = 1000;
+	private static final int OPEN_ATTEMPTS = 3;
+	
+	
+	public static void main(String[] args) throws IOException {
+		
+		Retrieval retrieval = Retrieval.BLOCK_MAX_WAND;
+		boolean compare = false;
+		long resultCacheMB = 64, postingsCacheMB = 256;
+		List<String> positional = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("--retrieval=")) {
+				// exhaustive, wand or block-max-wand
+				retrieval = Retrieval.parse(arg.substring("--retrieval=".length()));
+			} else if ("--compare".equals(arg)) {
+				// also run every query exhaustively and check the results are the same
+				compare = true;
+			} else if (arg.startsWith("--result-cache=")) {
+				// MB of results cached, 0 for none
+				resultCacheMB = Long.parseLong(arg.substring("--result-cache=".length()));
+			} else if (arg.startsWith("--postings-cache=")) {
+				// MB of posting lists cached, 0 for none
+				postingsCacheMB = Long.parseLong(arg.substring("--postings-cache=".length()));
+			} else {
+				positional.add(arg);
+			}
+		}
+		args = positional.toArray(new String[positional.size()]);
+		
+		if (args.length < 1) {
+			logger.info("Need parameters: ");
+			logger.info("\t segmentDir (index segment written by RevIndexerController --segment=dir, its shards or its incremental segments)");
+			logger.info("\t [scoreFile] (PrScoreDB.bin written by PageRankController --scores=dir)");
+			logger.info("\t [k] (number of results, default 10)");
+			logger.info("\t [--retrieval=exhaustive|wand|block-max-wand] [--compare]");
+			logger.info("\t [--result-cache=MB] [--postings-cache=MB] (default 64 and 256, 0 for none)");
+			return;
+		}
+		
+		File segmentDir = new File(args[0]);
+		File scoreFile = args.length > 1 ? new File(args[1]) : null;
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		
+		SegmentedLruCache<String, List<SearchResult>> resultCache = resultCacheMB > 0
+				? new SegmentedLruCache<String, List<SearchResult>>(resultCacheMB << 20, CACHE_STRIPES) : null;
+		SegmentedLruCache<String, PostingsEnum> postingsCache = postingsCacheMB > 0
+				? new SegmentedLruCache<String, PostingsEnum>(postingsCacheMB << 20, CACHE_STRIPES) : null;
+		
+		Searcher engine = null;
+		// generation of the files that could not be opened, not retried until a new one is published
+		Long failedGeneration = null;
+		UrlLookup urlLookup = new UrlLookup();
+		
+		// one query per line on the standard input
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"))) {
+			String query;
+			long numOfQueries = 0;
+			while ((query = in.readLine()) != null) {
+				
+				// reopen the index and scores once new ones are published, the caches follow the generation
+				Long published = engine == null ? null : publishedGeneration(segmentDir, scoreFile);
+				if (engine == null || published != null && published != engine.getGeneration() 
+						&& !published.equals(failedGeneration)) {
+					Searcher opened = null;
+					try {
+						opened = open(segmentDir, scoreFile);
+					} catch (IOException | RuntimeException e) {
+						if (engine == null) {
+							throw e;
+						}
+						failedGeneration = published;
+						logger.error("Cannot open the new index, still serving generation {}: {}", engine.getGeneration(), 
+								e.getMessage());
+					}
+					if (opened != null) {
+						failedGeneration = null;
+						shutDown(engine);
+						engine = opened;
+						engine.setRetrieval(retrieval);
+						engine.setResultCache(resultCache);
+						engine.setPostingsCache(postingsCache);
+						logger.info("Serving index generation {}.", engine.getGeneration());
+					}
+				}
+				
+				long start = System.nanoTime();
+				List<SearchResult> results = engine.search(query, k);
+				long searchTime = System.nanoTime() - start;
+				long numOfScoredDocs = engine.getNumOfScoredDocs();
+				
+				if (compare) {
+					engine.setRetrieval(Retrieval.EXHAUSTIVE);
+					engine.setResultCache(null);
+					start = System.nanoTime();
+					List<SearchResult> expected = engine.search(query, k);
+					long exhaustiveTime = System.nanoTime() - start;
+					engine.setRetrieval(retrieval);
+					engine.setResultCache(resultCache);
+					
+					logger.info("{}: {} docs scored in {} ms, exhaustive: {} docs in {} ms.", retrieval, numOfScoredDocs,
+							searchTime / 1e6, engine.getNumOfScoredDocs(), exhaustiveTime / 1e6);
+					if (!sameResults(results, expected)) {
+						logger.error("{} and exhaustive results differ for \"{}\"", retrieval, query);
+					}
+				}
+				
+				for (SearchResult result : urlLookup.resolve(results)) {
+					System.out.println(result);
+				}
+				logger.info("{} results for \"{}\" in {} ms.", results.size(), query, searchTime / 1e6);
+				
+				if (++numOfQueries % STATS_PERIOD == 0) {
+					logCacheStats(resultCache, postingsCache);
+				}
+			}
+		} finally {
+			urlLookup.close();
+			shutDown(engine);
+		}
+		logCacheStats(resultCache, postingsCache);
+	}
+	
+	
+	/**
+	 * Search segmentDir, all its shards if it holds the shards of an index, or the segments
+	 * of its latest manifest if it is incrementally updated.
+	 */
+	private static Searcher open(File segmentDir, File scoreFile) throws IOException {
+		
+		ScoreSegment prScores = scoreFile != null ? new ScoreSegment(scoreFile) : null;
+		if (IndexManifest.latestGeneration(segmentDir) >= 0) {
+			for (int attempt = 1; ; attempt++) {
+				try {
+					return openManifest(segmentDir, prScores);
+				} catch (IOException e) {
+					// the files of a manifest are deleted two generations later, it was overtaken meanwhile
+					if (attempt == OPEN_ATTEMPTS) {
+						throw e;
+					}
+					logger.warn("Index {} changed while opening it, retrying.", segmentDir);
+				}
+			}
+		}
+		
+		List<File> shardDirs = RevIndexer.shardDirs(segmentDir);
+		List<File> dirs = shardDirs.isEmpty() ? Collections.singletonList(segmentDir) : shardDirs;
+		for (int attempt = 1; ; attempt++) {
+			// the files of a segment are only consistent if its generation was published and
+			// did not move while they were opened
+			long generation = segmentsGeneration(dirs);
+			Searcher engine = openSegments(segmentDir, shardDirs, prScores);
+			if (generation >= 0 && generation == segmentsGeneration(dirs)) {
+				return engine;
+			}
+			if (attempt == OPEN_ATTEMPTS) {
+				logger.warn("Index {} is being written, serving it as it is.", segmentDir);
+				return engine;
+			}
+			shutDown(engine);
+			logger.warn("Index {} changed while opening it, retrying.", segmentDir);
+		}
+	}
+	
+	
+	/**
+	 * Search the segment segmentDir, or its shards.
+	 */
+	private static Searcher openSegments(File segmentDir, List<File> shardDirs, ScoreSegment prScores) throws IOException {
+		
+		if (shardDirs.isEmpty()) {
+			return new QueryEngine(new SegmentReader(segmentDir), new DocLengths(segmentDir), prScores, 
+					Analyzer.fromSystemProperties());
+		}
+		
+		List<QueryEngine> shards = new ArrayList<>();
+		for (File shardDir : shardDirs) {
+			shards.add(new QueryEngine(new SegmentReader(shardDir), new DocLengths(shardDir), prScores, 
+					Analyzer.fromSystemProperties()));
+		}
+		logger.info("Searching {} shards of {}.", shards.size(), segmentDir);
+		return new ShardedQueryEngine(shards, Math.min(shards.size(), Runtime.getRuntime().availableProcessors()));
+	}
+	
+	
+	/**
+	 * Search the segments of the latest manifest of indexDir, without their deleted documents.
+	 */
+	private static Searcher openManifest(File indexDir, ScoreSegment prScores) throws IOException {
+		
+		IndexManifest manifest = IndexManifest.latest(indexDir);
+		if (manifest.getSegments().isEmpty()) {
+			throw new IOException("Index " + indexDir + " has no segment yet");
+		}
+		
+		List<QueryEngine> segments = new ArrayList<>();
+		for (IndexManifest.Entry entry : manifest.getSegments()) {
+			File dir = new File(indexDir, entry.name);
+			QueryEngine segment = new QueryEngine(new SegmentReader(dir), new DocLengths(dir), prScores, 
+					Analyzer.fromSystemProperties());
+			if (entry.tombstones != null) {
+				segment.setDeletes(Tombstones.read(new File(dir, entry.tombstones)));
+			}
+			segments.add(segment);
+		}
+		logger.info("Searching {} segments of {} at generation {}.", segments.size(), indexDir, 
+				manifest.getGeneration());
+		return new ShardedQueryEngine(segments, Math.min(segments.size(), Runtime.getRuntime().availableProcessors()),
+				QueryEngine.generation(manifest.getGeneration(), prScores == null ? 0 : prScores.getGeneration()));
+	}
+	
+	
+	private static void shutDown(Searcher engine) {
+		if (engine instanceof ShardedQueryEngine) {
+			((ShardedQueryEngine) engine).shutDown();
+		}
+	}
+	
+	
+	/**
+	 * Generation an engine opening the segment (or its shards), the score file or the latest manifest
+	 * would have now, null while a segment is being written until its generation is published
+	 * (see SegmentWriter).
+	 */
+	private static Long publishedGeneration(File segmentDir, File scoreFile) {
+		
+		// score files are renamed in place once written, see ScoreSegment.write()
+		long scoreGeneration = scoreFile == null ? 0 : scoreFile.lastModified();
+		long manifestGeneration = IndexManifest.latestGeneration(segmentDir);
+		if (manifestGeneration >= 0) {
+			return QueryEngine.generation(manifestGeneration, scoreGeneration);
+		}
+		
+		List<File> shardDirs = RevIndexer.shardDirs(segmentDir);
+		if (segmentsGeneration(shardDirs.isEmpty() ? Collections.singletonList(segmentDir) : shardDirs) < 0) {
+			return null;
+		}
+		if (shardDirs.isEmpty()) {
+			return QueryEngine.generation(SegmentReader.generation(segmentDir), scoreGeneration);
+		}
+		
+		// as in ShardedQueryEngine
+		long generation = 0;
+		for (File shardDir : shardDirs) {
+			generation = 31 * generation + QueryEngine.generation(SegmentReader.generation(shardDir), scoreGeneration);
+		}
+		return generation;
+	}
+	
+	
+	/**
+	 * Combined generation of the segments in dirs, -1 if one of them is being published
+	 */
+	private static long segmentsGeneration(List<File> dirs) {
+		long generation = 0;
+		for (File dir : dirs) {
+			long segmentGeneration = SegmentReader.generation(dir);
+			if (segmentGeneration < 0) {
+				return -1;
+			}
+			generation = 31 * generation + segmentGeneration;
+		}
+		return generation & Long.MAX_VALUE;
+	}
+	
+	
+	private static void logCacheStats(SegmentedLruCache<?, ?> resultCache, SegmentedLruCache<?, ?> postingsCache) {
+		if (resultCache != null) {
+			logger.info("Result cache: {}", resultCache);
+		}
+		if (postingsCache != null) {
+			logger.info("Postings cache: {}", postingsCache);
+		}
+	}
+	
+	
+	private static boolean sameResults(List<SearchResult> results, List<SearchResult> expected) {
+		if (results.size() != expected.size()) {
+			return false;
+		}
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i).docId != expected.get(i).docId || results.get(i).score != expected.get(i).score) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
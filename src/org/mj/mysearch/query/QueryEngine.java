@@ -0,0 +1,679 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mj.mysearch.pagerank.ScoreSegment;
+import org.mj.mysearch.revindexer.DocLengths;
+import org.mj.mysearch.revindexer.PostingsEnum;
+import org.mj.mysearch.revindexer.SegmentReader;
+import org.mj.mysearch.revindexer.Tombstones;
+import org.mj.mysearch.webcrawler.Analyzer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Ranked retrieval over an index segment.
+ * 
+ * The query goes through the same Analyzer as the crawled pages, then the posting
+ * lists of its terms are traversed document at a time: the smallest current docId
+ * of all lists is scored completely, every list on it moves forward, and the
+ * score is offered to a TopDocs of size k. Only k documents are ever kept.
+ * By default (Block-Max) WAND skips the documents that cannot make it to the top k,
+ * see wand(), setRetrieval(Retrieval.EXHAUSTIVE) scores them all.
+ * 
+ * score(doc) = sum over the query terms t of
+ *     qtf(t) * idf(t) * tf * (k1 + 1) / (tf + k1 * (1 - b + b * docLength / avgDocLength))
+ *   + prWeight * log(1 + numOfDocs * pr_score(doc))
+ * 
+ * with idf(t) = log(1 + (N - df + 0.5) / (df + 0.5)) (BM25). The PageRank part is 0 for
+ * an average page and grows with the log of its rank, so it orders pages of close text
+ * scores without drowning a strong text match.
+ * 
+ * A quoted part of the query is a phrase: "new york" only matches the pages where york
+ * directly follows new, "new york"~3 the pages where they are at most 3 positions off.
+ * Every phrase must match, its terms are scored like the other ones. Phrase queries
+ * go through conjunctive() whatever the retrieval, the positions are only read for
+ * the documents holding all the phrase terms, see PhraseMatcher.
+ * 
+ * The deleted documents of the segment (setDeletes()) are skipped when they come up,
+ * they still count in the BM25 statistics until a merge drops them.
+ * 
+ * Not thread safe (the Analyzer keeps its token state), use one QueryEngine per
+ * thread, they can share the segment, doc lengths and score files.
+ */
+public class QueryEngine implements Searcher {
+	
+	private static final Logger logger = LoggerFactory.getLogger(QueryEngine.class);
+	
+	public static final double DEFAULT_K1 = 1.2, DEFAULT_B = 0.75, DEFAULT_PR_WEIGHT = 1.0;
+	
+	/** "phrase" or "phrase"~slop, the closing quote can be missing at the end of the query */
+	private static final Pattern PHRASE = Pattern.compile("\"([^\"]*)(?:\"(?:~(\\d+))?|$)");
+	
+	private final SegmentReader segment;
+	private final DocLengths docLengths;
+	private final ScoreSegment prScores;
+	private final Analyzer analyzer;
+	
+	private double k1 = DEFAULT_K1, b = DEFAULT_B, prWeight = DEFAULT_PR_WEIGHT;
+	private Retrieval retrieval = Retrieval.BLOCK_MAX_WAND;
+	private long numOfScoredDocs;
+	
+	private long generation;
+	private SegmentedLruCache<String, List<SearchResult>> resultCache;
+	private SegmentedLruCache<String, PostingsEnum> postingsCache;
+	private final String postingsKeyPrefix;
+	
+	/** statistics of the whole index when the segment is one of its shards */
+	private IndexStats indexStats;
+	
+	private Tombstones deletes;
+	
+	
+	/**
+	 * constructor class
+	 * @param segment
+	 * @param docLengths doc lengths of the segment
+	 * @param prScores PageRank scores, null to rank on the text only
+	 * @param analyzer
+	 */
+	public QueryEngine(SegmentReader segment, DocLengths docLengths, ScoreSegment prScores, Analyzer analyzer) {
+		this.segment = segment;
+		this.docLengths = docLengths;
+		this.prScores = prScores;
+		this.analyzer = analyzer;
+		this.generation = generation(segment.getGeneration(), prScores == null ? 0 : prScores.getGeneration());
+		// the shards of an index share the postings cache
+		this.postingsKeyPrefix = segment.getDir().getPath() + '|';
+	}
+	
+	
+	/**
+	 * @param k1 tf saturation
+	 * @param b length normalization, 0 (none) to 1 (full)
+	 */
+	@Override
+	public void setBm25(double k1, double b) {
+		this.k1 = k1;
+		this.b = b;
+	}
+	
+	
+	/**
+	 * @param prWeight weight of the PageRank part of the score, 0 to ignore it
+	 */
+	@Override
+	public void setPrWeight(double prWeight) {
+		this.prWeight = prWeight;
+	}
+	
+	
+	/**
+	 * @param retrieval posting traversal, EXHAUSTIVE to check the pruned ones
+	 */
+	@Override
+	public void setRetrieval(Retrieval retrieval) {
+		this.retrieval = retrieval;
+	}
+	
+	
+	/**
+	 * Cache the results by normalized query (sorted terms) and k, null for no cache.
+	 * The cache can be shared by the QueryEngines of several threads.
+	 * @param resultCache
+	 */
+	@Override
+	public void setResultCache(SegmentedLruCache<String, List<SearchResult>> resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	
+	/**
+	 * Cache the posting lists by term, null for no cache. A list is first cached as read from
+	 * the segment (its skip entries), a second use decodes its postings in the cache.
+	 * The cache can be shared by the QueryEngines of several threads.
+	 * @param postingsCache
+	 */
+	@Override
+	public void setPostingsCache(SegmentedLruCache<String, PostingsEnum> postingsCache) {
+		this.postingsCache = postingsCache;
+	}
+	
+	
+	/**
+	 * Generation of an engine serving a segment and a score file of the given generations
+	 */
+	static long generation(long segmentGeneration, long scoreGeneration) {
+		return 31 * segmentGeneration + scoreGeneration;
+	}
+	
+	
+	/**
+	 * Index generation of the segment and score files, the caches drop the entries of other generations
+	 */
+	@Override
+	public long getGeneration() {
+		return generation;
+	}
+	
+	
+	/**
+	 * Make this engine a shard of an index: the BM25 statistics are the ones of the whole index,
+	 * and the cache entries follow the generation of the whole index.
+	 */
+	void setShardOf(IndexStats indexStats, long generation) {
+		this.indexStats = indexStats;
+		this.generation = generation;
+	}
+	
+	
+	/**
+	 * Skip the documents deleted from the segment, null for none (see IndexUpdater)
+	 * @param deletes tombstones of the segment, by DocLengths ordinal
+	 */
+	public void setDeletes(Tombstones deletes) {
+		this.deletes = deletes;
+	}
+	
+	
+	SegmentReader getSegment() {
+		return segment;
+	}
+	
+	
+	DocLengths getDocLengths() {
+		return docLengths;
+	}
+	
+	
+	/**
+	 * Number of documents fully scored by the last search()
+	 */
+	@Override
+	public long getNumOfScoredDocs() {
+		return numOfScoredDocs;
+	}
+	
+	
+	/**
+	 * Top k documents of query, best first, urls not resolved.
+	 * @param query
+	 * @param k
+	 * @return
+	 */
+	@Override
+	public List<SearchResult> search(String query, int k) {
+		
+		// repeated query terms are scored once, weighted by their count
+		Map<String, Integer> queryTerms = new LinkedHashMap<>();
+		List<Phrase> phrases = parse(query, queryTerms);
+		
+		String cacheKey = null;
+		if (resultCache != null) {
+			cacheKey = cacheKey(queryTerms, phrases, k);
+			List<SearchResult> cached = resultCache.get(cacheKey, generation);
+			if (cached != null) {
+				numOfScoredDocs = 0;
+				return new ArrayList<>(cached);
+			}
+		}
+		
+		double numOfDocs = indexStats != null ? indexStats.getNumOfDocs() : docLengths.getNumOfDocs();
+		double avgDocLength = Math.max(1, indexStats != null ? indexStats.getAvgDocLength() : docLengths.getAvgLength());
+		List<TermScorer> scorers = new ArrayList<>(queryTerms.size());
+		Map<String, TermScorer> termScorers = new LinkedHashMap<>();
+		
+		for (Map.Entry<String, Integer> queryTerm : queryTerms.entrySet()) {
+			PostingsEnum postings = postings(queryTerm.getKey());
+			if (postings == null) {
+				continue;
+			}
+			double docFreq = indexStats != null ? indexStats.docFreq(queryTerm.getKey()) : postings.docFreq();
+			double idf = Math.log(1 + (numOfDocs - docFreq + 0.5) / (docFreq + 0.5));
+			TermScorer scorer = new TermScorer(postings, queryTerm.getValue() * idf * (k1 + 1), k1, b, avgDocLength);
+			scorers.add(scorer);
+			termScorers.put(queryTerm.getKey(), scorer);
+		}
+		
+		TopDocs topDocs = new TopDocs(k);
+		numOfScoredDocs = 0;
+		
+		if (!phrases.isEmpty()) {
+			conjunctive(scorers.toArray(new TermScorer[scorers.size()]), termScorers, phrases, topDocs);
+		} else {
+			switch (retrieval) {
+			case EXHAUSTIVE:
+				exhaustive(scorers.toArray(new TermScorer[scorers.size()]), topDocs);
+				break;
+			case WAND:
+				wand(scorers.toArray(new TermScorer[scorers.size()]), topDocs, false);
+				break;
+			case BLOCK_MAX_WAND:
+				wand(scorers.toArray(new TermScorer[scorers.size()]), topDocs, true);
+				break;
+			}
+		}
+		
+		List<SearchResult> results = topDocs.results();
+		if (resultCache != null) {
+			resultCache.put(cacheKey, new ArrayList<>(results), 64 + 2 * cacheKey.length() + 48 * results.size(), generation);
+		}
+		return results;
+	}
+	
+	
+	/**
+	 * Analyze query: the terms of the phrases and of the rest of the query are counted into
+	 * queryTerms, in order.
+	 * @return the phrases of more than one term
+	 */
+	private List<Phrase> parse(String query, Map<String, Integer> queryTerms) {
+		
+		List<Phrase> phrases = new ArrayList<>();
+		Matcher matcher = PHRASE.matcher(query);
+		int end = 0;
+		while (matcher.find()) {
+			addTerms(analyzer.terms(query.substring(end, matcher.start())), queryTerms);
+			end = matcher.end();
+			
+			List<String> terms = new ArrayList<>();
+			List<Integer> offsets = new ArrayList<>();
+			analyzer.reset(matcher.group(1));
+			while (analyzer.next()) {
+				terms.add(analyzer.term());
+				offsets.add(analyzer.position());
+			}
+			addTerms(terms, queryTerms);
+			
+			if (terms.size() > 1) {
+				int[] phraseOffsets = new int[terms.size()];
+				for (int i = 0; i < phraseOffsets.length; i++) {
+					phraseOffsets[i] = offsets.get(i) - offsets.get(0);
+				}
+				int slop = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+				phrases.add(new Phrase(terms, phraseOffsets, slop));
+			} else if (terms.size() == 1) {
+				// a one term phrase is still required
+				phrases.add(new Phrase(terms, new int[] {0}, 0));
+			}
+		}
+		addTerms(analyzer.terms(query.substring(end)), queryTerms);
+		return phrases;
+	}
+	
+	
+	private static void addTerms(List<String> terms, Map<String, Integer> queryTerms) {
+		for (String term : terms) {
+			Integer count = queryTerms.get(term);
+			queryTerms.put(term, count == null ? 1 : count + 1);
+		}
+	}
+	
+	
+	/**
+	 * Cache key of query, see below
+	 */
+	String cacheKey(String query, int k) {
+		Map<String, Integer> queryTerms = new LinkedHashMap<>();
+		List<Phrase> phrases = parse(query, queryTerms);
+		return cacheKey(queryTerms, phrases, k);
+	}
+	
+	
+	/**
+	 * Cache key of the analyzed query: k, the settings changing the scores, the sorted terms
+	 * and the phrases.
+	 */
+	private String cacheKey(Map<String, Integer> queryTerms, List<Phrase> phrases, int k) {
+		List<String> terms = new ArrayList<>(queryTerms.keySet());
+		Collections.sort(terms);
+		StringBuilder key = new StringBuilder();
+		key.append(k).append('|').append(k1).append('|').append(b).append('|').append(prWeight);
+		for (String term : terms) {
+			key.append('|').append(term).append('^').append(queryTerms.get(term));
+		}
+		for (Phrase phrase : phrases) {
+			key.append('|').append(phrase);
+		}
+		return key.toString();
+	}
+	
+	
+	/**
+	 * Posting list of term, from the postings cache when there is one
+	 */
+	private PostingsEnum postings(String term) {
+		
+		if (postingsCache == null) {
+			return segment.postings(term);
+		}
+		
+		String key = postingsKeyPrefix + term;
+		PostingsEnum cached = postingsCache.get(key, generation);
+		if (cached == null) {
+			cached = segment.postings(term);
+			if (cached == null) {
+				return null;
+			}
+		} else if (cached.isDecoded()) {
+			return cached.copy();
+		} else {
+			// second use, hot enough to be decoded
+			cached = cached.decode();
+		}
+		postingsCache.put(key, cached, cached.bytes() + 64 + 2 * key.length(), generation);
+		return cached.copy();
+	}
+	
+	
+	/**
+	 * Score every document of the lists, document at a time.
+	 */
+	private void exhaustive(TermScorer[] scorers, TopDocs topDocs) {
+		
+		for (TermScorer scorer : scorers) {
+			scorer.nextDoc();
+		}
+		
+		while (true) {
+			int docId = PostingsEnum.NO_MORE_DOCS;
+			for (TermScorer scorer : scorers) {
+				docId = Math.min(docId, scorer.docId);
+			}
+			if (docId == PostingsEnum.NO_MORE_DOCS) {
+				break;
+			}
+			collect(scorers, docId, topDocs);
+		}
+	}
+	
+	
+	/**
+	 * (Block-Max) WAND.
+	 * 
+	 * The lists are kept sorted by current docId. Adding up their max scores (and the
+	 * largest PageRank part) in that order, the pivot is the first list where the sum
+	 * beats the current top k threshold: no document before the pivot docId can make it,
+	 * so the lists before the pivot jump to it. When every list up to the pivot is on the
+	 * pivot docId it is fully scored.
+	 * 
+	 * With blockMax, the pivot is first checked against the max scores of the current
+	 * blocks of these lists and the PageRank bound of the docIds they cover. If that
+	 * bound does not beat the threshold either, no document before the end of the
+	 * shortest block can make it and the lists skip there without decoding.
+	 */
+	private void wand(TermScorer[] scorers, TopDocs topDocs, boolean blockMax) {
+		
+		int n = scorers.length;
+		TermScorer[] sorted = scorers.clone();
+		for (TermScorer scorer : sorted) {
+			scorer.nextDoc();
+		}
+		double maxPrScore = prScores == null ? 0 : prScore(prScores.getMaxScore());
+		ScoreSegment.MaxScoreCursor prCursor = prScores == null || prWeight == 0 ? null : prScores.maxScoreCursor();
+		
+		while (true) {
+			
+			// insertion sort, the lists are nearly sorted from the last round
+			for (int i = 1; i < n; i++) {
+				TermScorer scorer = sorted[i];
+				int j = i - 1;
+				for (; j >= 0 && sorted[j].docId > scorer.docId; j--) {
+					sorted[j + 1] = sorted[j];
+				}
+				sorted[j + 1] = scorer;
+			}
+			
+			double threshold = topDocs.threshold();
+			double bound = maxPrScore;
+			int pivot = -1;
+			for (int i = 0; i < n && sorted[i].docId != PostingsEnum.NO_MORE_DOCS; i++) {
+				bound += sorted[i].maxScore;
+				if (beats(bound, threshold)) {
+					pivot = i;
+					break;
+				}
+			}
+			if (pivot < 0) {
+				break;
+			}
+			
+			int pivotDocId = sorted[pivot].docId;
+			while (pivot + 1 < n && sorted[pivot + 1].docId == pivotDocId) {
+				pivot++;
+			}
+			
+			if (blockMax) {
+				// the next list starts after the pivot, so the documents up to the end of the
+				// shortest current block only appear in the lists up to the pivot
+				int next = pivot + 1 < n ? sorted[pivot + 1].docId : PostingsEnum.NO_MORE_DOCS;
+				double blockBound = 0;
+				for (int i = 0; i <= pivot; i++) {
+					blockBound += sorted[i].blockMaxScore(pivotDocId);
+					int blockEnd = sorted[i].blockEnd();
+					if (blockEnd != PostingsEnum.NO_MORE_DOCS) {
+						next = Math.min(next, blockEnd + 1);
+					}
+				}
+				if (prCursor != null) {
+					blockBound += prScore(prCursor.getMaxScore(pivotDocId, next == PostingsEnum.NO_MORE_DOCS ? next : next - 1));
+				}
+				if (!beats(blockBound, threshold)) {
+					for (int i = 0; i <= pivot; i++) {
+						sorted[i].advance(next);
+					}
+					continue;
+				}
+			}
+			
+			if (sorted[0].docId == pivotDocId) {
+				collect(scorers, pivotDocId, topDocs);
+			} else {
+				for (int i = 0; i < pivot && sorted[i].docId < pivotDocId; i++) {
+					sorted[i].advance(pivotDocId);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Documents holding all the phrase terms and matching all the phrases.
+	 * 
+	 * The lists of the phrase terms are intersected, leapfrogging with advance(). The score
+	 * of a document of the intersection is bounded with the exact score of its phrase terms,
+	 * the max scores of the other terms and the largest PageRank part: the positions are
+	 * only read when that bound beats the top k threshold, and the other terms only move
+	 * to the document once the phrases match.
+	 */
+	private void conjunctive(TermScorer[] scorers, Map<String, TermScorer> termScorers, List<Phrase> phrases, 
+			TopDocs topDocs) {
+		
+		List<TermScorer> required = new ArrayList<>();
+		List<PhraseMatcher> matchers = new ArrayList<>();
+		for (Phrase phrase : phrases) {
+			TermScorer[] phraseScorers = new TermScorer[phrase.terms.size()];
+			for (int i = 0; i < phraseScorers.length; i++) {
+				phraseScorers[i] = termScorers.get(phrase.terms.get(i));
+				if (phraseScorers[i] == null) {
+					// a phrase term in no document
+					return;
+				}
+				if (!required.contains(phraseScorers[i])) {
+					required.add(phraseScorers[i]);
+				}
+			}
+			if (phraseScorers.length > 1) {
+				if (phraseScorers[0].postings.hasPositions()) {
+					matchers.add(new PhraseMatcher(phraseScorers, phrase.offsets, phrase.slop));
+				} else {
+					logger.warn("Segment {} has no positions, {} only requires its terms.", segment.getDir(), phrase);
+				}
+			}
+		}
+		
+		double optionalBound = prScores == null || prWeight == 0 ? 0 : prScore(prScores.getMaxScore());
+		List<TermScorer> optional = new ArrayList<>();
+		for (TermScorer scorer : scorers) {
+			scorer.nextDoc();
+			if (!required.contains(scorer)) {
+				optional.add(scorer);
+				optionalBound += scorer.maxScore;
+			}
+		}
+		
+		int n = required.size();
+		int docId = required.get(0).docId;
+		while (docId != PostingsEnum.NO_MORE_DOCS) {
+			
+			// every required list on docId, or past the end
+			for (int i = 0, agreed = 0; agreed < n; i = i + 1 == n ? 0 : i + 1) {
+				TermScorer scorer = required.get(i);
+				if (scorer.docId < docId) {
+					scorer.advance(docId);
+				}
+				if (scorer.docId > docId) {
+					docId = scorer.docId;
+					agreed = 1;
+				} else {
+					agreed++;
+				}
+			}
+			if (docId == PostingsEnum.NO_MORE_DOCS) {
+				break;
+			}
+			
+			double norm = required.get(0).norm(docLengths.getLength(docId));
+			double bound = optionalBound;
+			for (TermScorer scorer : required) {
+				bound += scorer.score(norm);
+			}
+			
+			if (!isDeleted(docId) && beats(bound, topDocs.threshold()) && matches(matchers)) {
+				for (TermScorer scorer : optional) {
+					scorer.advance(docId);
+				}
+				topDocs.offer(docId, score(scorers, docId));
+			} else {
+				for (TermScorer scorer : required) {
+					scorer.nextDoc();
+				}
+			}
+			docId = required.get(0).docId;
+		}
+	}
+	
+	
+	private static boolean matches(List<PhraseMatcher> matchers) {
+		for (PhraseMatcher matcher : matchers) {
+			if (!matcher.matches()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * An upper bound can only be pruned below the threshold, with some slack for
+	 * the rounding of the bound and the score being added up in different orders.
+	 */
+	private static boolean beats(double bound, double threshold) {
+		return bound * (1 + 1e-9) + 1e-12 > threshold;
+	}
+	
+	
+	/**
+	 * Offer docId to topDocs unless it is deleted, the scorers on docId move to their next posting.
+	 */
+	private void collect(TermScorer[] scorers, int docId, TopDocs topDocs) {
+		if (!isDeleted(docId)) {
+			topDocs.offer(docId, score(scorers, docId));
+			return;
+		}
+		for (TermScorer scorer : scorers) {
+			if (scorer.docId == docId) {
+				scorer.nextDoc();
+			}
+		}
+	}
+	
+	
+	private boolean isDeleted(int docId) {
+		return deletes != null && deletes.isDeleted(docLengths.ordinal(docId));
+	}
+	
+	
+	/**
+	 * Full score of docId, the scorers on docId move to their next posting.
+	 * The scorers are summed in query order whatever the traversal, so that
+	 * all of them give the same scores.
+	 */
+	private double score(TermScorer[] scorers, int docId) {
+		
+		numOfScoredDocs++;
+		double norm = scorers[0].norm(docLengths.getLength(docId));
+		double score = 0;
+		for (TermScorer scorer : scorers) {
+			if (scorer.docId == docId) {
+				score += scorer.score(norm);
+				scorer.nextDoc();
+			}
+		}
+		return score + prScore(docId);
+	}
+	
+	
+	/**
+	 * PageRank part of the score of docId
+	 */
+	private double prScore(int docId) {
+		if (prScores == null || prWeight == 0) {
+			return 0;
+		}
+		return prScore(prScores.getScore(docId, 0));
+	}
+	
+	
+	private double prScore(double prScore) {
+		return prWeight * Math.log1p(prScores.getNumOfDocs() * prScore);
+	}
+	
+	
+	/**
+	 * Analyzed phrase of a query
+	 */
+	private static class Phrase {
+		
+		final List<String> terms;
+		final int[] offsets;
+		final int slop;
+		
+		Phrase(List<String> terms, int[] offsets, int slop) {
+			this.terms = terms;
+			this.offsets = offsets;
+			this.slop = slop;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder().append('"');
+			for (int i = 0; i < terms.size(); i++) {
+				sb.append(i > 0 ? " " : "").append(terms.get(i)).append('@').append(offsets[i]);
+			}
+			return sb.append("\"~").append(slop).toString();
+		}
+	}
+
+}
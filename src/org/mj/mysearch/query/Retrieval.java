@@ -0,0 +1,30 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+
+/**
+ * Posting traversal strategies of QueryEngine.search(), all return the same top k.
+ */
+public enum Retrieval {
+	
+	/** score every document of every posting list */
+	EXHAUSTIVE,
+	
+	/** WAND, skip the documents whose terms' max scores cannot reach the top k */
+	WAND,
+	
+	/** WAND refined with the max scores of the current blocks, skipping whole blocks */
+	BLOCK_MAX_WAND;
+	
+	
+	/**
+	 * Parse a command line name, e.g. "block-max-wand"
+	 */
+	public static Retrieval parse(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+
+}
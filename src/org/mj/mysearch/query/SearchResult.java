@@ -0,0 +1,36 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+
+/**
+ * One ranked document of a query.
+ */
+public class SearchResult {
+	
+	public final int docId;
+	public final double score;
+	public final String url;
+	
+	
+	/**
+	 * constructor class
+	 * @param docId
+	 * @param score
+	 * @param url null until resolved, see UrlLookup
+	 */
+	public SearchResult(int docId, double score, String url) {
+		this.docId = docId;
+		this.score = score;
+		this.url = url;
+	}
+	
+	
+	@Override
+	public String toString() {
+		return String.format("%.4f\t%d\t%s", score, docId, url);
+	}
+
+}
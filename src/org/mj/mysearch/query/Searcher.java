@@ -0,0 +1,66 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.List;
+
+import org.mj.mysearch.revindexer.PostingsEnum;
+
+
+/**
+ * Ranked retrieval over one index segment (QueryEngine) or over the shards
+ * of an index (ShardedQueryEngine). Not thread safe.
+ */
+public interface Searcher {
+	
+	/**
+	 * Top k documents of query, best first, urls not resolved.
+	 */
+	List<SearchResult> search(String query, int k);
+	
+	
+	/**
+	 * @param k1 tf saturation
+	 * @param b length normalization, 0 (none) to 1 (full)
+	 */
+	void setBm25(double k1, double b);
+	
+	
+	/**
+	 * @param prWeight weight of the PageRank part of the score, 0 to ignore it
+	 */
+	void setPrWeight(double prWeight);
+	
+	
+	/**
+	 * @param retrieval posting traversal, EXHAUSTIVE to check the pruned ones
+	 */
+	void setRetrieval(Retrieval retrieval);
+	
+	
+	/**
+	 * Cache the results, null for no cache.
+	 */
+	void setResultCache(SegmentedLruCache<String, List<SearchResult>> resultCache);
+	
+	
+	/**
+	 * Cache the posting lists, null for no cache.
+	 */
+	void setPostingsCache(SegmentedLruCache<String, PostingsEnum> postingsCache);
+	
+	
+	/**
+	 * Index generation of the segments and score files, the caches drop the entries of other generations
+	 */
+	long getGeneration();
+	
+	
+	/**
+	 * Number of documents fully scored by the last search()
+	 */
+	long getNumOfScoredDocs();
+
+}
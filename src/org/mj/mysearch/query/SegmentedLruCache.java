@@ -0,0 +1,305 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Cache bounded by the total size in bytes of its values, with segmented LRU eviction.
+ * 
+ * A new entry goes to the probation segment, a second hit promotes it to the protected
+ * segment (PROTECTED_RATIO of the bytes), whose least recently used entries fall back to
+ * probation. Evictions come from probation first, so entries used once (a scan, a rare
+ * query) do not push out the entries used again and again.
+ * 
+ * The keys are spread over stripes, each an independent segmented LRU with its share of
+ * the bytes behind its own lock, so concurrent lookups of different keys rarely wait.
+ * 
+ * Every entry belongs to the index generation it was computed from. A lookup or insertion
+ * with another generation than the cache's empties the cache first, so no result of an
+ * older index or score file is ever served after a new one is published.
+ */
+public class SegmentedLruCache<K, V> {
+	
+	private static final double PROTECTED_RATIO = 0.8;
+	
+	private final List<Stripe> stripes;
+	private volatile long generation;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	
+	/**
+	 * constructor class
+	 * @param maxBytes total size of the values kept
+	 * @param numOfStripes number of independently locked parts
+	 */
+	public SegmentedLruCache(long maxBytes, int numOfStripes) {
+		stripes = new ArrayList<>(numOfStripes);
+		for (int i = 0; i < numOfStripes; i++) {
+			stripes.add(new Stripe(maxBytes / numOfStripes));
+		}
+	}
+	
+	
+	private Stripe stripe(K key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return stripes.get((h & 0x7fffffff) % stripes.size());
+	}
+	
+	
+	/**
+	 * Empty the cache if generation is not the cache's one.
+	 */
+	private void checkGeneration(long generation) {
+		if (generation != this.generation) {
+			synchronized (this) {
+				if (generation != this.generation) {
+					for (Stripe stripe : stripes) {
+						stripe.clear();
+					}
+					this.generation = generation;
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * @param key
+	 * @param generation index generation of the caller
+	 * @return the cached value, null if none
+	 */
+	public V get(K key, long generation) {
+		checkGeneration(generation);
+		V value = stripe(key).get(key, generation);
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+	
+	
+	/**
+	 * Cache value, unless it is larger than a stripe.
+	 * @param key
+	 * @param value
+	 * @param bytes size of value
+	 * @param generation index generation value was computed from
+	 */
+	public void put(K key, V value, long bytes, long generation) {
+		checkGeneration(generation);
+		stripe(key).put(key, new Entry<>(value, bytes, generation));
+	}
+	
+	
+	/**
+	 * Drop every entry.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+	
+	
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+	
+	/**
+	 * Total size of the cached values
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Stripe stripe : stripes) {
+			bytes += stripe.bytes();
+		}
+		return bytes;
+	}
+	
+	
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses();
+		return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d KB", hits, misses,
+				hits + misses == 0 ? 0 : 100. * hits / (hits + misses), getEvictions(), getBytes() >> 10);
+	}
+	
+	
+	private static class Entry<V> {
+		
+		final V value;
+		final long bytes;
+		final long generation;
+		boolean isProtected;
+		
+		Entry(V value, long bytes, long generation) {
+			this.value = value;
+			this.bytes = bytes;
+			this.generation = generation;
+		}
+	}
+	
+	
+	/**
+	 * One segmented LRU, guarded by its lock. Both segments are kept in
+	 * LinkedHashMaps in access order, least recently used first.
+	 */
+	private class Stripe {
+		
+		private final ReentrantLock lock = new ReentrantLock();
+		private final long maxBytes, maxProtectedBytes;
+		private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+		private final LinkedHashMap<K, Entry<V>> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+		private long probationBytes, protectedBytes;
+		
+		Stripe(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+		}
+		
+		V get(K key, long generation) {
+			lock.lock();
+			try {
+				Entry<V> entry = protectedEntries.get(key);
+				if (entry != null) {
+					return entry.generation == generation ? entry.value : null;
+				}
+				entry = probation.get(key);
+				if (entry == null || entry.generation != generation) {
+					// an entry put by a query of the previous generation, racing with the invalidation
+					return null;
+				}
+				probation.remove(key);
+				
+				// second hit, promoted
+				probationBytes -= entry.bytes;
+				protect(key, entry);
+				return entry.value;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		void put(K key, Entry<V> entry) {
+			if (entry.bytes > maxBytes) {
+				return;
+			}
+			lock.lock();
+			try {
+				Entry<V> old = probation.remove(key);
+				if (old == null) {
+					old = protectedEntries.remove(key);
+				}
+				if (old != null) {
+					if (old.isProtected) {
+						protectedBytes -= old.bytes;
+					} else {
+						probationBytes -= old.bytes;
+					}
+				}
+				
+				if (old != null && old.isProtected) {
+					// a replaced value keeps its place
+					protect(key, entry);
+				} else {
+					probation.put(key, entry);
+					probationBytes += entry.bytes;
+				}
+				
+				evict(probation.entrySet().iterator(), false);
+				evict(protectedEntries.entrySet().iterator(), true);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Move entry to the protected segment, its least recently used entries
+		 * over PROTECTED_RATIO fall back to probation.
+		 */
+		private void protect(K key, Entry<V> entry) {
+			
+			entry.isProtected = true;
+			protectedEntries.put(key, entry);
+			protectedBytes += entry.bytes;
+			
+			Iterator<Map.Entry<K, Entry<V>>> lru = protectedEntries.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && lru.hasNext()) {
+				Map.Entry<K, Entry<V>> demoted = lru.next();
+				if (demoted.getValue() == entry) {
+					break;
+				}
+				lru.remove();
+				protectedBytes -= demoted.getValue().bytes;
+				demoted.getValue().isProtected = false;
+				probation.put(demoted.getKey(), demoted.getValue());
+				probationBytes += demoted.getValue().bytes;
+			}
+		}
+		
+		/**
+		 * Evict least recently used entries of a segment while the stripe is too large.
+		 */
+		private void evict(Iterator<Map.Entry<K, Entry<V>>> lru, boolean isProtected) {
+			while (probationBytes + protectedBytes > maxBytes && lru.hasNext()) {
+				Entry<V> evicted = lru.next().getValue();
+				lru.remove();
+				if (isProtected) {
+					protectedBytes -= evicted.bytes;
+				} else {
+					probationBytes -= evicted.bytes;
+				}
+				evictions.increment();
+			}
+		}
+		
+		void clear() {
+			lock.lock();
+			try {
+				probation.clear();
+				protectedEntries.clear();
+				probationBytes = 0;
+				protectedBytes = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		long bytes() {
+			lock.lock();
+			try {
+				return probationBytes + protectedBytes;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.mj.mysearch.revindexer.DocLengths;
+import org.mj.mysearch.revindexer.PostingsEnum;
+import org.mj.mysearch.revindexer.SegmentReader;
+
+
+/**
+ * Scatter-gather search over the shards of an index (see RevIndexer.startSharded()).
+ * 
+ * Every shard is searched by its own QueryEngine on a thread pool, then the top k
+ * of all the shards are merged into the top k of the index. The shards hold disjoint
+ * docId ranges and are scored with the statistics of the whole index (IndexStats),
+ * so the results are the ones of a single segment holding all the documents.
+ * The segments of an incrementally updated index (see IndexManifest) are searched the
+ * same way, each docId is live in one of them only.
+ * 
+ * The result cache is kept here, the shards share the postings cache. Not thread
+ * safe, like QueryEngine.
+ */
+public class ShardedQueryEngine implements Searcher {
+	
+	private final List<QueryEngine> shards;
+	private final ExecutorService pool;
+	private final long generation;
+	
+	private SegmentedLruCache<String, List<SearchResult>> resultCache;
+	private long numOfScoredDocs;
+	
+	
+	/**
+	 * constructor class
+	 * @param shards one QueryEngine per shard, each with its own Analyzer, all with the same score file
+	 * @param numOfThreads shards searched at the same time
+	 */
+	public ShardedQueryEngine(List<QueryEngine> shards, int numOfThreads) {
+		this(shards, numOfThreads, generation(shards));
+	}
+	
+	
+	/**
+	 * constructor class
+	 * @param shards one QueryEngine per shard, each with its own Analyzer, all with the same score file
+	 * @param numOfThreads shards searched at the same time
+	 * @param generation generation of the index, when the segments are not all it depends on
+	 *   (the deletes of the segments of an IndexManifest)
+	 */
+	public ShardedQueryEngine(List<QueryEngine> shards, int numOfThreads, long generation) {
+		
+		this.shards = shards;
+		this.pool = Executors.newFixedThreadPool(numOfThreads);
+		this.generation = generation;
+		
+		List<SegmentReader> segments = new ArrayList<>();
+		List<DocLengths> docLengths = new ArrayList<>();
+		for (QueryEngine shard : shards) {
+			segments.add(shard.getSegment());
+			docLengths.add(shard.getDocLengths());
+		}
+		
+		IndexStats indexStats = new IndexStats(segments, docLengths);
+		for (QueryEngine shard : shards) {
+			shard.setShardOf(indexStats, generation);
+		}
+	}
+	
+	
+	private static long generation(List<QueryEngine> shards) {
+		long generation = 0;
+		for (QueryEngine shard : shards) {
+			generation = 31 * generation + shard.getGeneration();
+		}
+		return generation;
+	}
+	
+	
+	@Override
+	public List<SearchResult> search(final String query, final int k) {
+		
+		String cacheKey = null;
+		if (resultCache != null) {
+			// shard 0 is idle between the searches, its analyzer can be used here
+			cacheKey = shards.get(0).cacheKey(query, k);
+			List<SearchResult> cached = resultCache.get(cacheKey, generation);
+			if (cached != null) {
+				numOfScoredDocs = 0;
+				return new ArrayList<>(cached);
+			}
+		}
+		
+		List<Callable<List<SearchResult>>> tasks = new ArrayList<>(shards.size());
+		for (final QueryEngine shard : shards) {
+			tasks.add(new Callable<List<SearchResult>>() {
+				
+				@Override
+				public List<SearchResult> call() {
+					return shard.search(query, k);
+				}
+			});
+		}
+		
+		TopDocs topDocs = new TopDocs(k);
+		numOfScoredDocs = 0;
+		try {
+			List<Future<List<SearchResult>>> futures = pool.invokeAll(tasks);
+			for (int i = 0; i < futures.size(); i++) {
+				for (SearchResult result : futures.get(i).get()) {
+					topDocs.offer(result.docId, result.score);
+				}
+				numOfScoredDocs += shards.get(i).getNumOfScoredDocs();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching the shards", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error while searching the shards", e.getCause());
+		}
+		
+		List<SearchResult> results = topDocs.results();
+		if (resultCache != null) {
+			resultCache.put(cacheKey, new ArrayList<>(results), 64 + 2 * cacheKey.length() + 48 * results.size(), generation);
+		}
+		return results;
+	}
+	
+	
+	@Override
+	public void setBm25(double k1, double b) {
+		for (QueryEngine shard : shards) {
+			shard.setBm25(k1, b);
+		}
+	}
+	
+	
+	@Override
+	public void setPrWeight(double prWeight) {
+		for (QueryEngine shard : shards) {
+			shard.setPrWeight(prWeight);
+		}
+	}
+	
+	
+	@Override
+	public void setRetrieval(Retrieval retrieval) {
+		for (QueryEngine shard : shards) {
+			shard.setRetrieval(retrieval);
+		}
+	}
+	
+	
+	@Override
+	public void setResultCache(SegmentedLruCache<String, List<SearchResult>> resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	
+	@Override
+	public void setPostingsCache(SegmentedLruCache<String, PostingsEnum> postingsCache) {
+		for (QueryEngine shard : shards) {
+			shard.setPostingsCache(postingsCache);
+		}
+	}
+	
+	
+	@Override
+	public long getGeneration() {
+		return generation;
+	}
+	
+	
+	@Override
+	public long getNumOfScoredDocs() {
+		return numOfScoredDocs;
+	}
+	
+	
+	/**
+	 * Stop the threads of the pool.
+	 */
+	public void shutDown() {
+		pool.shutdown();
+	}
+
+}
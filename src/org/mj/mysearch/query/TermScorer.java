@@ -0,0 +1,124 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import org.mj.mysearch.revindexer.PostingsEnum;
+
+
+/**
+ * BM25 scorer of one query term over its posting list.
+ * 
+ * score = weight * tf / (tf + k1 * (1 - b + b * docLength / avgDocLength)) grows with tf
+ * and shrinks with docLength, so the best score of the impacts stored for a block of the
+ * list (see SegmentWriter) is an upper bound of the score of any posting of the block.
+ */
+class TermScorer {
+	
+	final PostingsEnum postings;
+	final double weight;
+	final double maxScore;
+	
+	private final double k1, b, avgDocLength;
+	
+	int docId = -1;
+	
+	/** bound of the current block, valid up to blockEnd */
+	private int blockEnd = -1;
+	private double blockScore;
+	
+	/** positions of the current posting, read for positionsDocId */
+	private int[] positions;
+	private int positionsDocId = -1;
+	
+	
+	/**
+	 * constructor class
+	 * @param postings
+	 * @param weight qtf * idf * (k1 + 1)
+	 */
+	TermScorer(PostingsEnum postings, double weight, double k1, double b, double avgDocLength) {
+		this.postings = postings;
+		this.weight = weight;
+		this.k1 = k1;
+		this.b = b;
+		this.avgDocLength = avgDocLength;
+		
+		double max = 0;
+		for (int i = 0, n = postings.numOfImpacts(); i < n; i++) {
+			max = Math.max(max, bound(postings.impactTf(i), postings.impactDocLength(i)));
+		}
+		this.maxScore = max;
+	}
+	
+	
+	/**
+	 * Length normalization of a document, shared by all the terms scoring it
+	 */
+	double norm(int docLength) {
+		return k1 * (1 - b + b * docLength / avgDocLength);
+	}
+	
+	
+	/**
+	 * Score of the current posting
+	 */
+	double score(double norm) {
+		int tf = postings.tf();
+		return weight * tf / (tf + norm);
+	}
+	
+	
+	private double bound(int tf, int docLength) {
+		return weight * tf / (tf + norm(docLength));
+	}
+	
+	
+	/**
+	 * Upper bound of the scores of the block holding the first posting >= target,
+	 * valid up to postings.blockLastDocId()
+	 */
+	double blockMaxScore(int target) {
+		if (target > blockEnd) {
+			postings.advanceShallow(target);
+			blockEnd = postings.blockLastDocId();
+			blockScore = 0;
+			for (int i = 0, n = postings.blockNumOfImpacts(); i < n; i++) {
+				blockScore = Math.max(blockScore, bound(postings.blockImpactTf(i), postings.blockImpactDocLength(i)));
+			}
+		}
+		return blockScore;
+	}
+	
+	
+	/**
+	 * Last docId covered by the last blockMaxScore(), NO_MORE_DOCS for the last block
+	 */
+	int blockEnd() {
+		return blockEnd;
+	}
+	
+	
+	/**
+	 * Token positions of the current posting, postings.tf() of them, read once per docId
+	 */
+	int[] positions() {
+		if (positionsDocId != docId) {
+			positions = postings.positions(positions);
+			positionsDocId = docId;
+		}
+		return positions;
+	}
+	
+	
+	int nextDoc() {
+		return docId = postings.nextDoc();
+	}
+	
+	
+	int advance(int target) {
+		return docId = postings.advance(target);
+	}
+
+}
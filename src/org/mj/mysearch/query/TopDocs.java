@@ -0,0 +1,133 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the k best (docId, score) pairs seen so far in a bounded min-heap
+ * held in two primitive arrays, the worst kept pair at the root.
+ * 
+ * offer() is O(1) for a pair below the current threshold and O(log k)
+ * otherwise, nothing is allocated while collecting. On equal scores the
+ * smaller docId ranks first.
+ */
+public class TopDocs {
+	
+	private final int k;
+	private final int[] docIds;
+	private final double[] scores;
+	private int size;
+	
+	
+	/**
+	 * constructor class
+	 * @param k number of pairs kept
+	 */
+	public TopDocs(int k) {
+		this.k = k;
+		this.docIds = new int[k];
+		this.scores = new double[k];
+	}
+	
+	
+	/**
+	 * a ranks below b
+	 */
+	private static boolean worse(double scoreA, int docIdA, double scoreB, int docIdB) {
+		return scoreA < scoreB || (scoreA == scoreB && docIdA > docIdB);
+	}
+	
+	
+	/**
+	 * Keep (docId, score) if it is among the k best so far.
+	 * @return true if kept
+	 */
+	public boolean offer(int docId, double score) {
+		
+		if (size < k) {
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!worse(score, docId, scores[parent], docIds[parent])) {
+					break;
+				}
+				docIds[i] = docIds[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			docIds[i] = docId;
+			scores[i] = score;
+			return true;
+		}
+		
+		if (k == 0 || !worse(scores[0], docIds[0], score, docId)) {
+			return false;
+		}
+		siftDown(docId, score);
+		return true;
+	}
+	
+	
+	/**
+	 * Replace the root by (docId, score) and restore the heap.
+	 */
+	private void siftDown(int docId, double score) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && worse(scores[child + 1], docIds[child + 1], scores[child], docIds[child])) {
+				child++;
+			}
+			if (!worse(scores[child], docIds[child], score, docId)) {
+				break;
+			}
+			docIds[i] = docIds[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		docIds[i] = docId;
+		scores[i] = score;
+	}
+	
+	
+	/**
+	 * Score a document must beat to enter, -Infinity until k documents are kept.
+	 */
+	public double threshold() {
+		return size < k || k == 0 ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+	
+	
+	public int size() {
+		return size;
+	}
+	
+	
+	/**
+	 * Empty the heap into a list, best first.
+	 */
+	public List<SearchResult> results() {
+		SearchResult[] sorted = new SearchResult[size];
+		while (size > 0) {
+			sorted[size - 1] = new SearchResult(docIds[0], scores[0], null);
+			size--;
+			if (size > 0) {
+				siftDown(docIds[size], scores[size]);
+			}
+		}
+		List<SearchResult> results = new ArrayList<>(sorted.length);
+		for (SearchResult result : sorted) {
+			results.add(result);
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.mj.mysearch.storage.Storage;
+import org.mj.mysearch.storage.Storages;
+import org.mj.mysearch.storage.UrlStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Resolves the urls of ranked documents from the UrlStore (DocUrlDB.DocId_Url on MongoDB),
+ * one query for the whole result page.
+ */
+public class UrlLookup {
+	
+	private static final Logger logger = LoggerFactory.getLogger(UrlLookup.class);
+	
+	private final Storage storage;
+	private final boolean ownsStorage;
+	private final UrlStore urlStore;
+	
+	
+	/**
+	 * constructor class, opens the storage of the system properties (see Storages)
+	 */
+	public UrlLookup() {
+		this(Storages.fromSystemProperties(), true);
+	}
+	
+	
+	/**
+	 * constructor class
+	 * @param storage stays open after close()
+	 */
+	public UrlLookup(Storage storage) {
+		this(storage, false);
+	}
+	
+	
+	private UrlLookup(Storage storage, boolean ownsStorage) {
+		this.storage = storage;
+		this.ownsStorage = ownsStorage;
+		urlStore = storage.getUrlStore();
+		logger.info("Successfully opened the UrlStore.");
+	}
+	
+	
+	/**
+	 * Same results, in the same order, with their url.
+	 * @param results
+	 * @return
+	 */
+	public List<SearchResult> resolve(List<SearchResult> results) {
+		
+		List<Integer> docIds = new ArrayList<>(results.size());
+		for (SearchResult result : results) {
+			docIds.add(result.docId);
+		}
+		
+		Map<Integer, String> urls = urlStore.getUrls(docIds);
+		
+		List<SearchResult> resolved = new ArrayList<>(results.size());
+		for (SearchResult result : results) {
+			resolved.add(new SearchResult(result.docId, result.score, urls.get(result.docId)));
+		}
+		return resolved;
+	}
+	
+	
+	public void close() {
+		if (ownsStorage) {
+			storage.close();
+		}
+	}
+
+}
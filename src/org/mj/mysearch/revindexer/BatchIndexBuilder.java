@@ -0,0 +1,449 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Builds the inverted index in memory, then writes it in bulk.
+ * 
+ * Postings are accumulated per term in primitive docId / tf arrays. When the
+ * estimated memory goes over the budget, the terms are sorted and spilled
+ * as a sorted run to a temporary file. finish() merges the runs (or the
+ * in-memory postings when nothing was spilled) and hands every term to a
+ * PostingSink in term order, postings sorted by docId.
+ * 
+ * The encoded token positions of a posting (see TermCounter) follow it, per term
+ * in one byte array with the start offset of each posting. They are only handed
+ * to the sink when every document was added with its positions.
+ * 
+ * Run file: int numOfTerms, boolean withPositions, then per term: UTF term, int size,
+ *   size x (int docId, int tf, and with positions: int length, length bytes)
+ */
+public class BatchIndexBuilder {
+	
+	private static final Logger logger = LoggerFactory.getLogger(BatchIndexBuilder.class);
+	
+	/** rough heap cost of a new term: String, HashMap entry, array headers */
+	private static final int TERM_OVERHEAD = 160;
+	private static final int MAX_TERM_LENGTH = 1000;
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+	
+	private final long memoryBudget;
+	private final File tmpDir;
+	private final List<File> runs = new ArrayList<>();
+	
+	private HashMap<String, Integer> termIds = new HashMap<>();
+	private String[] terms = new String[1024];
+	private int[][] docIds = new int[1024][];
+	private int[][] tfs = new int[1024][];
+	private int[] sizes = new int[1024];
+	private byte[][] positions = new byte[1024][];
+	private int[][] positionStarts = new int[1024][];
+	private int numOfTerms;
+	private long memoryUsed, numOfPostings;
+	private boolean withPositions = true;
+	
+	
+	/**
+	 * constructor class
+	 * @param memoryBudget bytes of postings kept in memory before spilling a run
+	 * @param tmpDir where the runs are spilled
+	 */
+	public BatchIndexBuilder(long memoryBudget, File tmpDir) {
+		this.memoryBudget = memoryBudget;
+		this.tmpDir = tmpDir;
+	}
+	
+	
+	/**
+	 * Add the terms of one document.
+	 * @param docId
+	 * @param words distinct terms of the document
+	 * @param counts term frequency of each term
+	 * @param wordPositions encoded positions of each term, null if unknown: the whole index
+	 *   is then built without positions
+	 * @param size number of terms
+	 */
+	public void addDocument(int docId, String[] words, int[] counts, byte[][] wordPositions, int size) throws IOException {
+		
+		if (wordPositions == null && withPositions) {
+			logger.warn("docId {} has no positions, the index is built without positions.", docId);
+			withPositions = false;
+		}
+		
+		for (int k = 0; k < size; k++) {
+			
+			String word = words[k];
+			if (word.isEmpty() || word.length() > MAX_TERM_LENGTH) {
+				continue;
+			}
+			
+			Integer termId = termIds.get(word);
+			if (termId == null) {
+				termId = newTerm(word);
+			}
+			
+			int n = sizes[termId];
+			if (n == docIds[termId].length) {
+				int capacity = 2 * n;
+				docIds[termId] = Arrays.copyOf(docIds[termId], capacity);
+				tfs[termId] = Arrays.copyOf(tfs[termId], capacity);
+				memoryUsed += 8L * (capacity - n);
+			}
+			docIds[termId][n] = docId;
+			tfs[termId][n] = counts[k];
+			sizes[termId] = n + 1;
+			numOfPostings++;
+			
+			if (withPositions) {
+				addPositions(termId, n, wordPositions[k]);
+			}
+		}
+		
+		if (memoryUsed > memoryBudget) {
+			spill();
+		}
+	}
+	
+	
+	/**
+	 * Append the positions of posting n of termId.
+	 */
+	private void addPositions(int termId, int n, byte[] bytes) {
+		
+		int[] starts = positionStarts[termId];
+		if (n + 2 > starts.length) {
+			starts = positionStarts[termId] = Arrays.copyOf(starts, docIds[termId].length + 1);
+			memoryUsed += 4L * (starts.length - n - 1);
+		}
+		
+		int start = starts[n];
+		byte[] termPositions = positions[termId];
+		if (start + bytes.length > termPositions.length) {
+			int capacity = Math.max(2 * termPositions.length, start + bytes.length);
+			termPositions = positions[termId] = Arrays.copyOf(termPositions, capacity);
+			memoryUsed += capacity - start;
+		}
+		System.arraycopy(bytes, 0, termPositions, start, bytes.length);
+		starts[n + 1] = start + bytes.length;
+	}
+	
+	
+	private int newTerm(String word) {
+		
+		if (numOfTerms == terms.length) {
+			int capacity = 2 * numOfTerms;
+			terms = Arrays.copyOf(terms, capacity);
+			docIds = Arrays.copyOf(docIds, capacity);
+			tfs = Arrays.copyOf(tfs, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			positions = Arrays.copyOf(positions, capacity);
+			positionStarts = Arrays.copyOf(positionStarts, capacity);
+		}
+		
+		int termId = numOfTerms++;
+		terms[termId] = word;
+		docIds[termId] = new int[2];
+		tfs[termId] = new int[2];
+		sizes[termId] = 0;
+		if (withPositions) {
+			positions[termId] = new byte[8];
+			positionStarts[termId] = new int[3];
+			memoryUsed += 60;
+		}
+		termIds.put(word, termId);
+		memoryUsed += TERM_OVERHEAD + 2L * word.length() + 16;
+		return termId;
+	}
+	
+	
+	/**
+	 * Term ids of the in-memory terms, in term order
+	 */
+	private Integer[] sortedTermIds() {
+		Integer[] order = new Integer[numOfTerms];
+		for (int i = 0; i < numOfTerms; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return terms[a].compareTo(terms[b]);
+			}
+		});
+		return order;
+	}
+	
+	
+	/**
+	 * Sort the first size postings by docId, tfs and positions (when not null) follow their docId.
+	 */
+	static void sortPostings(int[] docIds, int[] tfs, byte[] positions, int[] positionStarts, int size) {
+		
+		for (int i = 1; i < size; i++) {
+			if (docIds[i - 1] > docIds[i]) {
+				long[] packed = new long[size];
+				for (int k = 0; k < size; k++) {
+					packed[k] = ((long) docIds[k] << 32) | k;
+				}
+				Arrays.sort(packed);
+				
+				int[] sortedTfs = new int[size];
+				for (int k = 0; k < size; k++) {
+					docIds[k] = (int) (packed[k] >>> 32);
+					sortedTfs[k] = tfs[(int) packed[k]];
+				}
+				System.arraycopy(sortedTfs, 0, tfs, 0, size);
+				
+				if (positions != null) {
+					byte[] sortedPositions = new byte[positionStarts[size]];
+					int[] sortedStarts = new int[size + 1];
+					for (int k = 0; k < size; k++) {
+						int from = (int) packed[k];
+						int length = positionStarts[from + 1] - positionStarts[from];
+						System.arraycopy(positions, positionStarts[from], sortedPositions, sortedStarts[k], length);
+						sortedStarts[k + 1] = sortedStarts[k] + length;
+					}
+					System.arraycopy(sortedPositions, 0, positions, 0, sortedPositions.length);
+					System.arraycopy(sortedStarts, 0, positionStarts, 0, size + 1);
+				}
+				return;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Write the in-memory postings as a sorted run and free them.
+	 */
+	private void spill() throws IOException {
+		
+		if (numOfTerms == 0) {
+			return;
+		}
+		
+		File run = File.createTempFile("revindex-run-", ".bin", tmpDir);
+		run.deleteOnExit();
+		logger.info("Spilling {} terms, {} MB to {}", numOfTerms, memoryUsed >> 20, run);
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+			out.writeInt(numOfTerms);
+			out.writeBoolean(withPositions);
+			for (int termId : sortedTermIds()) {
+				int size = sizes[termId];
+				byte[] termPositions = withPositions ? positions[termId] : null;
+				int[] starts = positionStarts[termId];
+				sortPostings(docIds[termId], tfs[termId], termPositions, starts, size);
+				out.writeUTF(terms[termId]);
+				out.writeInt(size);
+				for (int k = 0; k < size; k++) {
+					out.writeInt(docIds[termId][k]);
+					out.writeInt(tfs[termId][k]);
+					if (withPositions) {
+						out.writeInt(starts[k + 1] - starts[k]);
+						out.write(termPositions, starts[k], starts[k + 1] - starts[k]);
+					}
+				}
+			}
+		}
+		runs.add(run);
+		
+		termIds = new HashMap<>();
+		terms = new String[1024];
+		docIds = new int[1024][];
+		tfs = new int[1024][];
+		sizes = new int[1024];
+		positions = new byte[1024][];
+		positionStarts = new int[1024][];
+		numOfTerms = 0;
+		memoryUsed = 0;
+	}
+	
+	
+	/**
+	 * Hand all the postings to sink, in term order, then close it.
+	 * @param sink
+	 */
+	public void finish(PostingSink sink) throws IOException {
+		
+		logger.info("{} postings added, {} run(s) spilled.", numOfPostings, runs.size());
+		
+		try {
+			if (runs.isEmpty()) {
+				for (int termId : sortedTermIds()) {
+					byte[] termPositions = withPositions ? positions[termId] : null;
+					int[] starts = withPositions ? positionStarts[termId] : null;
+					sortPostings(docIds[termId], tfs[termId], termPositions, starts, sizes[termId]);
+					sink.add(terms[termId], docIds[termId], tfs[termId], termPositions, starts, sizes[termId]);
+				}
+			} else {
+				spill();
+				merge(sink);
+			}
+		} finally {
+			sink.close();
+			for (File run : runs) {
+				if (!run.delete()) {
+					logger.warn("Could not delete run {}", run);
+				}
+			}
+			runs.clear();
+		}
+	}
+	
+	
+	/**
+	 * k-way merge of the runs, postings of the same term are concatenated and sorted.
+	 */
+	private void merge(PostingSink sink) throws IOException {
+		
+		logger.info("Merging {} runs.", runs.size());
+		
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader a, RunReader b) {
+				return a.term.compareTo(b.term);
+			}
+		});
+		
+		List<RunReader> readers = new ArrayList<>();
+		try {
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			
+			// positions only when no document came without them, in any run
+			boolean mergePositions = withPositions;
+			for (RunReader reader : readers) {
+				mergePositions &= reader.withPositions;
+			}
+			
+			int[] mergedDocIds = new int[1024];
+			int[] mergedTfs = new int[1024];
+			byte[] mergedPositions = mergePositions ? new byte[1 << 12] : null;
+			int[] mergedStarts = mergePositions ? new int[1025] : null;
+			
+			while (!queue.isEmpty()) {
+				
+				String term = queue.peek().term;
+				int size = 0;
+				
+				while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+					RunReader reader = queue.poll();
+					if (size + reader.size > mergedDocIds.length) {
+						int capacity = Math.max(2 * mergedDocIds.length, size + reader.size);
+						mergedDocIds = Arrays.copyOf(mergedDocIds, capacity);
+						mergedTfs = Arrays.copyOf(mergedTfs, capacity);
+						if (mergePositions) {
+							mergedStarts = Arrays.copyOf(mergedStarts, capacity + 1);
+						}
+					}
+					System.arraycopy(reader.docIds, 0, mergedDocIds, size, reader.size);
+					System.arraycopy(reader.tfs, 0, mergedTfs, size, reader.size);
+					if (mergePositions) {
+						int start = mergedStarts[size], length = reader.positionStarts[reader.size];
+						if (start + length > mergedPositions.length) {
+							mergedPositions = Arrays.copyOf(mergedPositions, Math.max(2 * mergedPositions.length, start + length));
+						}
+						System.arraycopy(reader.positions, 0, mergedPositions, start, length);
+						for (int k = 1; k <= reader.size; k++) {
+							mergedStarts[size + k] = start + reader.positionStarts[k];
+						}
+					}
+					size += reader.size;
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+				
+				sortPostings(mergedDocIds, mergedTfs, mergedPositions, mergedStarts, size);
+				sink.add(term, mergedDocIds, mergedTfs, mergedPositions, mergedStarts, size);
+			}
+		} finally {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Sequential reader of one run file.
+	 */
+	private static class RunReader {
+		
+		private final DataInputStream in;
+		private int remainingTerms;
+		final boolean withPositions;
+		
+		String term;
+		int[] docIds = new int[256];
+		int[] tfs = new int[256];
+		byte[] positions = new byte[1 << 12];
+		int[] positionStarts = new int[257];
+		int size;
+		
+		RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+			remainingTerms = in.readInt();
+			withPositions = in.readBoolean();
+		}
+		
+		boolean next() throws IOException {
+			if (remainingTerms == 0) {
+				return false;
+			}
+			remainingTerms--;
+			term = in.readUTF();
+			size = in.readInt();
+			if (size > docIds.length) {
+				docIds = new int[size];
+				tfs = new int[size];
+				positionStarts = new int[size + 1];
+			}
+			for (int k = 0; k < size; k++) {
+				docIds[k] = in.readInt();
+				tfs[k] = in.readInt();
+				if (withPositions) {
+					int start = positionStarts[k], length = in.readInt();
+					if (start + length > positions.length) {
+						positions = Arrays.copyOf(positions, Math.max(2 * positions.length, start + length));
+					}
+					in.readFully(positions, start, length);
+					positionStarts[k + 1] = start + length;
+				}
+			}
+			return true;
+		}
+		
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+}
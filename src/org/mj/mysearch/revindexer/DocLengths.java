@@ -0,0 +1,159 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Number of indexed tokens of every document of a segment, for BM25.
+ * 
+ * doclens.bin: int magic, int version, int numOfDocs, int padding, long totalLength,
+ *   numOfDocs x int docId (sorted), numOfDocs x int length
+ * 
+ * Served from a memory mapped buffer like the rest of the segment.
+ */
+public class DocLengths {
+	
+	public static final String FILE = "doclens.bin";
+	
+	private static final int MAGIC = 0x4d53444c;	// "MSDL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	
+	private final int numOfDocs;
+	private final long totalLength;
+	private final IntBuffer docIds;
+	private final IntBuffer lengths;
+	
+	
+	/**
+	 * Map the doc lengths of a segment.
+	 * @param dir segment directory
+	 */
+	public DocLengths(File dir) throws IOException {
+		
+		File file = new File(dir, FILE);
+		ByteBuffer buffer = SegmentReader.map(file, 0, -1);
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " doc length file: " + file);
+		}
+		numOfDocs = buffer.getInt(8);
+		totalLength = buffer.getLong(16);
+		
+		buffer.limit(HEADER_SIZE + 4 * numOfDocs).position(HEADER_SIZE);
+		docIds = buffer.slice().asIntBuffer();
+		buffer.limit(HEADER_SIZE + 8 * numOfDocs).position(HEADER_SIZE + 4 * numOfDocs);
+		lengths = buffer.slice().asIntBuffer();
+	}
+	
+	
+	/**
+	 * Write the doc lengths of a segment.
+	 * @param dir segment directory
+	 * @param docIds
+	 * @param lengths length of each docId
+	 * @param size number of docs
+	 */
+	public static void write(File dir, int[] docIds, int[] lengths, int size) throws IOException {
+		
+		long[] packed = new long[size];
+		long totalLength = 0;
+		for (int k = 0; k < size; k++) {
+			packed[k] = ((long) docIds[k] << 32) | (lengths[k] & 0xffffffffL);
+			totalLength += lengths[k];
+		}
+		Arrays.sort(packed);
+		
+		File tmp = SegmentWriter.tmpFile(dir, FILE);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(size);
+			out.writeInt(0);
+			out.writeLong(totalLength);
+			for (long entry : packed) {
+				out.writeInt((int) (entry >>> 32));
+			}
+			for (long entry : packed) {
+				out.writeInt((int) entry);
+			}
+		}
+		SegmentWriter.publish(tmp, new File(dir, FILE));
+	}
+	
+	
+	/**
+	 * Length of docId, 0 if docId is not in the segment
+	 */
+	public int getLength(int docId) {
+		int ordinal = ordinal(docId);
+		return ordinal < 0 ? 0 : lengths.get(ordinal);
+	}
+	
+	
+	/**
+	 * Rank of docId among the docIds of the segment, -1 if docId is not in the segment
+	 */
+	public int ordinal(int docId) {
+		int low = 0, high = numOfDocs - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midDocId = docIds.get(mid);
+			if (midDocId < docId) {
+				low = mid + 1;
+			} else if (midDocId > docId) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * docId of the given rank, 0 <= ordinal < getNumOfDocs()
+	 */
+	public int docIdAt(int ordinal) {
+		return docIds.get(ordinal);
+	}
+	
+	
+	/**
+	 * Length of the docId of the given rank
+	 */
+	public int lengthAt(int ordinal) {
+		return lengths.get(ordinal);
+	}
+	
+	
+	public int getNumOfDocs() {
+		return numOfDocs;
+	}
+	
+	
+	/**
+	 * Sum of the lengths of all the docs
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+	
+	
+	public double getAvgLength() {
+		return numOfDocs == 0 ? 0 : (double) totalLength / numOfDocs;
+	}
+
+}
@@ -0,0 +1,186 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The set of segments making up an incrementally updated index, at one generation.
+ * 
+ * indexDir/segments-<generation>: int magic, int version, long generation, UTF lastId,
+ *   int nextSegment, int numOfSegments, then per segment: UTF name, int numOfDocs,
+ *   int numOfDeleted, UTF tombstone file name ("" for none)
+ * 
+ * Every change of the index (new segment, deletes, merge) writes the manifest of the
+ * next generation to a temporary file and renames it atomically, the segments and
+ * tombstone files it names are complete by then and never changed afterwards. A reader
+ * opens the manifest of the highest generation and sees the whole set or nothing of a
+ * change. lastId is the mark of the DocumentStore up to which the pages were indexed.
+ */
+public class IndexManifest {
+	
+	public static final String PREFIX = "segments-";
+	
+	private static final int MAGIC = 0x4d53494d;	// "MSIM"
+	private static final int VERSION = 1;
+	
+	private final long generation;
+	private final String lastId;
+	private final int nextSegment;
+	private final List<Entry> segments;
+	
+	
+	/**
+	 * One segment of the set.
+	 */
+	public static class Entry {
+		
+		public final String name;
+		public final int numOfDocs;
+		public final int numOfDeleted;
+		/** tombstone file in the segment directory, null for none */
+		public final String tombstones;
+		
+		public Entry(String name, int numOfDocs, int numOfDeleted, String tombstones) {
+			this.name = name;
+			this.numOfDocs = numOfDocs;
+			this.numOfDeleted = numOfDeleted;
+			this.tombstones = tombstones;
+		}
+		
+		public int getNumOfLiveDocs() {
+			return numOfDocs - numOfDeleted;
+		}
+	}
+	
+	
+	/**
+	 * constructor class
+	 * @param generation
+	 * @param lastId mark of the DocumentStore the pages were indexed up to, "" for nothing
+	 * @param nextSegment number of the next new segment
+	 * @param segments
+	 */
+	public IndexManifest(long generation, String lastId, int nextSegment, List<Entry> segments) {
+		this.generation = generation;
+		this.lastId = lastId;
+		this.nextSegment = nextSegment;
+		this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+	}
+	
+	
+	/**
+	 * Manifest of the highest generation in indexDir, null if there is none
+	 */
+	public static IndexManifest latest(File indexDir) throws IOException {
+		long generation = latestGeneration(indexDir);
+		return generation < 0 ? null : read(new File(indexDir, PREFIX + generation));
+	}
+	
+	
+	/**
+	 * Highest manifest generation in indexDir, -1 if there is none
+	 */
+	public static long latestGeneration(File indexDir) {
+		long latest = -1;
+		String[] names = indexDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(PREFIX)) {
+					try {
+						latest = Math.max(latest, Long.parseLong(name.substring(PREFIX.length())));
+					} catch (NumberFormatException e) {
+						// temporary file
+					}
+				}
+			}
+		}
+		return latest;
+	}
+	
+	
+	public static IndexManifest read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " index manifest: " + file);
+			}
+			long generation = in.readLong();
+			String lastId = in.readUTF();
+			int nextSegment = in.readInt();
+			int numOfSegments = in.readInt();
+			List<Entry> segments = new ArrayList<>(numOfSegments);
+			for (int i = 0; i < numOfSegments; i++) {
+				String name = in.readUTF();
+				int numOfDocs = in.readInt();
+				int numOfDeleted = in.readInt();
+				String tombstones = in.readUTF();
+				segments.add(new Entry(name, numOfDocs, numOfDeleted, tombstones.isEmpty() ? null : tombstones));
+			}
+			return new IndexManifest(generation, lastId, nextSegment, segments);
+		}
+	}
+	
+	
+	/**
+	 * Publish this manifest in indexDir: written to a temporary file, then atomically renamed.
+	 */
+	public void write(File indexDir) throws IOException {
+		
+		File tmp = new File(indexDir, PREFIX + generation + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			out.writeUTF(lastId);
+			out.writeInt(nextSegment);
+			out.writeInt(segments.size());
+			for (Entry segment : segments) {
+				out.writeUTF(segment.name);
+				out.writeInt(segment.numOfDocs);
+				out.writeInt(segment.numOfDeleted);
+				out.writeUTF(segment.tombstones == null ? "" : segment.tombstones);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(indexDir, PREFIX + generation).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	public long getGeneration() {
+		return generation;
+	}
+	
+	
+	public String getLastId() {
+		return lastId;
+	}
+	
+	
+	public int getNextSegment() {
+		return nextSegment;
+	}
+	
+	
+	public List<Entry> getSegments() {
+		return segments;
+	}
+
+}
@@ -0,0 +1,386 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Keeps an index made of several segments up to date without rebuilding it.
+ * 
+ * New documents are indexed into a new small segment (see RevIndexer.startIncremental()),
+ * published by addSegment(): the older versions of its documents are marked deleted in
+ * the segments holding them (see Tombstones). Deleted documents are only marked too. A
+ * TieredMergePolicy then picks segments to merge, they are merged in the background
+ * (see SegmentMerger) and replaced by the merged segment once it is complete.
+ * 
+ * Every change is published by a new IndexManifest, the query side switches to it
+ * atomically and keeps serving the previous one meanwhile. Segments and tombstone files
+ * are never changed, the ones no longer named by the last two manifests are deleted.
+ * 
+ * One IndexUpdater per index directory at a time, its methods are thread safe.
+ */
+public class IndexUpdater {
+	
+	private static final Logger logger = LoggerFactory.getLogger(IndexUpdater.class);
+	
+	public static final String SEGMENT_PREFIX = "seg-";
+	public static final String TOMBSTONES_PREFIX = "deletes-";
+	
+	private final File indexDir;
+	private final TieredMergePolicy mergePolicy;
+	private final ExecutorService mergeThread = Executors.newSingleThreadExecutor();
+	
+	private IndexManifest manifest;
+	private int nextSegment;
+	/** segments being merged, as they were when the merge started */
+	private final Map<String, IndexManifest.Entry> merging = new HashMap<>();
+	/** segment directories handed out and not published yet */
+	private final Set<String> pending = new HashSet<>();
+	
+	
+	/**
+	 * constructor class, opens the latest manifest of indexDir or creates an empty index
+	 * @param indexDir
+	 * @param mergePolicy
+	 */
+	public IndexUpdater(File indexDir, TieredMergePolicy mergePolicy) throws IOException {
+		
+		this.indexDir = indexDir;
+		this.mergePolicy = mergePolicy;
+		
+		indexDir.mkdirs();
+		manifest = IndexManifest.latest(indexDir);
+		if (manifest == null) {
+			manifest = new IndexManifest(0, "", 0, new ArrayList<IndexManifest.Entry>());
+			manifest.write(indexDir);
+		}
+		nextSegment = manifest.getNextSegment();
+		
+		logger.info("Opened index {} at generation {} with {} segments.", indexDir, manifest.getGeneration(),
+				manifest.getSegments().size());
+	}
+	
+	
+	public synchronized IndexManifest getManifest() {
+		return manifest;
+	}
+	
+	
+	/**
+	 * Directory for a new segment, to write with SegmentWriter then publish with addSegment()
+	 */
+	public synchronized File newSegmentDir() {
+		String name = SEGMENT_PREFIX + nextSegment++;
+		pending.add(name);
+		return new File(indexDir, name);
+	}
+	
+	
+	/**
+	 * Give up a directory from newSegmentDir() that will not be published, and delete it.
+	 */
+	public synchronized void discardSegment(File segmentDir) {
+		pending.remove(segmentDir.getName());
+		deleteDir(segmentDir);
+	}
+	
+	
+	/**
+	 * Publish a complete segment: its documents replace their older versions.
+	 * @param segmentDir directory from newSegmentDir()
+	 * @param lastId mark of the DocumentStore the index is up to date with, see IndexManifest
+	 */
+	public synchronized void addSegment(File segmentDir, String lastId) throws IOException {
+		
+		DocLengths docLengths = new DocLengths(segmentDir);
+		int[] docIds = new int[docLengths.getNumOfDocs()];
+		for (int i = 0; i < docIds.length; i++) {
+			docIds[i] = docLengths.docIdAt(i);
+		}
+		
+		List<IndexManifest.Entry> segments = new ArrayList<>();
+		int numOfReplaced = 0;
+		for (IndexManifest.Entry segment : manifest.getSegments()) {
+			IndexManifest.Entry updated = delete(segment, docIds);
+			numOfReplaced += updated.numOfDeleted - segment.numOfDeleted;
+			segments.add(updated);
+		}
+		segments.add(new IndexManifest.Entry(segmentDir.getName(), docIds.length, 0, null));
+		pending.remove(segmentDir.getName());
+		
+		commit(lastId, segments);
+		logger.info("Added segment {}: {} docs, {} of them replaced.", segmentDir.getName(), docIds.length,
+				numOfReplaced);
+		
+		maybeMerge();
+	}
+	
+	
+	/**
+	 * Delete documents from the index.
+	 * @param docIds
+	 * @return number of live documents deleted
+	 */
+	public synchronized int delete(int[] docIds) throws IOException {
+		
+		List<IndexManifest.Entry> segments = new ArrayList<>();
+		int numOfDeleted = 0;
+		for (IndexManifest.Entry segment : manifest.getSegments()) {
+			IndexManifest.Entry updated = delete(segment, docIds);
+			numOfDeleted += updated.numOfDeleted - segment.numOfDeleted;
+			segments.add(updated);
+		}
+		
+		if (numOfDeleted > 0) {
+			commit(manifest.getLastId(), segments);
+			maybeMerge();
+		}
+		logger.info("Deleted {} docs.", numOfDeleted);
+		return numOfDeleted;
+	}
+	
+	
+	/**
+	 * Mark the docIds held by segment deleted, in a new tombstone file for the next generation.
+	 * @return the updated entry, segment itself if none of docIds is live in it
+	 */
+	private IndexManifest.Entry delete(IndexManifest.Entry segment, int[] docIds) throws IOException {
+		
+		File dir = new File(indexDir, segment.name);
+		DocLengths docLengths = new DocLengths(dir);
+		
+		Tombstones tombstones = null;
+		for (int docId : docIds) {
+			int ordinal = docLengths.ordinal(docId);
+			if (ordinal >= 0) {
+				if (tombstones == null) {
+					tombstones = tombstones(segment).copy();
+				}
+				tombstones.delete(ordinal);
+			}
+		}
+		
+		if (tombstones == null || tombstones.getNumOfDeleted() == segment.numOfDeleted) {
+			return segment;
+		}
+		return writeTombstones(segment.name, tombstones);
+	}
+	
+	
+	private Tombstones tombstones(IndexManifest.Entry segment) throws IOException {
+		if (segment.tombstones == null) {
+			return new Tombstones(segment.numOfDocs);
+		}
+		return Tombstones.read(new File(new File(indexDir, segment.name), segment.tombstones));
+	}
+	
+	
+	private IndexManifest.Entry writeTombstones(String name, Tombstones tombstones) throws IOException {
+		String file = TOMBSTONES_PREFIX + (manifest.getGeneration() + 1) + ".bin";
+		tombstones.write(new File(new File(indexDir, name), file));
+		return new IndexManifest.Entry(name, tombstones.getNumOfDocs(), tombstones.getNumOfDeleted(), file);
+	}
+	
+	
+	/**
+	 * Publish the next generation and clean up what the previous one no longer needs.
+	 */
+	private void commit(String lastId, List<IndexManifest.Entry> segments) throws IOException {
+		
+		IndexManifest previous = manifest;
+		IndexManifest next = new IndexManifest(previous.getGeneration() + 1, lastId, nextSegment, segments);
+		next.write(indexDir);
+		manifest = next;
+		
+		// the readers of the previous generation may still open its files
+		Set<String> referenced = new HashSet<>(pending);
+		Map<String, Set<String>> tombstoneFiles = new HashMap<>();
+		// and the merges read the tombstones of the segments as they started
+		List<IndexManifest.Entry> used = new ArrayList<>(previous.getSegments());
+		used.addAll(manifest.getSegments());
+		used.addAll(merging.values());
+		for (IndexManifest.Entry segment : used) {
+			referenced.add(segment.name);
+			if (!tombstoneFiles.containsKey(segment.name)) {
+				tombstoneFiles.put(segment.name, new HashSet<String>());
+			}
+			tombstoneFiles.get(segment.name).add(segment.tombstones);
+		}
+		
+		for (File file : indexDir.listFiles()) {
+			String name = file.getName();
+			if (name.startsWith(IndexManifest.PREFIX) && !name.endsWith(".tmp")) {
+				if (Long.parseLong(name.substring(IndexManifest.PREFIX.length())) < previous.getGeneration()) {
+					file.delete();
+				}
+			} else if (name.startsWith(SEGMENT_PREFIX)) {
+				if (!referenced.contains(name)) {
+					deleteDir(file);
+				} else if (tombstoneFiles.containsKey(name)) {
+					for (File segmentFile : file.listFiles()) {
+						if (segmentFile.getName().startsWith(TOMBSTONES_PREFIX)
+								&& !tombstoneFiles.get(name).contains(segmentFile.getName())) {
+							segmentFile.delete();
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	
+	static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	
+	/**
+	 * Start the merge picked by the merge policy, if any.
+	 */
+	private void maybeMerge() {
+		
+		final List<IndexManifest.Entry> sources = mergePolicy.findMerge(manifest.getSegments(), merging.keySet());
+		if (sources.isEmpty()) {
+			return;
+		}
+		
+		for (IndexManifest.Entry segment : sources) {
+			merging.put(segment.name, segment);
+		}
+		final File target = newSegmentDir();
+		logger.info("Merging {} segments into {}.", sources.size(), target.getName());
+		
+		mergeThread.submit(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					SegmentMerger.merge(indexDir, sources, target);
+					commitMerge(sources, target);
+				} catch (Exception e) {
+					logger.error("Error while merging into {}", target.getName());
+					e.printStackTrace();
+					synchronized (IndexUpdater.this) {
+						for (IndexManifest.Entry segment : sources) {
+							merging.remove(segment.name);
+						}
+						pending.remove(target.getName());
+						deleteDir(target);
+						IndexUpdater.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Replace the merged segments by target. The docs deleted from them while they were
+	 * merged are deleted from target.
+	 */
+	private synchronized void commitMerge(List<IndexManifest.Entry> sources, File target) throws IOException {
+		
+		Map<String, IndexManifest.Entry> current = new HashMap<>();
+		for (IndexManifest.Entry segment : manifest.getSegments()) {
+			current.put(segment.name, segment);
+		}
+		
+		DocLengths docLengths = new DocLengths(target);
+		Tombstones tombstones = new Tombstones(docLengths.getNumOfDocs());
+		for (IndexManifest.Entry source : sources) {
+			IndexManifest.Entry now = current.get(source.name);
+			if (now.numOfDeleted == source.numOfDeleted) {
+				continue;
+			}
+			Tombstones before = tombstones(source), after = tombstones(now);
+			DocLengths sourceLengths = new DocLengths(new File(indexDir, source.name));
+			for (int ordinal = 0; ordinal < source.numOfDocs; ordinal++) {
+				if (after.isDeleted(ordinal) && !before.isDeleted(ordinal)) {
+					tombstones.delete(docLengths.ordinal(sourceLengths.docIdAt(ordinal)));
+				}
+			}
+		}
+		
+		IndexManifest.Entry merged;
+		if (tombstones.getNumOfDeleted() > 0) {
+			merged = writeTombstones(target.getName(), tombstones);
+		} else {
+			merged = new IndexManifest.Entry(target.getName(), docLengths.getNumOfDocs(), 0, null);
+		}
+		
+		List<IndexManifest.Entry> segments = new ArrayList<>();
+		for (IndexManifest.Entry segment : manifest.getSegments()) {
+			if (!containsName(sources, segment.name)) {
+				segments.add(segment);
+			} else if (merged != null) {
+				// in place of the first source, an empty merge (everything deleted) is dropped
+				if (merged.numOfDocs > 0) {
+					segments.add(merged);
+				}
+				merged = null;
+			}
+		}
+		
+		for (IndexManifest.Entry segment : sources) {
+			merging.remove(segment.name);
+		}
+		pending.remove(target.getName());
+		
+		commit(manifest.getLastId(), segments);
+		logger.info("Merged {} segments into {}: {} docs.", sources.size(), target.getName(),
+				docLengths.getNumOfDocs());
+		
+		maybeMerge();
+		notifyAll();
+	}
+	
+	
+	private static boolean containsName(List<IndexManifest.Entry> segments, String name) {
+		for (IndexManifest.Entry segment : segments) {
+			if (segment.name.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Wait for the merges to complete, including the ones they trigger, then stop the merge thread.
+	 */
+	public void close() throws InterruptedException {
+		
+		synchronized (this) {
+			while (!merging.isEmpty()) {
+				wait();
+			}
+		}
+		mergeThread.shutdown();
+		mergeThread.awaitTermination(1, TimeUnit.MINUTES);
+		logger.info("Closed index {} at generation {}.", indexDir, manifest.getGeneration());
+	}
+
+}
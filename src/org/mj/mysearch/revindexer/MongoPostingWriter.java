@@ -0,0 +1,61 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.mj.mysearch.webcrawler.BulkWriteBuffer;
+
+import com.mongodb.client.MongoCollection;
+
+
+/**
+ * Writes posting lists to RevIndexDB.Word_DocId in unordered bulk batches:
+ * { word: "...", word_count_in_docId: [ {"docId": tf}, ... ] }
+ * 
+ * Lists longer than MAX_POSTINGS_PER_DOCUMENT are split over several
+ * documents of the same word, in docId order, to stay under the BSON size limit.
+ * Positions are only kept by segments (see SegmentWriter), they are not written here.
+ */
+public class MongoPostingWriter implements PostingSink {
+	
+	private static final int MAX_POSTINGS_PER_DOCUMENT = 100000;
+	private static final int WRITE_BATCH_SIZE = 100;
+	
+	private final BulkWriteBuffer buffer;
+	
+	
+	/**
+	 * constructor class
+	 * @param collection Word_DocId
+	 */
+	public MongoPostingWriter(MongoCollection<Document> collection) {
+		buffer = new BulkWriteBuffer(collection, WRITE_BATCH_SIZE);
+	}
+	
+	
+	@Override
+	public void add(String term, int[] docIds, int[] tfs, byte[] positions, int[] positionStarts, int size) {
+		
+		for (int from = 0; from < size; from += MAX_POSTINGS_PER_DOCUMENT) {
+			int to = Math.min(size, from + MAX_POSTINGS_PER_DOCUMENT);
+			List<Document> postings = new ArrayList<>(to - from);
+			for (int k = from; k < to; k++) {
+				postings.add(new Document(Integer.toString(docIds[k]), tfs[k]));
+			}
+			buffer.insert(new Document().append("word", term).append("word_count_in_docId", postings));
+		}
+	}
+	
+	
+	@Override
+	public void close() {
+		buffer.flush();
+	}
+
+}
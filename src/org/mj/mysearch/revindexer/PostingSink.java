@@ -0,0 +1,34 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.IOException;
+
+
+/**
+ * Receives the final posting lists of an index build, one term at a time
+ * in increasing term order, postings sorted by docId.
+ */
+public interface PostingSink {
+	
+	/**
+	 * @param term
+	 * @param docIds sorted docIds, valid up to size and only during the call
+	 * @param tfs term frequency in each docId
+	 * @param positions encoded token positions (see TermCounter), the tfs[k] positions of docIds[k]
+	 *   are positions[positionStarts[k] .. positionStarts[k + 1]), null when not indexed
+	 * @param positionStarts size + 1 offsets in positions
+	 * @param size number of postings
+	 */
+	void add(String term, int[] docIds, int[] tfs, byte[] positions, int[] positionStarts, int size) throws IOException;
+	
+	
+	/**
+	 * Called once after the last term.
+	 */
+	void close() throws IOException;
+
+}
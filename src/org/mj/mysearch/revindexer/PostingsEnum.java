@@ -0,0 +1,417 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Iterates the posting list of one term of a segment, in docId order.
+ * 
+ * nextDoc() decodes the postings one by one, advance() first uses the skip
+ * entries to jump over the blocks whose last docId is below the target.
+ * advanceShallow() only moves along the skip entries, to read the score
+ * bounds of a block without decoding it. See SegmentWriter for the layout.
+ * 
+ * positions() reads the token positions of the current posting, only when asked:
+ * the block of the posting gives where to start in the positions of the term,
+ * and the tfs of the postings before it in the block how many positions to skip.
+ * 
+ * decode() gives a copy of the list with every posting decoded to int arrays,
+ * which can be kept (see QueryEngine's postings cache) and iterated again and
+ * again through copy(), without VByte decoding.
+ */
+public class PostingsEnum {
+	
+	public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+	
+	private final ByteBuffer buffer;
+	private final int postingsStart;
+	private final int[] decodedDocIds, decodedTfs;
+	private final int docFreq;
+	private final int blockSize;
+	
+	private final int numOfSkips;
+	private final int[] skipDocIds;
+	private final int[] skipPositions;
+	private final int[] impactStarts;
+	private final int[] impactTfs;
+	private final int[] impactDocLengths;
+	private final int maxTf, minDocLength;
+	private int shallowBlock;
+	
+	private final ByteBuffer positions;
+	private final int positionsBase, positionsStart;
+	
+	private int docId = -1;
+	private int tf;
+	private int read;
+	private int lastDocId;
+	/** sum of the tfs of the postings before the current one in its block */
+	private int blockTfs;
+	
+	
+	/**
+	 * constructor class
+	 * @param buffer encoded posting list of the term, from its position to its limit
+	 * @param docFreq number of postings
+	 * @param blockSize postings per skip block
+	 * @param maxTf largest tf of the list
+	 * @param minDocLength smallest doc length of the list
+	 */
+	public PostingsEnum(ByteBuffer buffer, int docFreq, int blockSize, int maxTf, int minDocLength) {
+		this(buffer, null, docFreq, blockSize, maxTf, minDocLength);
+	}
+	
+	
+	/**
+	 * constructor class
+	 * @param buffer encoded posting list of the term, from its position to its limit
+	 * @param positions encoded positions of the term, from its position to its limit, null if not indexed
+	 * @param docFreq number of postings
+	 * @param blockSize postings per skip block
+	 * @param maxTf largest tf of the list
+	 * @param minDocLength smallest doc length of the list
+	 */
+	public PostingsEnum(ByteBuffer buffer, ByteBuffer positions, int docFreq, int blockSize, int maxTf, int minDocLength) {
+		
+		this.buffer = buffer;
+		this.positions = positions;
+		this.positionsBase = positions == null ? 0 : positions.position();
+		this.positionsStart = positionsBase + 4 * ((docFreq + blockSize - 1) / blockSize - 1);
+		this.decodedDocIds = null;
+		this.decodedTfs = null;
+		this.docFreq = docFreq;
+		this.blockSize = blockSize;
+		this.maxTf = maxTf;
+		this.minDocLength = minDocLength;
+		
+		numOfSkips = VByte.readVInt(buffer);
+		skipDocIds = new int[numOfSkips];
+		skipPositions = new int[numOfSkips];
+		impactStarts = new int[numOfSkips + 1];
+		int[] tfs = new int[numOfSkips == 0 ? 1 : 2 * numOfSkips];
+		int[] docLengths = new int[tfs.length];
+		
+		int skipDocId = 0, numOfImpacts = 0;
+		int[] lengths = skipPositions;
+		for (int block = 0; block < numOfSkips; block++) {
+			skipDocId += VByte.readVInt(buffer);
+			skipDocIds[block] = skipDocId;
+			lengths[block] = VByte.readVInt(buffer);
+			
+			int n = VByte.readVInt(buffer);
+			if (numOfImpacts + n > tfs.length) {
+				tfs = Arrays.copyOf(tfs, Math.max(2 * tfs.length, numOfImpacts + n));
+				docLengths = Arrays.copyOf(docLengths, tfs.length);
+			}
+			for (int i = 0, tf = 0, docLength = 0; i < n; i++) {
+				tf += VByte.readVInt(buffer);
+				docLength += VByte.readVInt(buffer);
+				tfs[numOfImpacts] = tf;
+				docLengths[numOfImpacts++] = docLength;
+			}
+			impactStarts[block + 1] = numOfImpacts;
+		}
+		if (numOfSkips == 0) {
+			// a single block, bounded by the list
+			tfs[0] = maxTf;
+			docLengths[0] = minDocLength;
+		}
+		impactTfs = tfs;
+		impactDocLengths = docLengths;
+		// block lengths => absolute start position of each block
+		int position = buffer.position();
+		for (int block = 0; block < numOfSkips; block++) {
+			int length = lengths[block];
+			skipPositions[block] = position;
+			position += length;
+		}
+		postingsStart = buffer.position();
+	}
+	
+	
+	/**
+	 * New iterator over the same list, sharing its skip entries and decoded postings.
+	 */
+	private PostingsEnum(PostingsEnum list, ByteBuffer buffer, int[] decodedDocIds, int[] decodedTfs) {
+		this.buffer = buffer;
+		this.postingsStart = list.postingsStart;
+		this.decodedDocIds = decodedDocIds;
+		this.decodedTfs = decodedTfs;
+		this.docFreq = list.docFreq;
+		this.blockSize = list.blockSize;
+		this.numOfSkips = list.numOfSkips;
+		this.skipDocIds = list.skipDocIds;
+		this.skipPositions = list.skipPositions;
+		this.impactStarts = list.impactStarts;
+		this.impactTfs = list.impactTfs;
+		this.impactDocLengths = list.impactDocLengths;
+		this.maxTf = list.maxTf;
+		this.minDocLength = list.minDocLength;
+		this.positions = list.positions == null ? null : list.positions.duplicate();
+		this.positionsBase = list.positionsBase;
+		this.positionsStart = list.positionsStart;
+	}
+	
+	
+	/**
+	 * The whole list decoded, positioned before its first posting. This iterator is not moved.
+	 */
+	public PostingsEnum decode() {
+		
+		if (decodedDocIds != null) {
+			return copy();
+		}
+		
+		int[] docIds = new int[docFreq];
+		int[] tfs = new int[docFreq];
+		ByteBuffer postings = buffer.duplicate();
+		postings.position(postingsStart);
+		for (int k = 0, docId = 0; k < docFreq; k++) {
+			docId += VByte.readVInt(postings);
+			docIds[k] = docId;
+			tfs[k] = VByte.readVInt(postings);
+		}
+		return new PostingsEnum(this, null, docIds, tfs);
+	}
+	
+	
+	/**
+	 * New iterator over the same list, positioned before its first posting.
+	 */
+	public PostingsEnum copy() {
+		if (decodedDocIds != null) {
+			return new PostingsEnum(this, null, decodedDocIds, decodedTfs);
+		}
+		ByteBuffer postings = buffer.duplicate();
+		postings.position(postingsStart);
+		return new PostingsEnum(this, postings, null, null);
+	}
+	
+	
+	public boolean isDecoded() {
+		return decodedDocIds != null;
+	}
+	
+	
+	/**
+	 * Heap bytes held by the list (decoded postings, skip entries), not counting the mapped buffer
+	 */
+	public long bytes() {
+		long bytes = 96 + 12L * numOfSkips + 8L * impactTfs.length;
+		if (decodedDocIds != null) {
+			bytes += 8L * docFreq;
+		}
+		return bytes;
+	}
+	
+	
+	/**
+	 * Move to the next posting.
+	 * @return its docId, or NO_MORE_DOCS
+	 */
+	public int nextDoc() {
+		
+		if (read == docFreq) {
+			return docId = NO_MORE_DOCS;
+		}
+		if (positions != null) {
+			blockTfs = read % blockSize == 0 ? 0 : blockTfs + tf;
+		}
+		if (decodedDocIds != null) {
+			tf = decodedTfs[read];
+			return docId = decodedDocIds[read++];
+		}
+		lastDocId += VByte.readVInt(buffer);
+		tf = VByte.readVInt(buffer);
+		read++;
+		return docId = lastDocId;
+	}
+	
+	
+	/**
+	 * Move to the first posting with docId >= target, never backwards.
+	 * @param target
+	 * @return its docId, or NO_MORE_DOCS
+	 */
+	public int advance(int target) {
+		
+		if (docId >= target) {
+			return docId;
+		}
+		
+		if (numOfSkips > 0) {
+			int current = read / blockSize;
+			int block = current;
+			while (block < numOfSkips && skipDocIds[block] < target) {
+				block++;
+			}
+			if (block == numOfSkips) {
+				read = docFreq;
+				return docId = NO_MORE_DOCS;
+			}
+			if (block > current) {
+				if (decodedDocIds == null) {
+					buffer.position(skipPositions[block]);
+					lastDocId = skipDocIds[block - 1];
+				}
+				read = block * blockSize;
+			}
+		}
+		
+		while (nextDoc() < target) {
+		}
+		return docId;
+	}
+	
+	
+	public boolean hasPositions() {
+		return positions != null;
+	}
+	
+	
+	/**
+	 * Token positions of the current posting, in increasing order.
+	 * @param buffer where to put them, can be null
+	 * @return buffer, or a new array if it is too small for tf() positions
+	 */
+	public int[] positions(int[] buffer) {
+		
+		if (buffer == null || buffer.length < tf) {
+			buffer = new int[Math.max(tf, 16)];
+		}
+		
+		int block = (read - 1) / blockSize;
+		int p = positionsStart + (block == 0 ? 0 : positions.getInt(positionsBase + 4 * (block - 1)));
+		// a VByte int ends on the first byte without the high bit
+		for (int skip = blockTfs; skip > 0; p++) {
+			if (positions.get(p) >= 0) {
+				skip--;
+			}
+		}
+		
+		positions.position(p);
+		for (int i = 0, position = 0; i < tf; i++) {
+			position += VByte.readVInt(positions);
+			buffer[i] = position;
+		}
+		return buffer;
+	}
+	
+	
+	/**
+	 * Move the block bounds to the block holding the first posting >= target,
+	 * without decoding anything, never backwards. The current posting is not moved.
+	 * @param target
+	 */
+	public void advanceShallow(int target) {
+		while (shallowBlock < numOfSkips && skipDocIds[shallowBlock] < target) {
+			shallowBlock++;
+		}
+	}
+	
+	
+	/**
+	 * Last docId of the block of the last advanceShallow(), NO_MORE_DOCS for the last block
+	 * (or past the end of the list)
+	 */
+	public int blockLastDocId() {
+		return shallowBlock < numOfSkips - 1 ? skipDocIds[shallowBlock] : NO_MORE_DOCS;
+	}
+	
+	
+	/**
+	 * Number of impacts of the block of the last advanceShallow(), 0 past the end of the list.
+	 * The score of every posting of the block is at most the best score of its impacts.
+	 */
+	public int blockNumOfImpacts() {
+		if (numOfSkips == 0) {
+			return 1;
+		}
+		return shallowBlock < numOfSkips ? impactStarts[shallowBlock + 1] - impactStarts[shallowBlock] : 0;
+	}
+	
+	
+	/**
+	 * tf of impact i of the block of the last advanceShallow()
+	 */
+	public int blockImpactTf(int i) {
+		return impactTfs[numOfSkips == 0 ? i : impactStarts[shallowBlock] + i];
+	}
+	
+	
+	/**
+	 * Doc length of impact i of the block of the last advanceShallow()
+	 */
+	public int blockImpactDocLength(int i) {
+		return impactDocLengths[numOfSkips == 0 ? i : impactStarts[shallowBlock] + i];
+	}
+	
+	
+	/**
+	 * Number of impacts of all the blocks, the score of every posting of the list
+	 * is at most the best score of these impacts.
+	 */
+	public int numOfImpacts() {
+		return numOfSkips == 0 ? 1 : impactStarts[numOfSkips];
+	}
+	
+	
+	/**
+	 * tf of impact i of all the blocks
+	 */
+	public int impactTf(int i) {
+		return impactTfs[i];
+	}
+	
+	
+	/**
+	 * Doc length of impact i of all the blocks
+	 */
+	public int impactDocLength(int i) {
+		return impactDocLengths[i];
+	}
+	
+	
+	/**
+	 * Largest tf of the whole list
+	 */
+	public int maxTf() {
+		return maxTf;
+	}
+	
+	
+	/**
+	 * Smallest doc length of the whole list
+	 */
+	public int minDocLength() {
+		return minDocLength;
+	}
+	
+	
+	/**
+	 * Current docId, -1 before the first nextDoc() / advance()
+	 */
+	public int docId() {
+		return docId;
+	}
+	
+	
+	/**
+	 * Term frequency in the current docId
+	 */
+	public int tf() {
+		return tf;
+	}
+	
+	
+	public int docFreq() {
+		return docFreq;
+	}
+
+}
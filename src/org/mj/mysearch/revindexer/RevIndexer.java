@@ -6,18 +6,30 @@
 package org.mj.mysearch.revindexer;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 
 
-import com.mongodb.MongoClient;
-import com.mongodb.BasicDBList;
 import com.mongodb.Block;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.FindIterable;
 
+import org.mj.mysearch.storage.DocumentStore;
+import org.mj.mysearch.storage.MongoStorage;
+import org.mj.mysearch.storage.Storage;
+import org.mj.mysearch.storage.Storages;
+import org.mj.mysearch.webcrawler.BdbCrawlReader;
+import org.mj.mysearch.webcrawler.PageRecord;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,17 +39,17 @@ public class RevIndexer {
 	
 	private static final Logger logger = LoggerFactory.getLogger(RevIndexer.class);
 	
-	private static final String INDEX_DB_NAME = "WebCrawlerIndexDB";
-	private static final String REV_INDEX_DB = "RevIndexDB";
+	public static final String SHARD_PREFIX = "shard-";
 	
-	private MongoClient mongoClient;
+	private Storage storage;
+	private boolean ownsStorage;
 	private MongoDatabase indexDB, revIndexDB;
 	
 	protected final Object mutex = new Object();
 	
 
 	/**
-	 * class constructor
+	 * class constructor, reads the storage of the system properties (see Storages)
 	 */
 	public RevIndexer() {
 		
@@ -46,19 +58,27 @@ public class RevIndexer {
 	
 	
 	/**
-	 * Initialize the databases
+	 * class constructor
+	 * @param storage storage of the crawl, stays open after shutDown()
+	 */
+	public RevIndexer(Storage storage) {
+		this.storage = storage;
+	}
+	
+	
+	/**
+	 * Initialize the storage, the postings are only dropped by the modes rebuilding them
 	 */
 	public void initialize() {
 		
 		try {
 			
-			mongoClient = new MongoClient();
-			indexDB = mongoClient.getDatabase(INDEX_DB_NAME);
-			mongoClient.dropDatabase(REV_INDEX_DB);
-			revIndexDB = mongoClient.getDatabase(REV_INDEX_DB);
-			
+			if (storage == null) {
+				storage = Storages.fromSystemProperties();
+				ownsStorage = true;
+			}
 			
-			logger.info("Successfully initialized {} and {}.", INDEX_DB_NAME, REV_INDEX_DB);
+			logger.info("Successfully initialized {}.", storage.getClass().getSimpleName());
 			//txnIndexDB = indexDBEnv.beginTransaction(null, null);
 			//txnOutgoingUrlDB = outgoingDBEnv.beginTransaction(null, null);
 			
@@ -79,23 +99,29 @@ public class RevIndexer {
 		
 		logger.info("Shutting down databases.");
 		
-		try {
-			mongoClient.close();
-			
-		} catch (Exception e) {
-			logger.error("Error while shutting down MongoDB Client.");
-			e.printStackTrace();
+		if (ownsStorage && storage != null) {
+			storage.close();
 		}
 	}
 	
 	
 	/**
-	 * Start
+	 * Start, one find / insert / update round-trip per (docId, word), on MongoDB only
 	 */
 	public void start() {
 		
+		if (!(storage instanceof MongoStorage)) {
+			logger.error("The word by word mode needs the MongoDB storage, see startBatch().");
+			return;
+		}
+		
 		try {
 			
+			indexDB = ((MongoStorage) storage).getDatabase(MongoStorage.INDEX_DB_NAME);
+			revIndexDB = ((MongoStorage) storage).getDatabase(MongoStorage.REV_INDEX_DB_NAME);
+			revIndexDB.drop();
+			revIndexDB.getCollection("Word_DocId").createIndex(new Document("word", 1));
+			
 			// For each entry
 			FindIterable<Document> iterable = indexDB.getCollection("DocId_WordCount").find();
 			
@@ -142,6 +168,398 @@ public class RevIndexer {
 	}
 	
 	
+	/**
+	 * Batch mode: the postings are built in memory (spilled to sorted runs in tmpDir
+	 * above memoryBudget bytes) and written once per word to the PostingStore, see
+	 * BatchIndexBuilder.
+	 * 
+	 * @param memoryBudget
+	 * @param tmpDir
+	 */
+	public void startBatch(long memoryBudget, File tmpDir) {
+		startBatch(memoryBudget, tmpDir, null);
+	}
+	
+	
+	/**
+	 * Batch mode, writing the postings to a binary segment (see SegmentWriter)
+	 * instead of the PostingStore when segmentDir is not null.
+	 * 
+	 * @param memoryBudget
+	 * @param tmpDir
+	 * @param segmentDir
+	 */
+	public void startBatch(long memoryBudget, File tmpDir, File segmentDir) {
+		
+		try {
+			
+			if (segmentDir != null) {
+				clearShards(segmentDir, 0);
+			}
+			indexRange(new DocumentScan() {
+				
+				@Override
+				void forEach(DocumentStore.DocumentVisitor visitor) throws IOException {
+					storage.getDocumentStore().forEach(visitor);
+				}
+			}, memoryBudget, tmpDir, segmentDir);
+			logger.info("Batch indexing complete.");
+			
+		} catch (Exception e) {
+			
+			logger.error("Error from function startBatch()");
+			e.printStackTrace();
+			shutDown();
+		}
+		
+	}
+	
+	
+	/**
+	 * Batch mode reading the pages of a TextCrawlerBDB crawl (see BdbCrawlReader) instead of
+	 * the DocumentStore, into a binary segment or the PostingStore if segmentDir is null.
+	 * 
+	 * @param indexEnvDir index environment directory of TextCrawlerBDB
+	 * @param memoryBudget
+	 * @param tmpDir
+	 * @param segmentDir
+	 */
+	public void startBdb(File indexEnvDir, long memoryBudget, File tmpDir, File segmentDir) {
+		
+		try {
+			
+			if (segmentDir != null) {
+				clearShards(segmentDir, 0);
+			}
+			final BatchIndexBuilder builder = new BatchIndexBuilder(memoryBudget, tmpDir);
+			final SegmentWriter segmentWriter = segmentDir != null ? new SegmentWriter(segmentDir) : null;
+			
+			BdbCrawlReader.readPages(indexEnvDir, new BdbCrawlReader.PageVisitor() {
+				
+				@Override
+				public void visit(int docId, String[] words, int[] counts, int size) throws IOException {
+					if (segmentWriter != null) {
+						int docLength = 0;
+						for (int k = 0; k < size; k++) {
+							docLength += counts[k];
+						}
+						segmentWriter.addDocLength(docId, docLength);
+					}
+					// the BDB records keep no positions
+					builder.addDocument(docId, words, counts, null, size);
+				}
+			});
+			
+			builder.finish(segmentWriter != null ? segmentWriter : storage.getPostingStore().create());
+			logger.info("BDB batch indexing complete.");
+			
+		} catch (Exception e) {
+			
+			logger.error("Error from function startBdb()");
+			e.printStackTrace();
+			shutDown();
+		}
+		
+	}
+	
+	
+	/**
+	 * Sharded batch mode: the docId space is split into numOfShards ranges, shard k is indexed
+	 * into its own segment indexDir/shard-k (see shardDir()) by its own thread and cursor,
+	 * numOfThreads shards at a time, each thread with memoryBudget / numOfThreads.
+	 * The shards are not merged, they are searched together by a ShardedQueryEngine.
+	 * The shards of an earlier run beyond numOfShards are deleted first (see clearShards()).
+	 * 
+	 * @param memoryBudget
+	 * @param tmpDir
+	 * @param indexDir
+	 * @param numOfShards
+	 * @param numOfThreads
+	 */
+	public void startSharded(final long memoryBudget, final File tmpDir, final File indexDir, int numOfShards, 
+			int numOfThreads) {
+		
+		ExecutorService pool = Executors.newFixedThreadPool(numOfThreads);
+		
+		try {
+			
+			clearShards(indexDir, numOfShards);
+			final int[] bounds = shardBounds(numOfShards);
+			final long shardBudget = memoryBudget / numOfThreads;
+			
+			List<Future<?>> futures = new ArrayList<>();
+			for (int shard = 0; shard < numOfShards; shard++) {
+				final int k = shard;
+				futures.add(pool.submit(new Callable<Void>() {
+					
+					@Override
+					public Void call() throws Exception {
+						indexShard(k, bounds, shardBudget, tmpDir, indexDir);
+						return null;
+					}
+				}));
+			}
+			
+			int numOfFailed = 0;
+			for (int shard = 0; shard < numOfShards; shard++) {
+				try {
+					futures.get(shard).get();
+				} catch (ExecutionException e) {
+					logger.error("Error while indexing shard {}", shard);
+					e.getCause().printStackTrace();
+					numOfFailed++;
+				}
+			}
+			
+			if (numOfFailed > 0) {
+				logger.error("{} of {} shards failed.", numOfFailed, numOfShards);
+			} else {
+				logger.info("Sharded indexing of {} shards complete.", numOfShards);
+			}
+			
+		} catch (Exception e) {
+			
+			logger.error("Error from function startSharded()");
+			e.printStackTrace();
+			shutDown();
+			
+		} finally {
+			pool.shutdown();
+		}
+		
+	}
+	
+	
+	/**
+	 * Index shard k of numOfShards only, into indexDir/shard-k. Each node of a cluster
+	 * runs one shard, with indexDir on shared storage or copied back afterwards.
+	 * 
+	 * @param memoryBudget
+	 * @param tmpDir
+	 * @param indexDir
+	 * @param shard
+	 * @param numOfShards
+	 */
+	public void startShard(long memoryBudget, File tmpDir, File indexDir, int shard, int numOfShards) {
+		
+		try {
+			
+			clearShards(indexDir, numOfShards);
+			indexShard(shard, shardBounds(numOfShards), memoryBudget, tmpDir, indexDir);
+			logger.info("Shard {} of {} complete.", shard, numOfShards);
+			
+		} catch (Exception e) {
+			
+			logger.error("Error from function startShard()");
+			e.printStackTrace();
+			shutDown();
+		}
+		
+	}
+	
+	
+	/**
+	 * Incremental mode: only the pages written to the DocumentStore since the last run are
+	 * indexed, into a new segment of indexDir (see IndexUpdater). A recrawled page replaces
+	 * its previous version, the segments are merged in the background, and the query side
+	 * switches to the new set of segments once it is published, without downtime.
+	 * 
+	 * The pages are tracked by the marks of the DocumentStore: a run indexes the pages
+	 * written from the mark of the last run up to a new one, kept in the manifest.
+	 * 
+	 * @param memoryBudget
+	 * @param tmpDir
+	 * @param indexDir
+	 */
+	public void startIncremental(long memoryBudget, File tmpDir, File indexDir) {
+		
+		IndexUpdater updater = null;
+		try {
+			
+			updater = new IndexUpdater(indexDir, new TieredMergePolicy());
+			final DocumentStore documentStore = storage.getDocumentStore();
+			final String lastMark = updater.getManifest().getLastId();
+			final String mark = documentStore.getMark();
+			
+			long numOfPages = documentStore.countChanged(lastMark, mark);
+			if (numOfPages == 0) {
+				logger.info("No new page since {}, index {} is up to date.", lastMark, indexDir);
+			} else {
+				logger.info("Indexing {} new pages into {}.", numOfPages, indexDir);
+				File segmentDir = updater.newSegmentDir();
+				indexRange(new DocumentScan() {
+					
+					@Override
+					void forEach(DocumentStore.DocumentVisitor visitor) throws IOException {
+						documentStore.forEachChanged(lastMark, mark, visitor);
+					}
+				}, memoryBudget, tmpDir, segmentDir);
+				updater.addSegment(segmentDir, mark);
+			}
+			
+			// the merges it started
+			updater.close();
+			logger.info("Incremental indexing complete.");
+			
+		} catch (Exception e) {
+			
+			logger.error("Error from function startIncremental()");
+			e.printStackTrace();
+			shutDown();
+		}
+		
+	}
+	
+	
+	/**
+	 * Delete pages from the incrementally updated index in indexDir.
+	 * 
+	 * @param indexDir
+	 * @param docIds
+	 */
+	public void deleteDocuments(File indexDir, int[] docIds) {
+		
+		try {
+			
+			IndexUpdater updater = new IndexUpdater(indexDir, new TieredMergePolicy());
+			updater.delete(docIds);
+			updater.close();
+			
+		} catch (Exception e) {
+			
+			logger.error("Error from function deleteDocuments()");
+			e.printStackTrace();
+		}
+		
+	}
+	
+	
+	/**
+	 * Segment directory of shard k of an index
+	 */
+	public static File shardDir(File indexDir, int shard) {
+		return new File(indexDir, SHARD_PREFIX + shard);
+	}
+	
+	
+	/**
+	 * Segment directories of the shards of an index, by shard number.
+	 * @return empty if indexDir holds no shard
+	 */
+	public static List<File> shardDirs(File indexDir) {
+		List<File> dirs = new ArrayList<>();
+		for (int shard = 0; new File(shardDir(indexDir, shard), SegmentWriter.TERMS_FILE).isFile(); shard++) {
+			dirs.add(shardDir(indexDir, shard));
+		}
+		return dirs;
+	}
+	
+	
+	/**
+	 * Delete what an earlier run left in indexDir that shardDirs() or a single segment reader
+	 * would still find: the shards from numOfShards on, after an index of more shards, and the
+	 * files of a single segment before a sharded index. numOfShards 0 deletes every shard
+	 * before indexDir is rebuilt as a single segment.
+	 */
+	private static void clearShards(File indexDir, int numOfShards) {
+		
+		File[] files = indexDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(SHARD_PREFIX) && file.isDirectory()) {
+				try {
+					if (Integer.parseInt(name.substring(SHARD_PREFIX.length())) >= numOfShards) {
+						logger.info("Deleting stale shard {}.", file);
+						IndexUpdater.deleteDir(file);
+					}
+				} catch (NumberFormatException e) {
+					// not a shard
+				}
+			}
+		}
+		if (numOfShards > 0) {
+			// terms.dict first, a segment is only found by its terms
+			for (String name : new String[] { SegmentWriter.TERMS_FILE, SegmentWriter.POSTINGS_FILE,
+					SegmentWriter.POSITIONS_FILE, DocLengths.FILE, SegmentWriter.GENERATION_FILE }) {
+				new File(indexDir, name).delete();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Split [smallest docId, largest docId] in numOfShards ranges of equal width,
+	 * crawler4j gives out the docIds in sequence so they hold about as many pages.
+	 * @return range bounds, shard k is [bounds[k], bounds[k+1])
+	 */
+	private int[] shardBounds(int numOfShards) {
+		
+		int[] bounds = new int[numOfShards + 1];
+		int[] range = storage.getDocumentStore().getDocIdRange();
+		if (range == null) {
+			return bounds;
+		}
+		
+		long min = range[0], max = range[1];
+		for (int k = 0; k <= numOfShards; k++) {
+			bounds[k] = (int) (min + (max - min + 1) * k / numOfShards);
+		}
+		logger.info("{} shards of docIds {} to {}.", numOfShards, min, max);
+		return bounds;
+	}
+	
+	
+	private void indexShard(int shard, final int[] bounds, long memoryBudget, File tmpDir, File indexDir) 
+			throws IOException {
+		
+		final int k = shard;
+		logger.info("Indexing shard {}: docIds {} to {}.", shard, bounds[shard], bounds[shard + 1] - 1);
+		indexRange(new DocumentScan() {
+			
+			@Override
+			void forEach(DocumentStore.DocumentVisitor visitor) throws IOException {
+				storage.getDocumentStore().forEachInRange(bounds[k], bounds[k + 1], visitor);
+			}
+		}, memoryBudget, tmpDir, shardDir(indexDir, shard));
+	}
+	
+	
+	/**
+	 * A scan of the DocumentStore
+	 */
+	private abstract static class DocumentScan {
+		
+		abstract void forEach(DocumentStore.DocumentVisitor visitor) throws IOException;
+	}
+	
+	
+	/**
+	 * Index the documents of scan, into segmentDir or the PostingStore if null.
+	 * Thread safe, every call has its own scan and builder.
+	 */
+	private void indexRange(DocumentScan scan, long memoryBudget, File tmpDir, File segmentDir) throws IOException {
+		
+		final BatchIndexBuilder builder = new BatchIndexBuilder(memoryBudget, tmpDir);
+		final SegmentWriter segmentWriter = segmentDir != null ? new SegmentWriter(segmentDir) : null;
+		
+		scan.forEach(new DocumentStore.DocumentVisitor() {
+			
+			@Override
+			public void visit(PageRecord record) throws IOException {
+				if (segmentWriter != null) {
+					segmentWriter.addDocLength(record.docId, record.docLength);
+				}
+				builder.addDocument(record.docId, record.words, record.counts, record.positions, record.words.length);
+			}
+		});
+		
+		builder.finish(segmentWriter != null ? segmentWriter : storage.getPostingStore().create());
+	}
+	
+	
 	/**
 	 * 
 	 * Test if the document with word is already created
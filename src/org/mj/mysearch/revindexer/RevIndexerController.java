@@ -5,6 +5,9 @@
 
 package org.mj.mysearch.revindexer;
 
+import java.io.File;
+import java.util.Arrays;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,7 +21,75 @@ public class RevIndexerController {
 		
 		RevIndexer revIndexer = new RevIndexer();
 		revIndexer.initialize();
-		revIndexer.start();
+		
+		if (args.length > 0 && "--legacy".equals(args[0])) {
+			// one round-trip per (docId, word)
+			revIndexer.start();
+		} else {
+			// [--segment=dir] [--shards=N [--threads=T] | --shard=k/N | --incremental | --delete=id,id... | --bdb=envDir]
+			// [memoryBudgetMB] [tmpDir]
+			// (in-memory batch build, default 512 MB in java.io.tmpdir, written to a binary segment in dir
+			// instead of RevIndexDB with --segment, or to the segments dir/shard-0... of N docId ranges:
+			// all of them on T threads with --shards, only shard k with --shard. With --incremental, only the
+			// pages crawled since the last run are added to the index in dir, --delete removes pages from it,
+			// --bdb reads the pages from the index environment of TextCrawlerBDB instead of MongoDB)
+			File segmentDir = null;
+			int numOfShards = 0, shard = -1;
+			boolean incremental = false;
+			int[] deletedDocIds = null;
+			File bdbDir = null;
+			int numOfThreads = Runtime.getRuntime().availableProcessors();
+			while (args.length > 0 && args[0].startsWith("--")) {
+				if (args[0].startsWith("--segment=")) {
+					segmentDir = new File(args[0].substring("--segment=".length()));
+				} else if (args[0].startsWith("--shards=")) {
+					numOfShards = Integer.parseInt(args[0].substring("--shards=".length()));
+				} else if (args[0].startsWith("--threads=")) {
+					numOfThreads = Integer.parseInt(args[0].substring("--threads=".length()));
+				} else if (args[0].startsWith("--shard=")) {
+					String[] shardOf = args[0].substring("--shard=".length()).split("/");
+					shard = Integer.parseInt(shardOf[0]);
+					numOfShards = Integer.parseInt(shardOf[1]);
+				} else if (args[0].startsWith("--bdb=")) {
+					bdbDir = new File(args[0].substring("--bdb=".length()));
+				} else if ("--incremental".equals(args[0])) {
+					incremental = true;
+				} else if (args[0].startsWith("--delete=")) {
+					String[] docIds = args[0].substring("--delete=".length()).split(",");
+					deletedDocIds = new int[docIds.length];
+					for (int i = 0; i < docIds.length; i++) {
+						deletedDocIds[i] = Integer.parseInt(docIds[i].trim());
+					}
+				} else {
+					logger.error("Unknown option {}", args[0]);
+					revIndexer.shutDown();
+					return;
+				}
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			if ((numOfShards > 0 || incremental || deletedDocIds != null) && segmentDir == null) {
+				logger.error("--shards, --shard, --incremental and --delete need --segment=dir");
+				revIndexer.shutDown();
+				return;
+			}
+			long memoryBudgetMB = args.length > 0 ? Long.parseLong(args[0]) : 512;
+			File tmpDir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+			if (bdbDir != null) {
+				revIndexer.startBdb(bdbDir, memoryBudgetMB << 20, tmpDir, segmentDir);
+			} else if (deletedDocIds != null) {
+				revIndexer.deleteDocuments(segmentDir, deletedDocIds);
+			} else if (incremental) {
+				revIndexer.startIncremental(memoryBudgetMB << 20, tmpDir, segmentDir);
+			} else if (shard >= 0) {
+				revIndexer.startShard(memoryBudgetMB << 20, tmpDir, segmentDir, shard, numOfShards);
+			} else if (numOfShards > 0) {
+				revIndexer.startSharded(memoryBudgetMB << 20, tmpDir, segmentDir, numOfShards, 
+						Math.min(numOfThreads, numOfShards));
+			} else {
+				revIndexer.startBatch(memoryBudgetMB << 20, tmpDir, segmentDir);
+			}
+		}
+		revIndexer.shutDown();
 		
 		logger.info("All complete.");
 		
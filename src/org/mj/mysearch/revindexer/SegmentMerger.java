@@ -0,0 +1,147 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Merges segments into a new one, dropping their deleted documents.
+ * 
+ * The term dictionaries are walked together in term order (k-way merge), so only the
+ * postings of one term are held at a time, whatever the size of the segments. A docId
+ * is live in at most one of the merged segments (see IndexUpdater), the postings of a
+ * term are simply concatenated and sorted by docId.
+ */
+class SegmentMerger {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SegmentMerger.class);
+	
+	
+	/**
+	 * Merge segments of indexDir into target.
+	 * @param indexDir
+	 * @param segments segments to merge, with their tombstones
+	 * @param target new segment directory
+	 */
+	static void merge(File indexDir, List<IndexManifest.Entry> segments, File target) throws IOException {
+		
+		final int n = segments.size();
+		final SegmentReader[] readers = new SegmentReader[n];
+		int[][] deletedDocIds = new int[n][];
+		
+		SegmentWriter writer = new SegmentWriter(target);
+		
+		for (int i = 0; i < n; i++) {
+			IndexManifest.Entry segment = segments.get(i);
+			File dir = new File(indexDir, segment.name);
+			readers[i] = new SegmentReader(dir);
+			DocLengths docLengths = new DocLengths(dir);
+			
+			// ordinals follow docIds, the deleted docIds come out sorted
+			deletedDocIds[i] = new int[segment.numOfDeleted];
+			Tombstones tombstones = segment.tombstones != null ? Tombstones.read(new File(dir, segment.tombstones)) : null;
+			for (int ordinal = 0, k = 0; ordinal < docLengths.getNumOfDocs(); ordinal++) {
+				if (tombstones != null && tombstones.isDeleted(ordinal)) {
+					deletedDocIds[i][k++] = docLengths.docIdAt(ordinal);
+				} else {
+					writer.addDocLength(docLengths.docIdAt(ordinal), docLengths.lengthAt(ordinal));
+				}
+			}
+		}
+		
+		// next term of every segment, by term
+		final int[] nextTerm = new int[n];
+		final String[] terms = new String[n];
+		PriorityQueue<Integer> queue = new PriorityQueue<>(n, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return terms[a].compareTo(terms[b]);
+			}
+		});
+		for (int i = 0; i < n; i++) {
+			if (readers[i].getNumOfTerms() > 0) {
+				terms[i] = readers[i].termAt(0);
+				queue.add(i);
+			}
+		}
+		
+		int[] docIds = new int[1024];
+		int[] tfs = new int[1024];
+		int[] positionStarts = new int[1025];
+		byte[] positions = new byte[1 << 16];
+		int[] buffer = null;
+		int numOfTerms = 0;
+		
+		while (!queue.isEmpty()) {
+			
+			String term = terms[queue.peek()];
+			boolean withPositions = true;
+			int size = 0;
+			
+			while (!queue.isEmpty() && terms[queue.peek()].equals(term)) {
+				
+				int i = queue.poll();
+				PostingsEnum postings = readers[i].postingsAt(nextTerm[i]);
+				withPositions &= postings.hasPositions();
+				
+				for (int docId = postings.nextDoc(); docId != PostingsEnum.NO_MORE_DOCS; docId = postings.nextDoc()) {
+					if (Arrays.binarySearch(deletedDocIds[i], docId) >= 0) {
+						continue;
+					}
+					if (size == docIds.length) {
+						docIds = Arrays.copyOf(docIds, 2 * size);
+						tfs = Arrays.copyOf(tfs, 2 * size);
+						positionStarts = Arrays.copyOf(positionStarts, 2 * size + 1);
+					}
+					docIds[size] = docId;
+					tfs[size] = postings.tf();
+					
+					int p = positionStarts[size];
+					if (postings.hasPositions()) {
+						buffer = postings.positions(buffer);
+						if (positions.length < p + 5 * postings.tf()) {
+							positions = Arrays.copyOf(positions, Math.max(2 * positions.length, p + 5 * postings.tf()));
+						}
+						for (int k = 0, last = 0; k < postings.tf(); k++) {
+							p = VByte.writeVInt(positions, p, buffer[k] - last);
+							last = buffer[k];
+						}
+					}
+					positionStarts[++size] = p;
+				}
+				
+				if (++nextTerm[i] < readers[i].getNumOfTerms()) {
+					terms[i] = readers[i].termAt(nextTerm[i]);
+					queue.add(i);
+				}
+			}
+			
+			if (size > 0) {
+				if (!withPositions) {
+					BatchIndexBuilder.sortPostings(docIds, tfs, null, null, size);
+					writer.add(term, docIds, tfs, null, null, size);
+				} else {
+					BatchIndexBuilder.sortPostings(docIds, tfs, positions, positionStarts, size);
+					writer.add(term, docIds, tfs, positions, positionStarts, size);
+				}
+				numOfTerms++;
+			}
+		}
+		
+		writer.close();
+		logger.info("Merged {} segments into {} with {} terms.", n, target, numOfTerms);
+	}
+
+}
@@ -0,0 +1,296 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Serves a segment written by SegmentWriter straight from memory mapped files.
+ * 
+ * terms.dict and postings.bin are mapped read only, nothing is copied on the heap:
+ * the term dictionary is binary searched in place through its table of entry
+ * positions, comparing the encoded term bytes, and a PostingsEnum decodes its
+ * posting list from a view of the mapped postings. Opening a segment costs a
+ * few mmap calls whatever its size, the pages are loaded by the OS on first
+ * use and shared through the page cache by every process serving the segment.
+ * The positions are mapped the same way, their pages are only touched by the
+ * phrase queries.
+ * 
+ * Thread safe, every lookup works on its own view of the mapped buffers.
+ */
+public class SegmentReader {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SegmentReader.class);
+	
+	private final File dir;
+	private final int blockSize;
+	private final int numOfTerms;
+	private final long generation;
+	
+	private final ByteBuffer terms;
+	private final IntBuffer entryPositions;
+	private final ByteBuffer[] postingChunks;
+	private final ByteBuffer[] positionChunks;
+	
+	
+	/**
+	 * constructor class
+	 * @param dir segment directory
+	 */
+	public SegmentReader(File dir) throws IOException {
+		
+		this.dir = dir;
+		
+		File termsFile = new File(dir, SegmentWriter.TERMS_FILE);
+		generation = generation(dir);
+		terms = map(termsFile, 0, -1);
+		checkHeader(terms, SegmentWriter.TERMS_MAGIC, SegmentWriter.TERMS_FILE);
+		blockSize = terms.getInt(8);
+		numOfTerms = terms.getInt(12);
+		
+		ByteBuffer table = terms.duplicate();
+		table.position(16).limit(16 + 4 * numOfTerms);
+		entryPositions = table.slice().asIntBuffer();
+		
+		long postingsSize = new File(dir, SegmentWriter.POSTINGS_FILE).length();
+		postingChunks = mapChunks(new File(dir, SegmentWriter.POSTINGS_FILE));
+		checkHeader(postingChunks[0], SegmentWriter.POSTINGS_MAGIC, SegmentWriter.POSTINGS_FILE);
+		
+		positionChunks = mapChunks(new File(dir, SegmentWriter.POSITIONS_FILE));
+		checkHeader(positionChunks[0], SegmentWriter.POSITIONS_MAGIC, SegmentWriter.POSITIONS_FILE);
+		
+		logger.info("Mapped segment {} with {} terms, {} MB of postings.", dir, numOfTerms, postingsSize >> 20);
+	}
+	
+	
+	/**
+	 * Map size bytes of file from start read only, the whole file if size < 0.
+	 */
+	static MappedByteBuffer map(File file, long start, long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (size < 0) {
+				size = channel.size();
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to be mapped in one buffer");
+			}
+			// the mapping stays valid once the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		}
+	}
+	
+	
+	/**
+	 * Map file by chunks of CHUNK_SIZE bytes.
+	 */
+	private static ByteBuffer[] mapChunks(File file) throws IOException {
+		long size = file.length();
+		ByteBuffer[] chunks = new ByteBuffer[(int) Math.max(1, (size + SegmentWriter.CHUNK_SIZE - 1) / SegmentWriter.CHUNK_SIZE)];
+		for (int k = 0; k < chunks.length; k++) {
+			long start = k * SegmentWriter.CHUNK_SIZE;
+			chunks[k] = map(file, start, Math.min(SegmentWriter.CHUNK_SIZE, size - start));
+		}
+		return chunks;
+	}
+	
+	
+	private void checkHeader(ByteBuffer buffer, int expectedMagic, String file) throws IOException {
+		if (buffer.limit() < 8 || buffer.getInt(0) != expectedMagic || buffer.getInt(4) != SegmentWriter.VERSION) {
+			throw new IOException("Not a version " + SegmentWriter.VERSION + " segment file: " + new File(dir, file));
+		}
+	}
+	
+	
+	/**
+	 * Term bytes as written by DataOutput.writeUTF (modified UTF-8). Their unsigned
+	 * byte order is the String.compareTo order the terms were sorted in.
+	 */
+	static byte[] encodeTerm(String term) {
+		
+		int size = 0;
+		for (int i = 0; i < term.length(); i++) {
+			char c = term.charAt(i);
+			size += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+		}
+		
+		byte[] bytes = new byte[size];
+		int k = 0;
+		for (int i = 0; i < term.length(); i++) {
+			char c = term.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				bytes[k++] = (byte) c;
+			} else if (c <= 0x07FF) {
+				bytes[k++] = (byte) (0xC0 | (c >> 6));
+				bytes[k++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[k++] = (byte) (0xE0 | (c >> 12));
+				bytes[k++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[k++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+	
+	
+	/**
+	 * Compare the term of the dictionary entry at position with key.
+	 */
+	private int compare(int position, byte[] key) {
+		int length = terms.getShort(position) & 0xFFFF;
+		position += 2;
+		for (int i = 0, n = Math.min(length, key.length); i < n; i++) {
+			int diff = (terms.get(position + i) & 0xFF) - (key[i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return length - key.length;
+	}
+	
+	
+	/**
+	 * Position of the dictionary entry of term, -1 if term is not in the segment
+	 */
+	private int find(String term) {
+		
+		byte[] key = encodeTerm(term);
+		int low = 0, high = numOfTerms - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int position = entryPositions.get(mid);
+			int cmp = compare(position, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				// skip the term, the entry goes on with docFreq, offset, length, maxTf, minDocLength,
+				// positions offset and length
+				return position + 2 + key.length;
+			}
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * Posting list of term, decoded from the mapped postings
+	 * @param term
+	 * @return null if term is not in the segment
+	 */
+	public PostingsEnum postings(String term) {
+		int entry = find(term);
+		return entry < 0 ? null : postingsOf(entry);
+	}
+	
+	
+	/**
+	 * Term of rank i of the dictionary, 0 <= i < getNumOfTerms(), in term order
+	 */
+	public String termAt(int i) {
+		int position = entryPositions.get(i);
+		byte[] bytes = new byte[2 + (terms.getShort(position) & 0xFFFF)];
+		ByteBuffer entry = terms.duplicate();
+		entry.position(position);
+		entry.get(bytes);
+		try {
+			return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt term " + i + " in " + dir, e);
+		}
+	}
+	
+	
+	/**
+	 * Posting list of the term of rank i of the dictionary
+	 */
+	public PostingsEnum postingsAt(int i) {
+		int position = entryPositions.get(i);
+		return postingsOf(position + 2 + (terms.getShort(position) & 0xFFFF));
+	}
+	
+	
+	/**
+	 * Posting list of the dictionary entry at position entry, after its term
+	 */
+	private PostingsEnum postingsOf(int entry) {
+		
+		int docFreq = terms.getInt(entry);
+		long offset = terms.getLong(entry + 4);
+		int length = terms.getInt(entry + 12);
+		int maxTf = terms.getInt(entry + 16);
+		int minDocLength = terms.getInt(entry + 20);
+		long positionsOffset = terms.getLong(entry + 24);
+		int positionsLength = terms.getInt(entry + 32);
+		
+		ByteBuffer postings = slice(postingChunks, offset, length);
+		ByteBuffer positions = positionsLength > 0 ? slice(positionChunks, positionsOffset, positionsLength) : null;
+		return new PostingsEnum(postings, positions, docFreq, blockSize, maxTf, minDocLength);
+	}
+	
+	
+	/**
+	 * View of length bytes at offset of a file mapped by chunks
+	 */
+	private static ByteBuffer slice(ByteBuffer[] chunks, long offset, int length) {
+		ByteBuffer buffer = chunks[(int) (offset / SegmentWriter.CHUNK_SIZE)].duplicate();
+		int start = (int) (offset % SegmentWriter.CHUNK_SIZE);
+		buffer.limit(start + length).position(start);
+		return buffer;
+	}
+	
+	
+	/**
+	 * Number of documents containing term, 0 if not in the segment
+	 */
+	public int docFreq(String term) {
+		int entry = find(term);
+		return entry < 0 ? 0 : terms.getInt(entry);
+	}
+	
+	
+	public int getNumOfTerms() {
+		return numOfTerms;
+	}
+	
+	
+	/**
+	 * Identifies the published segment, the generation of its segment.gen when it was opened
+	 * (see generation()).
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+	
+	
+	/**
+	 * Generation of the segment in dir (see SegmentWriter.readGeneration()), -1 while a new one
+	 * is being published. A segment written without segment.gen falls back to the modification
+	 * time of terms.dict.
+	 */
+	public static long generation(File dir) {
+		long generation = SegmentWriter.readGeneration(dir);
+		return generation != 0 ? generation : new File(dir, SegmentWriter.TERMS_FILE).lastModified();
+	}
+	
+	
+	public File getDir() {
+		return dir;
+	}
+
+}
@@ -0,0 +1,431 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes the reverse index as a binary segment, three files in one directory:
+ * 
+ * postings.bin: int magic, int version, then for each term
+ *   vint numOfSkips, numOfSkips x skip entry, docFreq x (vint docId delta, vint tf)
+ *   skip entry: vint lastDocId delta, vint block length in bytes, vint numOfImpacts,
+ *   numOfImpacts x (vint tf delta, vint doc length delta)
+ * 
+ * positions.bin: int magic, int version, then for each term indexed with positions
+ *   (numOfBlocks - 1) x int start of block 1, 2... relative to the end of this table,
+ *   then the encoded positions of every posting in docId order (see TermCounter)
+ * 
+ * terms.dict: int magic, int version, int blockSize, int numOfTerms,
+ *   numOfTerms x int entry position in terms.dict, then the entries in term order:
+ *   UTF term (DataOutput.writeUTF), int docFreq, long offset and int length in postings.bin,
+ *   int max tf, int min doc length, long offset and int length in positions.bin (0 for no positions)
+ * 
+ * The docIds of a term are delta encoded from the previous docId (the first one from 0),
+ * continuously across blocks. Every blockSize postings form a block, the skip entry of a
+ * block holds its last docId and its byte length, so a reader can jump over whole blocks
+ * without decoding them. Terms with docFreq <= blockSize have no skip entry.
+ * 
+ * The impacts of a block are its (tf, doc length) pairs that no other posting of the block
+ * beats with both a higher tf and a shorter document, in increasing order. As BM25 grows
+ * with tf and shrinks with the doc length, the best score of the block is the best score
+ * of its impacts whatever k1 and b (see TermScorer), which lets a query skip the blocks
+ * that cannot make it to the top k. Above MAX_IMPACTS, neighbouring impacts are merged into
+ * (largest tf, smallest doc length), still an upper bound. The largest tf and the smallest
+ * doc length of the whole list are kept in the dictionary.
+ * 
+ * The positions are kept apart from the postings so that the queries without phrases never
+ * read them. A posting holds tf positions, so the positions of a posting are found from the
+ * start of its block and the tfs of the postings before it in the block, see PostingsEnum.
+ * 
+ * The doc lengths given to addDocLength() are written to doclens.bin, see DocLengths.
+ * They must all be given before the first add().
+ * 
+ * Every file is written to name.tmp and renamed over the former one by close(), so a query
+ * process that has the former files mapped keeps reading them whole, never a truncated file.
+ * The renames are bracketed by segment.gen (long generation, boolean published): it is marked
+ * unpublished before the first rename and published after the last, so a reader only opens
+ * the segment when it is published, and checks the generation did not move while it opened
+ * the files (see readGeneration()).
+ * 
+ * Both files are laid out to be memory mapped (see SegmentReader): the fixed width entry
+ * positions allow a binary search of the dictionary in place, and no posting list crosses
+ * a CHUNK_SIZE boundary of postings.bin or positions.bin, so every list lies in one mapped chunk.
+ */
+public class SegmentWriter implements PostingSink {
+	
+	private static final Logger logger = LoggerFactory.getLogger(SegmentWriter.class);
+	
+	public static final String POSTINGS_FILE = "postings.bin";
+	public static final String POSITIONS_FILE = "positions.bin";
+	public static final String TERMS_FILE = "terms.dict";
+	public static final String GENERATION_FILE = "segment.gen";
+	
+	static final int POSTINGS_MAGIC = 0x4d535053;	// "MSPS"
+	static final int POSITIONS_MAGIC = 0x4d53504f;	// "MSPO"
+	static final int TERMS_MAGIC = 0x4d535444;		// "MSTD"
+	static final int VERSION = 4;
+	
+	/** postings.bin is mapped by chunks of 1 GB */
+	static final long CHUNK_SIZE = 1L << 30;
+	
+	public static final int DEFAULT_BLOCK_SIZE = 128;
+	
+	static final int MAX_IMPACTS = 8;
+	
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+	
+	private final File dir;
+	private final int blockSize;
+	private final DataOutputStream postingsOut;
+	private final DataOutputStream positionsOut;
+	private final DataOutputStream termsOut;
+	private final File postingsTmp, positionsTmp;
+	private final File entriesTmp;
+	
+	private ByteBuffer encoded = ByteBuffer.allocate(1 << 16);
+	private ByteBuffer skips = ByteBuffer.allocate(1 << 12);
+	private long[] impacts;
+	private int[] entryPositions = new int[1024];
+	private int[] lengthDocIds = new int[1024];
+	private int[] docLengths = new int[1024];
+	private int numOfDocs;
+	private boolean docLengthsSorted;
+	
+	private long position, positionsPosition;
+	private int numOfTerms;
+	private long numOfPostings;
+	
+	
+	/**
+	 * constructor class
+	 * @param dir segment directory, created if missing, existing segment files are replaced
+	 * @param blockSize postings per skip block
+	 */
+	public SegmentWriter(File dir, int blockSize) throws IOException {
+		
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create segment directory " + dir);
+		}
+		
+		this.dir = dir;
+		this.blockSize = blockSize;
+		
+		postingsTmp = tmpFile(dir, POSTINGS_FILE);
+		postingsOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(postingsTmp), IO_BUFFER_SIZE));
+		postingsOut.writeInt(POSTINGS_MAGIC);
+		postingsOut.writeInt(VERSION);
+		position = 8;
+		
+		positionsTmp = tmpFile(dir, POSITIONS_FILE);
+		positionsOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(positionsTmp), IO_BUFFER_SIZE));
+		positionsOut.writeInt(POSITIONS_MAGIC);
+		positionsOut.writeInt(VERSION);
+		positionsPosition = 8;
+		
+		// the term count is only known at the end, the entries go to a temporary file first
+		entriesTmp = new File(dir, TERMS_FILE + ".entries.tmp");
+		termsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entriesTmp), IO_BUFFER_SIZE));
+	}
+	
+	
+	public SegmentWriter(File dir) throws IOException {
+		this(dir, DEFAULT_BLOCK_SIZE);
+	}
+	
+	
+	/**
+	 * Record the number of indexed tokens of a document of the segment.
+	 * @param docId
+	 * @param length
+	 */
+	public void addDocLength(int docId, int length) {
+		if (numOfDocs == lengthDocIds.length) {
+			lengthDocIds = Arrays.copyOf(lengthDocIds, 2 * numOfDocs);
+			docLengths = Arrays.copyOf(docLengths, 2 * numOfDocs);
+		}
+		lengthDocIds[numOfDocs] = docId;
+		docLengths[numOfDocs++] = length;
+	}
+	
+	
+	/**
+	 * Sort the doc lengths by docId for docLength().
+	 */
+	private void sortDocLengths() {
+		long[] packed = new long[numOfDocs];
+		for (int k = 0; k < numOfDocs; k++) {
+			packed[k] = ((long) lengthDocIds[k] << 32) | (docLengths[k] & 0xffffffffL);
+		}
+		Arrays.sort(packed);
+		for (int k = 0; k < numOfDocs; k++) {
+			lengthDocIds[k] = (int) (packed[k] >>> 32);
+			docLengths[k] = (int) packed[k];
+		}
+		docLengthsSorted = true;
+	}
+	
+	
+	/**
+	 * Length of docId, 0 if unknown
+	 */
+	private int docLength(int docId) {
+		int k = Arrays.binarySearch(lengthDocIds, 0, numOfDocs, docId);
+		return k < 0 ? 0 : docLengths[k];
+	}
+	
+	
+	@Override
+	public void add(String term, int[] docIds, int[] tfs, byte[] positions, int[] positionStarts, int size) 
+			throws IOException {
+		
+		if (size == 0) {
+			return;
+		}
+		
+		if (!docLengthsSorted) {
+			sortDocLengths();
+		}
+		
+		int numOfBlocks = (size + blockSize - 1) / blockSize;
+		int numOfSkips = numOfBlocks > 1 ? numOfBlocks : 0;
+		if (encoded.capacity() < 10 * size) {
+			encoded = ByteBuffer.allocate(10 * size);
+		}
+		if (skips.capacity() < 5 + numOfSkips * (15 + 10 * MAX_IMPACTS)) {
+			skips = ByteBuffer.allocate(5 + numOfSkips * (15 + 10 * MAX_IMPACTS));
+		}
+		
+		// a skip entry needs the length of its encoded block
+		encoded.clear();
+		skips.clear();
+		VByte.writeVInt(skips, numOfSkips);
+		
+		int previousDocId = 0, previousSkipDocId = 0;
+		int maxTf = 0, minDocLength = Integer.MAX_VALUE;
+		for (int block = 0; block < numOfBlocks; block++) {
+			int blockStart = encoded.position();
+			int from = block * blockSize, to = Math.min(size, from + blockSize);
+			for (int k = from; k < to; k++) {
+				VByte.writeVInt(encoded, docIds[k] - previousDocId);
+				VByte.writeVInt(encoded, tfs[k]);
+				previousDocId = docIds[k];
+				maxTf = Math.max(maxTf, tfs[k]);
+				minDocLength = Math.min(minDocLength, docLength(docIds[k]));
+			}
+			if (numOfSkips > 0) {
+				VByte.writeVInt(skips, previousDocId - previousSkipDocId);
+				VByte.writeVInt(skips, encoded.position() - blockStart);
+				writeImpacts(docIds, tfs, from, to);
+				previousSkipDocId = previousDocId;
+			}
+		}
+		
+		long length = skips.position() + encoded.position();
+		if (length > CHUNK_SIZE) {
+			throw new IOException("Posting list of " + term + " is larger than " + CHUNK_SIZE + " bytes");
+		}
+		position = alignToChunk(postingsOut, position, length);
+		
+		postingsOut.write(skips.array(), 0, skips.position());
+		postingsOut.write(encoded.array(), 0, encoded.position());
+		
+		long positionsOffset = 0, positionsLength = 0;
+		if (positions != null) {
+			int first = positionStarts[0];
+			positionsLength = 4L * (numOfBlocks - 1) + positionStarts[size] - first;
+			if (positionsLength > CHUNK_SIZE) {
+				throw new IOException("Positions of " + term + " are larger than " + CHUNK_SIZE + " bytes");
+			}
+			positionsOffset = positionsPosition = alignToChunk(positionsOut, positionsPosition, positionsLength);
+			for (int block = 1; block < numOfBlocks; block++) {
+				positionsOut.writeInt(positionStarts[block * blockSize] - first);
+			}
+			positionsOut.write(positions, first, positionStarts[size] - first);
+			positionsPosition += positionsLength;
+		}
+		
+		if (numOfTerms == entryPositions.length) {
+			entryPositions = Arrays.copyOf(entryPositions, 2 * numOfTerms);
+		}
+		entryPositions[numOfTerms] = termsOut.size();
+		termsOut.writeUTF(term);
+		termsOut.writeInt(size);
+		termsOut.writeLong(position);
+		termsOut.writeInt((int) length);
+		termsOut.writeInt(maxTf);
+		termsOut.writeInt(minDocLength);
+		termsOut.writeLong(positionsOffset);
+		termsOut.writeInt((int) positionsLength);
+		
+		position += length;
+		numOfTerms++;
+		numOfPostings += size;
+	}
+	
+	
+	/**
+	 * Pad out up to the next chunk if length bytes written at position would cross a CHUNK_SIZE boundary.
+	 * @return the position to write at
+	 */
+	private static long alignToChunk(DataOutputStream out, long position, long length) throws IOException {
+		if (length > 0 && position / CHUNK_SIZE != (position + length - 1) / CHUNK_SIZE) {
+			long next = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+			for (; position < next; position++) {
+				out.writeByte(0);
+			}
+		}
+		return position;
+	}
+	
+	
+	/**
+	 * Write the impacts of the postings from (inclusive) to to (exclusive) to the skip entry.
+	 */
+	private void writeImpacts(int[] docIds, int[] tfs, int from, int to) {
+		
+		if (impacts == null || impacts.length < to - from) {
+			impacts = new long[Math.max(blockSize, to - from)];
+		}
+		
+		// by decreasing tf, then increasing doc length
+		int n = 0;
+		for (int k = from; k < to; k++) {
+			impacts[n++] = ((long) (Integer.MAX_VALUE - tfs[k]) << 32) | docLength(docIds[k]);
+		}
+		Arrays.sort(impacts, 0, n);
+		
+		// keep the pairs shorter than all the pairs of higher tf: decreasing tf and doc length
+		int numOfImpacts = 0;
+		int shortest = Integer.MAX_VALUE;
+		for (int k = 0; k < n; k++) {
+			int docLength = (int) impacts[k];
+			if (docLength < shortest) {
+				shortest = docLength;
+				impacts[numOfImpacts++] = impacts[k];
+			}
+		}
+		
+		// increasing order, neighbours merged by groups above MAX_IMPACTS
+		int group = (numOfImpacts + MAX_IMPACTS - 1) / MAX_IMPACTS;
+		VByte.writeVInt(skips, (numOfImpacts + group - 1) / group);
+		int previousTf = 0, previousDocLength = 0;
+		for (int last = numOfImpacts - 1; last >= 0; last -= group) {
+			int first = Math.max(0, last - group + 1);
+			int tf = Integer.MAX_VALUE - (int) (impacts[first] >>> 32);
+			int docLength = (int) impacts[last];
+			VByte.writeVInt(skips, tf - previousTf);
+			VByte.writeVInt(skips, docLength - previousDocLength);
+			previousTf = tf;
+			previousDocLength = docLength;
+		}
+	}
+	
+	
+	@Override
+	public void close() throws IOException {
+		
+		postingsOut.close();
+		positionsOut.close();
+		termsOut.close();
+		
+		if (16L + 4L * numOfTerms + entriesTmp.length() > Integer.MAX_VALUE) {
+			throw new IOException("Term dictionary of " + dir + " is larger than 2 GB");
+		}
+		
+		File termsTmp = tmpFile(dir, TERMS_FILE);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(termsTmp), IO_BUFFER_SIZE))) {
+			out.writeInt(TERMS_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(blockSize);
+			out.writeInt(numOfTerms);
+			int tableEnd = 16 + 4 * numOfTerms;
+			for (int i = 0; i < numOfTerms; i++) {
+				out.writeInt(tableEnd + entryPositions[i]);
+			}
+			Files.copy(entriesTmp.toPath(), out);
+		}
+		if (!entriesTmp.delete()) {
+			logger.warn("Could not delete {}", entriesTmp);
+		}
+		
+		// a new generation, later than the former one even within the same millisecond
+		long generation = Math.max(System.currentTimeMillis(), Math.abs(readGeneration(dir)) + 1);
+		writeGeneration(generation, false);
+		publish(postingsTmp, new File(dir, POSTINGS_FILE));
+		publish(positionsTmp, new File(dir, POSITIONS_FILE));
+		DocLengths.write(dir, lengthDocIds, docLengths, numOfDocs);
+		publish(termsTmp, new File(dir, TERMS_FILE));
+		writeGeneration(generation, true);
+		
+		logger.info("Segment {}: {} terms, {} postings, {} MB of postings, {} MB of positions.", dir, numOfTerms, 
+				numOfPostings, position >> 20, positionsPosition >> 20);
+	}
+	
+	
+	private void writeGeneration(long generation, boolean published) throws IOException {
+		
+		File tmp = tmpFile(dir, GENERATION_FILE);
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+			out.writeLong(generation);
+			out.writeBoolean(published);
+		}
+		publish(tmp, new File(dir, GENERATION_FILE));
+	}
+	
+	
+	/**
+	 * Generation of the segment in dir: 0 for a segment without segment.gen,
+	 * -1 while a new generation is being published.
+	 */
+	public static long readGeneration(File dir) {
+		
+		File file = new File(dir, GENERATION_FILE);
+		if (!file.isFile()) {
+			return 0;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			long generation = in.readLong();
+			return in.readBoolean() ? generation : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	
+	/**
+	 * The temporary file name.tmp of a segment file
+	 */
+	static File tmpFile(File dir, String name) {
+		return new File(dir, name + ".tmp");
+	}
+	
+	
+	/**
+	 * Replace file by tmp in one atomic rename, a reader that has file mapped keeps the former one.
+	 */
+	static void publish(File tmp, File file) throws IOException {
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
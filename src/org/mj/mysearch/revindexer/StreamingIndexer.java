@@ -0,0 +1,274 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.mj.mysearch.webcrawler.PageRecord;
+import org.mj.mysearch.webcrawler.PageSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Indexes the crawled pages in process as they are visited, instead of writing them to
+ * DocId_WordCount and reading them back.
+ * 
+ * The crawlers submit their PageRecords to a bounded queue, once it is full they block
+ * until the indexer thread catches up. That thread adds the pages to an in-memory
+ * BatchIndexBuilder and writes them as a new segment of an incrementally updated index
+ * (see IndexUpdater) every flushIntervalMs, or earlier once memoryBudget is used. A page
+ * is searchable about flushIntervalMs after it was fetched (QueryController switches to
+ * the new manifest), the small segments are merged in the background.
+ * 
+ * The pages can also be passed on to a CrawlStore, which keeps the urls and links read
+ * by PageRank and UrlLookup, otherwise the intermediate store is skipped entirely.
+ */
+public class StreamingIndexer implements PageSink {
+	
+	private static final Logger logger = LoggerFactory.getLogger(StreamingIndexer.class);
+	
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 2000;
+	
+	private static final int QUEUE_CAPACITY = 4096;
+	
+	/** how often a blocked crawler checks that the indexer thread is still running */
+	private static final long OFFER_TIMEOUT_MS = 1000;
+	
+	/** marks the end of the queue for the indexer thread */
+	private static final PageRecord END = new PageRecord(-1, null, null, null, null, 0, null);
+	
+	private final IndexUpdater updater;
+	private final PageSink next;
+	private final long memoryBudget;
+	private final long flushIntervalMs;
+	private final File tmpDir;
+	private final BlockingQueue<PageRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final Thread indexer;
+	// set once the indexer thread stopped, nobody drains the queue anymore
+	private volatile boolean stopped;
+	
+	// segment being built, only used by the indexer thread
+	private File segmentDir;
+	private SegmentWriter segmentWriter;
+	private BatchIndexBuilder builder;
+	private final Set<Integer> bufferedDocIds = new HashSet<>();
+	private long firstBufferedTime;
+	private long bufferedBytes;
+	
+	
+	/**
+	 * constructor class, opens the index and starts the indexer thread
+	 * @param indexDir incrementally updated index, created if missing
+	 * @param tmpDir where the builder spills, if memoryBudget is too small for flushIntervalMs of pages
+	 * @param memoryBudget bytes of pages buffered before a flush
+	 * @param flushIntervalMs longest time a page waits before it is written to a segment
+	 * @param next also gets every page, null for none
+	 */
+	public StreamingIndexer(File indexDir, File tmpDir, long memoryBudget, long flushIntervalMs, PageSink next) 
+			throws IOException {
+		
+		this.updater = new IndexUpdater(indexDir, new TieredMergePolicy());
+		this.next = next;
+		this.memoryBudget = memoryBudget;
+		this.flushIntervalMs = flushIntervalMs;
+		this.tmpDir = tmpDir;
+		
+		indexer = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				index();
+			}
+		}, "StreamingIndexer");
+		indexer.start();
+		
+		logger.info("Streaming the crawled pages into {}, flushed every {} ms.", indexDir, flushIntervalMs);
+	}
+	
+	
+	/**
+	 * Queue a visited page, called by the crawler threads.
+	 * Blocks when the queue is full, the page is dropped if the indexer thread stopped.
+	 * @param record
+	 */
+	@Override
+	public void submit(PageRecord record) {
+		
+		if (next != null) {
+			next.submit(record);
+		}
+		try {
+			if (!offer(record)) {
+				logger.warn("Indexer stopped, docId {} not indexed.", record.docId);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted, docId {} not indexed.", record.docId);
+		}
+	}
+	
+	
+	/**
+	 * Put record on the queue, waiting for room while the indexer thread runs.
+	 * @return false if the indexer thread stopped
+	 */
+	private boolean offer(PageRecord record) throws InterruptedException {
+		while (!stopped) {
+			if (queue.offer(record, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Index everything still queued, wait for the merges, then shut the next sink down.
+	 */
+	@Override
+	public void shutDown() {
+		
+		logger.info("Shutting down StreamingIndexer.");
+		
+		try {
+			if (!offer(END)) {
+				logger.error("Indexer stopped before the end of the crawl, {} pages not indexed.", queue.size());
+			}
+			indexer.join();
+			updater.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while waiting for the indexer.");
+		}
+		
+		if (next != null) {
+			next.shutDown();
+		}
+	}
+	
+	
+	/**
+	 * Loop of the indexer thread. A page that cannot be indexed loses the segment being
+	 * built, the thread goes on with the next ones.
+	 */
+	private void index() {
+		
+		try {
+			indexQueue();
+			if (builder != null) {
+				// interrupted, the pages buffered so far are kept, the flag would close the channels of flush()
+				Thread.interrupted();
+				flush();
+				Thread.currentThread().interrupt();
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error while indexing into {}, {} pages lost.", segmentDir, bufferedDocIds.size());
+			e.printStackTrace();
+		} finally {
+			stopped = true;
+			if (segmentDir != null) {
+				// the last flush failed, or an Error
+				discard();
+			}
+		}
+	}
+	
+	
+	private void indexQueue() {
+		
+		boolean running = true;
+		while (running) {
+			
+			try {
+				long wait = builder == null ? flushIntervalMs 
+						: Math.max(1, firstBufferedTime + flushIntervalMs - System.currentTimeMillis());
+				PageRecord record = queue.poll(wait, TimeUnit.MILLISECONDS);
+				if (record == END) {
+					running = false;
+				} else if (record != null) {
+					add(record);
+				}
+				
+				if (builder != null && (!running || bufferedBytes >= memoryBudget 
+						|| System.currentTimeMillis() - firstBufferedTime >= flushIntervalMs)) {
+					flush();
+				}
+				
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+				
+			} catch (IOException | RuntimeException e) {
+				logger.error("Error while indexing into {}, {} pages lost.", segmentDir, bufferedDocIds.size());
+				e.printStackTrace();
+				discard();
+			}
+		}
+	}
+	
+	
+	private void add(PageRecord record) throws IOException {
+		
+		if (!bufferedDocIds.add(record.docId)) {
+			// a page visited again, its new version goes to the next segment and replaces this one
+			flush();
+			bufferedDocIds.add(record.docId);
+		}
+		
+		if (builder == null) {
+			segmentDir = updater.newSegmentDir();
+			segmentWriter = new SegmentWriter(segmentDir);
+			builder = new BatchIndexBuilder(memoryBudget, tmpDir);
+			firstBufferedTime = System.currentTimeMillis();
+		}
+		
+		segmentWriter.addDocLength(record.docId, record.docLength);
+		builder.addDocument(record.docId, record.words, record.counts, record.positions, record.words.length);
+		
+		bufferedBytes += 64;
+		for (int k = 0; k < record.words.length; k++) {
+			bufferedBytes += 2 * record.words[k].length() + 16 + (record.positions != null ? record.positions[k].length : 0);
+		}
+	}
+	
+	
+	/**
+	 * Write the buffered pages as a new segment and publish it.
+	 */
+	private void flush() throws IOException {
+		
+		builder.finish(segmentWriter);
+		updater.addSegment(segmentDir, updater.getManifest().getLastId());
+		logger.info("Flushed {} pages into {}.", bufferedDocIds.size(), segmentDir.getName());
+		
+		segmentDir = null;
+		segmentWriter = null;
+		builder = null;
+		bufferedDocIds.clear();
+		bufferedBytes = 0;
+	}
+	
+	
+	private void discard() {
+		
+		if (segmentDir != null) {
+			updater.discardSegment(segmentDir);
+		}
+		segmentDir = null;
+		segmentWriter = null;
+		builder = null;
+		bufferedDocIds.clear();
+		bufferedBytes = 0;
+	}
+
+}
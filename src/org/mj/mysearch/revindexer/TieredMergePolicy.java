@@ -0,0 +1,107 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Picks the segments of an index to merge (see IndexUpdater).
+ * 
+ * Segments are grouped in tiers by their number of live docs: tier 0 up to minSegmentDocs,
+ * then every tier holds segments mergeFactor times larger than the tier below. Once a tier
+ * holds mergeFactor segments, they are merged into one segment of the next tier. Every
+ * document is thus merged about log(numOfDocs / minSegmentDocs) / log(mergeFactor) times,
+ * and the index keeps at most mergeFactor - 1 segments per tier.
+ * 
+ * A segment with more than maxDeletedRatio of its docs deleted is merged on its own,
+ * to drop them.
+ */
+public class TieredMergePolicy {
+	
+	public static final int DEFAULT_MERGE_FACTOR = 10;
+	public static final int DEFAULT_MIN_SEGMENT_DOCS = 1000;
+	public static final double DEFAULT_MAX_DELETED_RATIO = 0.3;
+	
+	private final int mergeFactor;
+	private final int minSegmentDocs;
+	private final double maxDeletedRatio;
+	
+	
+	/**
+	 * constructor class
+	 * @param mergeFactor segments of a tier merged at once, and size ratio of the tiers
+	 * @param minSegmentDocs largest segment of tier 0
+	 * @param maxDeletedRatio
+	 */
+	public TieredMergePolicy(int mergeFactor, int minSegmentDocs, double maxDeletedRatio) {
+		this.mergeFactor = mergeFactor;
+		this.minSegmentDocs = minSegmentDocs;
+		this.maxDeletedRatio = maxDeletedRatio;
+	}
+	
+	
+	public TieredMergePolicy() {
+		this(DEFAULT_MERGE_FACTOR, DEFAULT_MIN_SEGMENT_DOCS, DEFAULT_MAX_DELETED_RATIO);
+	}
+	
+	
+	private int tier(IndexManifest.Entry segment) {
+		int liveDocs = segment.getNumOfLiveDocs();
+		if (liveDocs <= minSegmentDocs) {
+			return 0;
+		}
+		return 1 + (int) (Math.log((double) liveDocs / minSegmentDocs) / Math.log(mergeFactor));
+	}
+	
+	
+	/**
+	 * Next merge of an index.
+	 * @param segments segments of the index
+	 * @param merging names of the segments already being merged, not picked again
+	 * @return segments to merge into one, empty for none
+	 */
+	public List<IndexManifest.Entry> findMerge(List<IndexManifest.Entry> segments, Set<String> merging) {
+		
+		List<IndexManifest.Entry> candidates = new ArrayList<>();
+		for (IndexManifest.Entry segment : segments) {
+			if (!merging.contains(segment.name)) {
+				candidates.add(segment);
+			}
+		}
+		Collections.sort(candidates, new Comparator<IndexManifest.Entry>() {
+			@Override
+			public int compare(IndexManifest.Entry a, IndexManifest.Entry b) {
+				return Integer.compare(a.getNumOfLiveDocs(), b.getNumOfLiveDocs());
+			}
+		});
+		
+		// smallest tier first, its segments are the cheapest to merge
+		for (int from = 0; from < candidates.size(); ) {
+			int tier = tier(candidates.get(from));
+			int to = from;
+			while (to < candidates.size() && tier(candidates.get(to)) == tier) {
+				to++;
+			}
+			if (to - from >= mergeFactor) {
+				return new ArrayList<>(candidates.subList(from, from + mergeFactor));
+			}
+			from = to;
+		}
+		
+		for (IndexManifest.Entry segment : candidates) {
+			if (segment.numOfDeleted > maxDeletedRatio * segment.numOfDocs) {
+				return Collections.singletonList(segment);
+			}
+		}
+		return Collections.emptyList();
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Deleted documents of a segment, one bit per docId in the order of DocLengths
+ * (bit i for the docId of ordinal i). Segments are never rewritten, a deleted
+ * or replaced document is only marked here until a merge drops it.
+ * 
+ * File: int magic, int version, int numOfDocs, int numOfDeleted, ceil(numOfDocs / 64) x long
+ * 
+ * A tombstone file is never changed once written: new deletes go to a new file
+ * named by the manifest generation (see IndexUpdater), so that the readers of the
+ * previous manifest keep a consistent view.
+ */
+public class Tombstones {
+	
+	private static final int MAGIC = 0x4d534454;	// "MSDT"
+	private static final int VERSION = 1;
+	
+	private final int numOfDocs;
+	private final long[] bits;
+	private int numOfDeleted;
+	
+	
+	/**
+	 * constructor class, nothing deleted
+	 * @param numOfDocs number of docs of the segment
+	 */
+	public Tombstones(int numOfDocs) {
+		this.numOfDocs = numOfDocs;
+		this.bits = new long[(numOfDocs + 63) >>> 6];
+	}
+	
+	
+	private Tombstones(int numOfDocs, long[] bits, int numOfDeleted) {
+		this.numOfDocs = numOfDocs;
+		this.bits = bits;
+		this.numOfDeleted = numOfDeleted;
+	}
+	
+	
+	/**
+	 * Read a tombstone file.
+	 * @param file
+	 */
+	public static Tombstones read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " tombstone file: " + file);
+			}
+			int numOfDocs = in.readInt();
+			int numOfDeleted = in.readInt();
+			long[] bits = new long[(numOfDocs + 63) >>> 6];
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = in.readLong();
+			}
+			return new Tombstones(numOfDocs, bits, numOfDeleted);
+		}
+	}
+	
+	
+	/**
+	 * Write to a new file.
+	 * @param file
+	 */
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numOfDocs);
+			out.writeInt(numOfDeleted);
+			for (long word : bits) {
+				out.writeLong(word);
+			}
+		}
+	}
+	
+	
+	/**
+	 * A copy to add new deletes to
+	 */
+	public Tombstones copy() {
+		return new Tombstones(numOfDocs, bits.clone(), numOfDeleted);
+	}
+	
+	
+	public boolean isDeleted(int ordinal) {
+		return (bits[ordinal >>> 6] & (1L << ordinal)) != 0;
+	}
+	
+	
+	/**
+	 * Mark the docId of ordinal as deleted.
+	 * @return false if it already was
+	 */
+	public boolean delete(int ordinal) {
+		long mask = 1L << ordinal;
+		if ((bits[ordinal >>> 6] & mask) != 0) {
+			return false;
+		}
+		bits[ordinal >>> 6] |= mask;
+		numOfDeleted++;
+		return true;
+	}
+	
+	
+	public int getNumOfDocs() {
+		return numOfDocs;
+	}
+	
+	
+	public int getNumOfDeleted() {
+		return numOfDeleted;
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * 
+ * @author Jun
+ */
+
+package org.mj.mysearch.revindexer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Variable-byte encoding of non-negative ints: 7 bits per byte, low bits first,
+ * the high bit is set on every byte but the last one.
+ */
+public final class VByte {
+	
+	private VByte() {
+	}
+	
+	
+	public static void writeVInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	
+	public static void writeVInt(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+	
+	
+	/**
+	 * Write value at out[offset], out must have room for 5 bytes.
+	 * @return the offset after value
+	 */
+	public static int writeVInt(byte[] out, int offset, int value) {
+		while ((value & ~0x7F) != 0) {
+			out[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[offset++] = (byte) value;
+		return offset;
+	}
+	
+	
+	public static int readVInt(ByteBuffer in) {
+		byte b = in.get();
+		int value = b & 0x7F;
+		for (int shift = 7; b < 0; shift += 7) {
+			b = in.get();
+			value |= (b & 0x7F) << shift;
+		}
+		return value;
+	}
+	
+	
+	/**
+	 * Number of bytes of value once encoded
+	 */
+	public static int size(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+}
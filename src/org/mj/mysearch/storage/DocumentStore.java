@@ -0,0 +1,83 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.mj.mysearch.webcrawler.PageRecord;
+
+
+/**
+ * The terms of the crawled pages (DocId_WordCount), read back by RevIndexer.
+ * 
+ * Changes are tracked by marks: getMark() identifies the point reached by the writes,
+ * forEachChanged() reads what was written between two marks, for incremental indexing.
+ */
+public interface DocumentStore {
+	
+	/**
+	 * Receives the stored pages.
+	 */
+	interface DocumentVisitor {
+		
+		/**
+		 * @param record words, counts, positions (null if not recorded) and docLength of a page,
+		 *   no url nor links
+		 */
+		void visit(PageRecord record) throws IOException;
+	}
+	
+	
+	/**
+	 * Store a batch of visited pages, a page visited again gets a new version.
+	 * @param records
+	 */
+	void putAll(List<PageRecord> records);
+	
+	
+	/**
+	 * Every stored page, once, in its last version.
+	 */
+	void forEach(DocumentVisitor visitor) throws IOException;
+	
+	
+	/**
+	 * The pages of docIds in [fromDocId, toDocId), once, in their last version.
+	 */
+	void forEachInRange(int fromDocId, int toDocId, DocumentVisitor visitor) throws IOException;
+	
+	
+	/**
+	 * Smallest and largest docIds stored, null if there is no page
+	 */
+	int[] getDocIdRange();
+	
+	
+	/**
+	 * Mark of the writes so far: forEachChanged(mark, a later mark) only sees later writes.
+	 * The writes still in flight at that time may come after it.
+	 */
+	String getMark();
+	
+	
+	/**
+	 * Number of pages written between two marks, a page written several times counts
+	 * every time
+	 * @param fromMark "" for the beginning
+	 * @param toMark
+	 */
+	long countChanged(String fromMark, String toMark);
+	
+	
+	/**
+	 * The last version of every page written between two marks.
+	 * @param fromMark "" for the beginning
+	 * @param toMark
+	 * @param visitor
+	 */
+	void forEachChanged(String fromMark, String toMark, DocumentVisitor visitor) throws IOException;
+
+}
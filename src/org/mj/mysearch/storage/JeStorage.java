@@ -0,0 +1,660 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.mj.mysearch.revindexer.PostingSink;
+import org.mj.mysearch.webcrawler.BdbTermDictionary;
+import org.mj.mysearch.webcrawler.LinkListBinding;
+import org.mj.mysearch.webcrawler.PageRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.DoubleBinding;
+import com.sleepycat.bind.tuple.IntegerBinding;
+import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+
+/**
+ * Storage in an embedded Berkeley DB JE environment, in the process: no server and no
+ * network round-trip, the stages of the pipeline run on the same directory one after
+ * the other (a JE environment is written by one process at a time).
+ * 
+ * The records are binary: the terms of a page are ids of a BdbTermDictionary with their
+ * counts and positions, the links a LinkListBinding. A page visited again replaces its
+ * record, every write also appends its docId to a change log (DocId_Change) keyed by a
+ * sequence number, the marks of the DocumentStore are sequence numbers.
+ * 
+ * Durability follows WriteMode, a putAll() batch is one transaction (or none, DEFERRED).
+ */
+public class JeStorage implements Storage {
+	
+	private static final Logger logger = LoggerFactory.getLogger(JeStorage.class);
+	
+	static final String DOCUMENT_DB_NAME = "DocId_WordCount";
+	static final String CHANGE_DB_NAME = "DocId_Change";
+	static final String LINK_DB_NAME = "DocId_LinkDocId";
+	static final String URL_DB_NAME = "DocId_Url";
+	static final String POSTING_DB_NAME = "Word_DocId";
+	static final String SCORE_DB_PREFIX = "PrScore_";
+	
+	/**
+	 * How the writes reach the disk.
+	 */
+	public enum WriteMode {
+		
+		/** every batch is a transaction flushed to the disk at commit */
+		SYNC,
+		/** every batch is a transaction written to the log at commit, flushed by the OS: a crash of the process loses nothing,
+		 * a crash of the machine the last batches */
+		NO_SYNC,
+		/** no transaction, the writes stay in the cache and are written at close (or eviction): the fastest bulk load,
+		 * a crash loses everything since the last close */
+		DEFERRED;
+		
+		
+		/**
+		 * WriteMode of its name in lower case without underscore, e.g. nosync
+		 */
+		public static WriteMode parse(String name) {
+			for (WriteMode mode : values()) {
+				if (mode.name().replace("_", "").equalsIgnoreCase(name)) {
+					return mode;
+				}
+			}
+			throw new IllegalArgumentException("Unknown write mode " + name);
+		}
+	}
+	
+	private static final LinkListBinding LINK_LIST_BINDING = new LinkListBinding();
+	
+	private final WriteMode writeMode;
+	private final Environment env;
+	private final DatabaseConfig dbConfig;
+	private final Database documentDB, changeDB, linkDB, urlDB;
+	private final BdbTermDictionary termDictionary;
+	
+	/** terms by id, reloaded when a page has a term not seen yet */
+	private volatile String[] terms = new String[0];
+	
+	/** sequence number of the next write of the change log */
+	private final AtomicLong nextChange;
+	
+	/** held by putAll(), taken exclusively by getMark() so that no write is pending at a mark */
+	private final ReadWriteLock markLock = new ReentrantReadWriteLock();
+	
+	private final DocumentStore documentStore = new JeDocumentStore();
+	private final LinkStore linkStore = new JeLinkStore();
+	private final UrlStore urlStore = new JeUrlStore();
+	private final PostingStore postingStore = new JePostingStore();
+	private final ScoreStore scoreStore = new JeScoreStore();
+	
+	
+	/**
+	 * constructor class, opens (or creates) the environment in dir
+	 * @param dir
+	 * @param writeMode
+	 */
+	public JeStorage(File dir, WriteMode writeMode) {
+		
+		this.writeMode = writeMode;
+		dir.mkdirs();
+		
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setAllowCreate(true);
+		envConfig.setTransactional(writeMode != WriteMode.DEFERRED);
+		if (writeMode != WriteMode.DEFERRED) {
+			envConfig.setDurability(writeMode == WriteMode.SYNC ? Durability.COMMIT_SYNC : Durability.COMMIT_NO_SYNC);
+		}
+		env = new Environment(dir, envConfig);
+		
+		dbConfig = new DatabaseConfig();
+		dbConfig.setAllowCreate(true);
+		dbConfig.setTransactional(writeMode != WriteMode.DEFERRED);
+		
+		// the sequence of the ids needs a database that is not deferred-write
+		termDictionary = new BdbTermDictionary(env, dbConfig);
+		
+		dbConfig.setDeferredWrite(writeMode == WriteMode.DEFERRED);
+		documentDB = env.openDatabase(null, DOCUMENT_DB_NAME, dbConfig);
+		changeDB = env.openDatabase(null, CHANGE_DB_NAME, dbConfig);
+		linkDB = env.openDatabase(null, LINK_DB_NAME, dbConfig);
+		urlDB = env.openDatabase(null, URL_DB_NAME, dbConfig);
+		
+		long lastChange = -1;
+		try (Cursor cursor = changeDB.openCursor(null, null)) {
+			DatabaseEntry key = new DatabaseEntry();
+			if (cursor.getLast(key, new DatabaseEntry(), LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+				lastChange = LongBinding.entryToLong(key);
+			}
+		}
+		nextChange = new AtomicLong(lastChange + 1);
+		
+		logger.info("Storage in JE environment {}, write mode {}.", dir, writeMode);
+	}
+	
+	
+	@Override
+	public DocumentStore getDocumentStore() {
+		return documentStore;
+	}
+	
+	
+	@Override
+	public LinkStore getLinkStore() {
+		return linkStore;
+	}
+	
+	
+	@Override
+	public UrlStore getUrlStore() {
+		return urlStore;
+	}
+	
+	
+	@Override
+	public PostingStore getPostingStore() {
+		return postingStore;
+	}
+	
+	
+	@Override
+	public ScoreStore getScoreStore() {
+		return scoreStore;
+	}
+	
+	
+	@Override
+	public void close() {
+		
+		logger.info("Shutting down JE environment.");
+		
+		try {
+			for (Database db : new Database[] {documentDB, changeDB, linkDB, urlDB}) {
+				if (writeMode == WriteMode.DEFERRED) {
+					db.sync();
+				}
+				db.close();
+			}
+			termDictionary.close();
+			env.close();
+		} catch (Exception e) {
+			logger.error("Error while shutting down JE environment.");
+			e.printStackTrace();
+		}
+	}
+	
+	
+	private Transaction beginTransaction() {
+		return writeMode != WriteMode.DEFERRED ? env.beginTransaction(null, null) : null;
+	}
+	
+	
+	/**
+	 * Commit txn, or abort it if the batch failed
+	 */
+	private static void endTransaction(Transaction txn, boolean committed) {
+		if (txn != null) {
+			if (committed) {
+				txn.commit();
+			} else {
+				txn.abort();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Term of id, from the dictionary reloaded if id is newer than the last load
+	 */
+	private String term(int id) {
+		
+		String[] terms = this.terms;
+		if (id >= terms.length || terms[id] == null) {
+			synchronized (termDictionary) {
+				terms = BdbTermDictionary.load(env, termDictionaryConfig());
+				this.terms = terms;
+			}
+		}
+		return terms[id];
+	}
+	
+	
+	private DatabaseConfig termDictionaryConfig() {
+		DatabaseConfig config = dbConfig.clone();
+		config.setDeferredWrite(false);
+		return config;
+	}
+	
+	
+	/**
+	 * Page record: packed docLength, number of terms, 1 if there are positions, then for every
+	 * term in increasing id order: id gap from the previous one, count, and with positions
+	 * their length and encoded bytes.
+	 */
+	private void writeDocument(PageRecord record, TupleOutput output) {
+		
+		final int[] ids = new int[record.words.length];
+		synchronized (termDictionary) {
+			for (int k = 0; k < ids.length; k++) {
+				ids[k] = termDictionary.id(record.words[k]);
+			}
+		}
+		
+		Integer[] order = new Integer[ids.length];
+		for (int k = 0; k < order.length; k++) {
+			order[k] = k;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(ids[a], ids[b]);
+			}
+		});
+		
+		output.writePackedInt(record.docLength);
+		output.writePackedInt(ids.length);
+		output.writePackedInt(record.positions != null ? 1 : 0);
+		for (int k = 0, previous = 0; k < order.length; k++) {
+			int i = order[k];
+			output.writePackedInt(ids[i] - previous);
+			output.writePackedInt(record.counts[i]);
+			if (record.positions != null) {
+				output.writePackedInt(record.positions[i].length);
+				output.writeFast(record.positions[i]);
+			}
+			previous = ids[i];
+		}
+	}
+	
+	
+	private PageRecord readDocument(int docId, TupleInput input) {
+		
+		int docLength = input.readPackedInt();
+		int size = input.readPackedInt();
+		boolean withPositions = input.readPackedInt() == 1;
+		
+		String[] words = new String[size];
+		int[] counts = new int[size];
+		byte[][] positions = withPositions ? new byte[size][] : null;
+		for (int k = 0, id = 0; k < size; k++) {
+			id += input.readPackedInt();
+			words[k] = term(id);
+			counts[k] = input.readPackedInt();
+			if (withPositions) {
+				positions[k] = new byte[input.readPackedInt()];
+				input.readFast(positions[k]);
+			}
+		}
+		return new PageRecord(docId, null, words, counts, positions, docLength, null);
+	}
+	
+	
+	private class JeDocumentStore implements DocumentStore {
+		
+		@Override
+		public void putAll(List<PageRecord> records) {
+			
+			markLock.readLock().lock();
+			Transaction txn = beginTransaction();
+			boolean committed = false;
+			try {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				DatabaseEntry changeKey = new DatabaseEntry();
+				for (PageRecord record : records) {
+					IntegerBinding.intToEntry(record.docId, key);
+					TupleOutput output = new TupleOutput();
+					writeDocument(record, output);
+					value.setData(output.getBufferBytes(), 0, output.getBufferLength());
+					documentDB.put(txn, key, value);
+					
+					LongBinding.longToEntry(nextChange.getAndIncrement(), changeKey);
+					changeDB.put(txn, changeKey, key);
+				}
+				committed = true;
+			} finally {
+				endTransaction(txn, committed);
+				markLock.readLock().unlock();
+			}
+		}
+		
+		
+		@Override
+		public void forEach(DocumentVisitor visitor) throws IOException {
+			forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, visitor);
+		}
+		
+		
+		@Override
+		public void forEachInRange(int fromDocId, int toDocId, DocumentVisitor visitor) throws IOException {
+			
+			try (Cursor cursor = documentDB.openCursor(null, CursorConfig.READ_COMMITTED)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				IntegerBinding.intToEntry(fromDocId, key);
+				OperationStatus status = cursor.getSearchKeyRange(key, value, LockMode.DEFAULT);
+				while (status == OperationStatus.SUCCESS) {
+					int docId = IntegerBinding.entryToInt(key);
+					if (docId >= toDocId) {
+						break;
+					}
+					visitor.visit(readDocument(docId, new TupleInput(value.getData(), value.getOffset(), value.getSize())));
+					status = cursor.getNext(key, value, LockMode.DEFAULT);
+				}
+			}
+		}
+		
+		
+		@Override
+		public int[] getDocIdRange() {
+			
+			try (Cursor cursor = documentDB.openCursor(null, CursorConfig.READ_COMMITTED)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				value.setPartial(0, 0, true);
+				if (cursor.getFirst(key, value, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+					return null;
+				}
+				int first = IntegerBinding.entryToInt(key);
+				cursor.getLast(key, value, LockMode.DEFAULT);
+				return new int[] {first, IntegerBinding.entryToInt(key)};
+			}
+		}
+		
+		
+		@Override
+		public String getMark() {
+			markLock.writeLock().lock();
+			try {
+				return Long.toString(nextChange.get());
+			} finally {
+				markLock.writeLock().unlock();
+			}
+		}
+		
+		
+		/**
+		 * The docIds of the change log in [fromMark, toMark), in order of their first change
+		 * @return number of changes
+		 */
+		private long changedDocIds(String fromMark, String toMark, Set<Integer> docIds) {
+			
+			long from = fromMark.isEmpty() ? 0 : Long.parseLong(fromMark);
+			long to = Long.parseLong(toMark);
+			long numOfChanges = 0;
+			
+			try (Cursor cursor = changeDB.openCursor(null, CursorConfig.READ_COMMITTED)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				LongBinding.longToEntry(from, key);
+				OperationStatus status = cursor.getSearchKeyRange(key, value, LockMode.DEFAULT);
+				while (status == OperationStatus.SUCCESS && LongBinding.entryToLong(key) < to) {
+					if (docIds != null) {
+						docIds.add(IntegerBinding.entryToInt(value));
+					}
+					numOfChanges++;
+					status = cursor.getNext(key, value, LockMode.DEFAULT);
+				}
+			}
+			return numOfChanges;
+		}
+		
+		
+		@Override
+		public long countChanged(String fromMark, String toMark) {
+			return changedDocIds(fromMark, toMark, null);
+		}
+		
+		
+		@Override
+		public void forEachChanged(String fromMark, String toMark, DocumentVisitor visitor) throws IOException {
+			
+			Set<Integer> docIds = new LinkedHashSet<>();
+			changedDocIds(fromMark, toMark, docIds);
+			
+			// the record holds the last version of the page
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			for (int docId : docIds) {
+				IntegerBinding.intToEntry(docId, key);
+				if (documentDB.get(null, key, value, LockMode.READ_COMMITTED) == OperationStatus.SUCCESS) {
+					visitor.visit(readDocument(docId, new TupleInput(value.getData(), value.getOffset(), value.getSize())));
+				}
+			}
+		}
+	}
+	
+	
+	private class JeLinkStore implements LinkStore {
+		
+		@Override
+		public void putAll(List<PageRecord> records) {
+			
+			Transaction txn = beginTransaction();
+			boolean committed = false;
+			try {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				for (PageRecord record : records) {
+					IntegerBinding.intToEntry(record.docId, key);
+					LINK_LIST_BINDING.objectToEntry(record.linkDocIds, value);
+					linkDB.put(txn, key, value);
+				}
+				committed = true;
+			} finally {
+				endTransaction(txn, committed);
+			}
+		}
+		
+		
+		@Override
+		public void forEach(LinkVisitor visitor) {
+			
+			try (Cursor cursor = linkDB.openCursor(null, CursorConfig.READ_COMMITTED)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				while (cursor.getNext(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+					visitor.visit(IntegerBinding.entryToInt(key), LINK_LIST_BINDING.entryToObject(value));
+				}
+			}
+		}
+	}
+	
+	
+	private class JeUrlStore implements UrlStore {
+		
+		@Override
+		public void putAll(List<PageRecord> records) {
+			
+			Transaction txn = beginTransaction();
+			boolean committed = false;
+			try {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				for (PageRecord record : records) {
+					IntegerBinding.intToEntry(record.docId, key);
+					StringBinding.stringToEntry(record.url, value);
+					urlDB.put(txn, key, value);
+				}
+				committed = true;
+			} finally {
+				endTransaction(txn, committed);
+			}
+		}
+		
+		
+		@Override
+		public Map<Integer, String> getUrls(Collection<Integer> docIds) {
+			
+			Map<Integer, String> urls = new HashMap<>();
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			for (int docId : docIds) {
+				IntegerBinding.intToEntry(docId, key);
+				if (urlDB.get(null, key, value, LockMode.READ_COMMITTED) == OperationStatus.SUCCESS) {
+					urls.put(docId, StringBinding.entryToString(value));
+				}
+			}
+			return urls;
+		}
+		
+		
+		@Override
+		public Set<Integer> findDocIds(String urlPattern) {
+			
+			Pattern pattern = Pattern.compile(urlPattern, Pattern.CASE_INSENSITIVE);
+			Set<Integer> docIds = new HashSet<>();
+			try (Cursor cursor = urlDB.openCursor(null, CursorConfig.READ_COMMITTED)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				while (cursor.getNext(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+					if (pattern.matcher(StringBinding.entryToString(value)).find()) {
+						docIds.add(IntegerBinding.entryToInt(key));
+					}
+				}
+			}
+			return docIds;
+		}
+	}
+	
+	
+	private class JePostingStore implements PostingStore {
+		
+		/**
+		 * Posting record of a term: packed size, docId gaps, tfs, 1 if there are positions,
+		 * then the length and encoded bytes of the positions of every docId.
+		 */
+		@Override
+		public PostingSink create() {
+			
+			if (env.getDatabaseNames().contains(POSTING_DB_NAME)) {
+				env.removeDatabase(null, POSTING_DB_NAME);
+			}
+			final Database postingDB = env.openDatabase(null, POSTING_DB_NAME, dbConfig);
+			
+			return new PostingSink() {
+				
+				private final DatabaseEntry key = new DatabaseEntry();
+				private final DatabaseEntry value = new DatabaseEntry();
+				
+				@Override
+				public void add(String term, int[] docIds, int[] tfs, byte[] positions, int[] positionStarts, int size) {
+					
+					TupleOutput output = new TupleOutput();
+					output.writePackedInt(size);
+					for (int k = 0, previous = 0; k < size; k++) {
+						output.writePackedInt(docIds[k] - previous);
+						previous = docIds[k];
+					}
+					for (int k = 0; k < size; k++) {
+						output.writePackedInt(tfs[k]);
+					}
+					output.writePackedInt(positions != null ? 1 : 0);
+					if (positions != null) {
+						for (int k = 0; k < size; k++) {
+							output.writePackedInt(positionStarts[k + 1] - positionStarts[k]);
+							output.writeFast(positions, positionStarts[k], positionStarts[k + 1] - positionStarts[k]);
+						}
+					}
+					
+					StringBinding.stringToEntry(term, key);
+					value.setData(output.getBufferBytes(), 0, output.getBufferLength());
+					// auto-commit, the postings of a build are not a single transaction
+					postingDB.put(null, key, value);
+				}
+				
+				@Override
+				public void close() {
+					if (writeMode == WriteMode.DEFERRED) {
+						postingDB.sync();
+					}
+					postingDB.close();
+				}
+			};
+		}
+	}
+	
+	
+	private class JeScoreStore implements ScoreStore {
+		
+		@Override
+		public void save(String name, int[] docIds, double[] scores) {
+			
+			if (env.getDatabaseNames().contains(SCORE_DB_PREFIX + name)) {
+				env.removeDatabase(null, SCORE_DB_PREFIX + name);
+			}
+			Database scoreDB = env.openDatabase(null, SCORE_DB_PREFIX + name, dbConfig);
+			
+			Transaction txn = beginTransaction();
+			boolean committed = false;
+			try {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				for (int k = 0; k < docIds.length; k++) {
+					IntegerBinding.intToEntry(docIds[k], key);
+					DoubleBinding.doubleToEntry(scores[k], value);
+					scoreDB.put(txn, key, value);
+				}
+				committed = true;
+			} finally {
+				endTransaction(txn, committed);
+				if (writeMode == WriteMode.DEFERRED) {
+					scoreDB.sync();
+				}
+				scoreDB.close();
+			}
+		}
+		
+		
+		@Override
+		public void forEach(String name, ScoreVisitor visitor) {
+			
+			if (!env.getDatabaseNames().contains(SCORE_DB_PREFIX + name)) {
+				return;
+			}
+			Database scoreDB = env.openDatabase(null, SCORE_DB_PREFIX + name, dbConfig);
+			try (Cursor cursor = scoreDB.openCursor(null, CursorConfig.READ_COMMITTED)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				while (cursor.getNext(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+					visitor.visit(IntegerBinding.entryToInt(key), DoubleBinding.entryToDouble(value));
+				}
+			} finally {
+				scoreDB.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import java.util.List;
+
+import org.mj.mysearch.webcrawler.PageRecord;
+
+
+/**
+ * The outgoing links of the crawled pages (DocId_LinkDocId), read back by PageRank.
+ */
+public interface LinkStore {
+	
+	/**
+	 * Receives the links of the stored pages.
+	 */
+	interface LinkVisitor {
+		
+		/**
+		 * @param docId
+		 * @param linkDocIds docIds of the outgoing urls
+		 */
+		void visit(int docId, int[] linkDocIds);
+	}
+	
+	
+	/**
+	 * Store the links of a batch of visited pages.
+	 * @param records
+	 */
+	void putAll(List<PageRecord> records);
+	
+	
+	/**
+	 * The links of every stored page.
+	 */
+	void forEach(LinkVisitor visitor);
+
+}
@@ -0,0 +1,427 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.mj.mysearch.revindexer.MongoPostingWriter;
+import org.mj.mysearch.revindexer.PostingSink;
+import org.mj.mysearch.webcrawler.BulkWriteBuffer;
+import org.mj.mysearch.webcrawler.PageRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+
+/**
+ * Storage in the local MongoDB server, with the databases and collections of the pipeline:
+ * WebCrawlerIndexDB.DocId_WordCount, OutgoingUrlDB.DocId_LinkDocId, DocUrlDB.DocId_Url,
+ * RevIndexDB.Word_DocId and PrScoreDB.
+ * 
+ * The batches are sent as unordered bulk writes (see BulkWriteBuffer). Every visit of a
+ * page inserts a new DocId_WordCount document, its ObjectId (creation second first) marks
+ * the changes.
+ */
+public class MongoStorage implements Storage {
+	
+	private static final Logger logger = LoggerFactory.getLogger(MongoStorage.class);
+	
+	public static final String INDEX_DB_NAME = "WebCrawlerIndexDB";
+	public static final String URL_DB_NAME = "OutgoingUrlDB";
+	public static final String DOC_DB_NAME = "DocUrlDB";
+	public static final String REV_INDEX_DB_NAME = "RevIndexDB";
+	public static final String PRSCORE_DB_NAME = "PrScoreDB";
+	
+	private static final int WRITE_BATCH_SIZE = 200;
+	
+	/** pages inserted less than this ago may still be in flight, getMark() leaves them for the next mark */
+	private static final long MARK_MARGIN_MS = 60 * 1000;
+	
+	private final MongoClient mongoClient;
+	
+	private final DocumentStore documentStore = new MongoDocumentStore();
+	private final LinkStore linkStore = new MongoLinkStore();
+	private final UrlStore urlStore = new MongoUrlStore();
+	private final PostingStore postingStore = new MongoPostingStore();
+	private final ScoreStore scoreStore = new MongoScoreStore();
+	
+	
+	/**
+	 * constructor class, connects to the local MongoDB
+	 */
+	public MongoStorage() {
+		mongoClient = new MongoClient();
+		logger.info("Storage in MongoDB.");
+	}
+	
+	
+	/**
+	 * A database of the pipeline, for the operations outside of the stores
+	 */
+	public MongoDatabase getDatabase(String name) {
+		return mongoClient.getDatabase(name);
+	}
+	
+	
+	private MongoCollection<Document> getCollection(String databaseName, String collectionName) {
+		return mongoClient.getDatabase(databaseName).getCollection(collectionName);
+	}
+	
+	
+	@Override
+	public DocumentStore getDocumentStore() {
+		return documentStore;
+	}
+	
+	
+	@Override
+	public LinkStore getLinkStore() {
+		return linkStore;
+	}
+	
+	
+	@Override
+	public UrlStore getUrlStore() {
+		return urlStore;
+	}
+	
+	
+	@Override
+	public PostingStore getPostingStore() {
+		return postingStore;
+	}
+	
+	
+	@Override
+	public ScoreStore getScoreStore() {
+		return scoreStore;
+	}
+	
+	
+	@Override
+	public void close() {
+		logger.info("Shutting down MongoDB Client.");
+		try {
+			mongoClient.close();
+		} catch (Exception e) {
+			logger.error("Error while shutting down MongoDB Client.");
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Smallest ObjectId created at time or later, in seconds as the ObjectId timestamps
+	 */
+	private static ObjectId watermark(long time) {
+		return new ObjectId(String.format("%08x%016x", time / 1000, 0));
+	}
+	
+	
+	private class MongoDocumentStore implements DocumentStore {
+		
+		/** the versions of each docId, newest first */
+		private final Document byDocIdNewestFirst = new Document("doc_id", 1).append("_id", -1);
+		
+		private MongoCollection<Document> collection() {
+			return getCollection(INDEX_DB_NAME, "DocId_WordCount");
+		}
+		
+		
+		/**
+		 * The documents of filter by docId, newest version first, on the index of that order
+		 */
+		private FindIterable<Document> findByDocId(Bson filter) {
+			// does nothing if it exists
+			collection().createIndex(byDocIdNewestFirst);
+			return collection().find(filter).sort(byDocIdNewestFirst);
+		}
+		
+		
+		@Override
+		public void putAll(List<PageRecord> records) {
+			
+			BulkWriteBuffer buffer = new BulkWriteBuffer(collection(), WRITE_BATCH_SIZE);
+			for (PageRecord record : records) {
+				List<Document> wordCountList = new ArrayList<>(record.words.length);
+				for (int k = 0; k < record.words.length; k++) {
+					wordCountList.add(new Document(record.words[k], record.counts[k]));
+				}
+				Document wordCount = new Document().append("doc_id", record.docId)
+						.append("word_count", wordCountList).append("doc_length", record.docLength);
+				if (record.positions != null) {
+					// encoded token positions of each word, in the order of word_count
+					List<Binary> positionList = new ArrayList<>(record.positions.length);
+					for (byte[] positions : record.positions) {
+						positionList.add(new Binary(positions));
+					}
+					wordCount.append("word_positions", positionList);
+				}
+				buffer.insert(wordCount);
+			}
+			buffer.flush();
+		}
+		
+		
+		@Override
+		public void forEach(DocumentVisitor visitor) throws IOException {
+			// a page crawled again has a document per crawl, only the last one is visited
+			visit(findByDocId(new Document()), true, visitor);
+		}
+		
+		
+		@Override
+		public void forEachInRange(int fromDocId, int toDocId, DocumentVisitor visitor) throws IOException {
+			visit(findByDocId(Filters.and(Filters.gte("doc_id", fromDocId), Filters.lt("doc_id", toDocId))),
+					true, visitor);
+		}
+		
+		
+		@Override
+		public int[] getDocIdRange() {
+			collection().createIndex(byDocIdNewestFirst);
+			Document first = collection().find().sort(new Document("doc_id", 1)).limit(1).first();
+			Document last = collection().find().sort(new Document("doc_id", -1)).limit(1).first();
+			return first == null ? null : new int[] {first.getInteger("doc_id"), last.getInteger("doc_id")};
+		}
+		
+		
+		@Override
+		public String getMark() {
+			return watermark(System.currentTimeMillis() - MARK_MARGIN_MS).toHexString();
+		}
+		
+		
+		private Bson changed(String fromMark, String toMark) {
+			Bson range = Filters.lt("_id", new ObjectId(toMark));
+			return fromMark.isEmpty() ? range : Filters.and(Filters.gte("_id", new ObjectId(fromMark)), range);
+		}
+		
+		
+		@Override
+		public long countChanged(String fromMark, String toMark) {
+			return collection().count(changed(fromMark, toMark));
+		}
+		
+		
+		@Override
+		public void forEachChanged(String fromMark, String toMark, DocumentVisitor visitor) throws IOException {
+			// _id grows with the insertion time, the first document of a docId is its last version
+			visit(collection().find(changed(fromMark, toMark)).sort(new Document("_id", -1)), false, visitor);
+		}
+		
+		
+		/**
+		 * Visit the newest version of each docId, the first one of iterable.
+		 * @param sortedByDocId the versions of a docId follow each other, no docId needs to be kept
+		 */
+		private void visit(FindIterable<Document> iterable, boolean sortedByDocId, DocumentVisitor visitor)
+				throws IOException {
+			
+			Set<Integer> visitedDocIds = sortedByDocId ? null : new HashSet<Integer>();
+			Integer previousDocId = null;
+			iterable.noCursorTimeout(true);
+			for (Document document : iterable) {
+				
+				int docId = document.getInteger("doc_id");
+				if (sortedByDocId ? previousDocId != null && previousDocId == docId : !visitedDocIds.add(docId)) {
+					continue;
+				}
+				previousDocId = docId;
+				
+				@SuppressWarnings("unchecked")
+				List<Document> wordCountList = (List<Document>) document.get("word_count");
+				
+				// pages crawled before the positions were recorded have none
+				@SuppressWarnings("unchecked")
+				List<Binary> positionList = (List<Binary>) document.get("word_positions");
+				
+				String[] words = new String[wordCountList.size()];
+				int[] counts = new int[words.length];
+				byte[][] positions = positionList != null ? new byte[words.length][] : null;
+				int size = 0, docLength = 0;
+				for (Document item : wordCountList) {
+					String word = item.keySet().iterator().next();
+					words[size] = word;
+					counts[size] = item.getInteger(word);
+					if (positions != null) {
+						positions[size] = positionList.get(size).getData();
+					}
+					docLength += counts[size++];
+				}
+				
+				// pages crawled before doc_length was recorded: the stored counts add up to the same
+				Integer storedLength = document.getInteger("doc_length");
+				visitor.visit(new PageRecord(docId, null, words, counts, positions,
+						storedLength != null ? storedLength : docLength, null));
+			}
+		}
+	}
+	
+	
+	private class MongoLinkStore implements LinkStore {
+		
+		private MongoCollection<Document> collection() {
+			return getCollection(URL_DB_NAME, "DocId_LinkDocId");
+		}
+		
+		
+		@Override
+		public void putAll(List<PageRecord> records) {
+			
+			BulkWriteBuffer buffer = new BulkWriteBuffer(collection(), WRITE_BATCH_SIZE);
+			for (PageRecord record : records) {
+				List<Integer> linkDocIdList = new ArrayList<>(record.linkDocIds.length);
+				for (int linkDocId : record.linkDocIds) {
+					linkDocIdList.add(linkDocId);
+				}
+				buffer.insert(new Document().append("doc_id", record.docId).append("link_docId", linkDocIdList));
+			}
+			buffer.flush();
+		}
+		
+		
+		@Override
+		public void forEach(LinkVisitor visitor) {
+			
+			// in insertion order, so that the links of the last crawl of a page replace the former ones
+			FindIterable<Document> iterable = collection().find().sort(new Document("_id", 1));
+			iterable.noCursorTimeout(true);
+			for (Document document : iterable) {
+				@SuppressWarnings("unchecked")
+				List<Integer> linkDocIdList = (List<Integer>) document.get("link_docId");
+				int[] linkDocIds = new int[linkDocIdList.size()];
+				for (int k = 0; k < linkDocIds.length; k++) {
+					linkDocIds[k] = linkDocIdList.get(k);
+				}
+				visitor.visit(document.getInteger("doc_id"), linkDocIds);
+			}
+		}
+	}
+	
+	
+	private class MongoUrlStore implements UrlStore {
+		
+		private volatile boolean indexed;
+		
+		
+		private MongoCollection<Document> collection() {
+			return getCollection(DOC_DB_NAME, "DocId_Url");
+		}
+		
+		
+		@Override
+		public void putAll(List<PageRecord> records) {
+			
+			BulkWriteBuffer buffer = new BulkWriteBuffer(collection(), WRITE_BATCH_SIZE);
+			for (PageRecord record : records) {
+				buffer.insert(new Document().append("doc_id", record.docId).append("url", record.url));
+			}
+			buffer.flush();
+		}
+		
+		
+		@Override
+		public Map<Integer, String> getUrls(Collection<Integer> docIds) {
+			
+			if (!indexed) {
+				collection().createIndex(new Document("doc_id", 1));
+				indexed = true;
+			}
+			
+			Map<Integer, String> urls = new HashMap<>();
+			for (Document document : collection().find(Filters.in("doc_id", docIds))
+					.projection(Projections.include("doc_id", "url"))) {
+				urls.put(document.getInteger("doc_id"), document.getString("url"));
+			}
+			return urls;
+		}
+		
+		
+		@Override
+		public Set<Integer> findDocIds(String urlPattern) {
+			
+			Set<Integer> docIds = new HashSet<>();
+			for (Document document : collection().find(Filters.regex("url", urlPattern, "i"))
+					.projection(Projections.include("doc_id"))) {
+				docIds.add(document.getInteger("doc_id"));
+			}
+			return docIds;
+		}
+	}
+	
+	
+	private class MongoPostingStore implements PostingStore {
+		
+		@Override
+		public PostingSink create() {
+			
+			mongoClient.dropDatabase(REV_INDEX_DB_NAME);
+			final MongoCollection<Document> collection = getCollection(REV_INDEX_DB_NAME, "Word_DocId");
+			final MongoPostingWriter writer = new MongoPostingWriter(collection);
+			
+			return new PostingSink() {
+				
+				@Override
+				public void add(String term, int[] docIds, int[] tfs, byte[] positions, int[] positionStarts, int size) {
+					writer.add(term, docIds, tfs, positions, positionStarts, size);
+				}
+				
+				@Override
+				public void close() {
+					writer.close();
+					// created after the load
+					collection.createIndex(new Document("word", 1));
+				}
+			};
+		}
+	}
+	
+	
+	private class MongoScoreStore implements ScoreStore {
+		
+		@Override
+		public void save(String name, int[] docIds, double[] scores) {
+			
+			MongoCollection<Document> collection = getCollection(PRSCORE_DB_NAME, name);
+			collection.drop();
+			BulkWriteBuffer buffer = new BulkWriteBuffer(collection, WRITE_BATCH_SIZE);
+			for (int k = 0; k < docIds.length; k++) {
+				buffer.insert(new Document().append("doc_id", docIds[k]).append("pr_score", scores[k]));
+			}
+			buffer.flush();
+		}
+		
+		
+		@Override
+		public void forEach(String name, ScoreVisitor visitor) {
+			
+			FindIterable<Document> iterable = getCollection(PRSCORE_DB_NAME, name).find()
+					.projection(Projections.include("doc_id", "pr_score"));
+			iterable.noCursorTimeout(true);
+			for (Document document : iterable) {
+				visitor.visit(document.getInteger("doc_id"), document.getDouble("pr_score"));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import org.mj.mysearch.revindexer.PostingSink;
+
+
+/**
+ * The inverted index written by RevIndexer when it does not write a segment (Word_DocId).
+ */
+public interface PostingStore {
+	
+	/**
+	 * Drop the stored index and start writing a new one.
+	 * @return the sink of the posting lists, the new index is complete once it is closed
+	 */
+	PostingSink create();
+
+}
@@ -0,0 +1,36 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+
+/**
+ * The PageRank scores, by name (PrScoreDB, PrScore_topic, ...).
+ */
+public interface ScoreStore {
+	
+	/**
+	 * Receives the stored scores.
+	 */
+	interface ScoreVisitor {
+		
+		void visit(int docId, double score);
+	}
+	
+	
+	/**
+	 * Replace the scores of name.
+	 * @param name
+	 * @param docIds
+	 * @param scores score of each docId
+	 */
+	void save(String name, int[] docIds, double[] scores);
+	
+	
+	/**
+	 * The scores of name, none if they were never saved.
+	 */
+	void forEach(String name, ScoreVisitor visitor);
+
+}
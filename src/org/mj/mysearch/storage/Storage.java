@@ -0,0 +1,42 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+
+/**
+ * Where the pipeline keeps its data between the crawl, the indexing and the ranking:
+ * the crawled pages (DocumentStore), their links (LinkStore) and urls (UrlStore), the
+ * inverted index written outside of the segments (PostingStore) and the PageRank
+ * scores (ScoreStore).
+ * 
+ * MongoStorage keeps them in a MongoDB server, JeStorage in an embedded Berkeley DB JE
+ * environment, for single node deployments without any network hop. See Storages for
+ * the choice by system properties.
+ * 
+ * The stores are thread safe, one Storage is shared by all the threads of a process.
+ */
+public interface Storage {
+	
+	DocumentStore getDocumentStore();
+	
+	
+	LinkStore getLinkStore();
+	
+	
+	UrlStore getUrlStore();
+	
+	
+	PostingStore getPostingStore();
+	
+	
+	ScoreStore getScoreStore();
+	
+	
+	/**
+	 * Make everything written durable and release the resources.
+	 */
+	void close();
+
+}
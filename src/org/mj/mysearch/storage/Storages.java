@@ -0,0 +1,63 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import java.io.File;
+import java.util.Properties;
+
+
+/**
+ * Opens the Storage chosen by configuration, so that every stage of the pipeline
+ * (Controller, RevIndexerController, PageRankController, QueryController) reads and
+ * writes the same one:
+ * 
+ *   mysearch.storage.type       mongo (default) or je
+ *   mysearch.storage.dir        environment directory of je
+ *   mysearch.storage.writeMode  sync, nosync (default) or deferred, see JeStorage.WriteMode
+ * 
+ * e.g. java -Dmysearch.storage.type=je -Dmysearch.storage.dir=/data/mysearch ...
+ */
+public final class Storages {
+	
+	public static final String PREFIX = "mysearch.storage.";
+	
+	
+	private Storages() {
+	}
+	
+	
+	/**
+	 * Storage configured by the system properties
+	 */
+	public static Storage fromSystemProperties() {
+		return fromProperties(System.getProperties());
+	}
+	
+	
+	/**
+	 * Storage configured by properties, MongoDB if there is none
+	 * @throws IllegalArgumentException on an unknown type or write mode, or je without dir
+	 */
+	public static Storage fromProperties(Properties properties) {
+		
+		String type = properties.getProperty(PREFIX + "type", "mongo");
+		
+		if (type.equalsIgnoreCase("mongo")) {
+			return new MongoStorage();
+		}
+		
+		if (type.equalsIgnoreCase("je")) {
+			String dir = properties.getProperty(PREFIX + "dir");
+			if (dir == null) {
+				throw new IllegalArgumentException(PREFIX + "dir is required by the je storage.");
+			}
+			String writeMode = properties.getProperty(PREFIX + "writeMode", "nosync");
+			return new JeStorage(new File(dir), JeStorage.WriteMode.parse(writeMode));
+		}
+		
+		throw new IllegalArgumentException("Unknown storage type " + type);
+	}
+
+}
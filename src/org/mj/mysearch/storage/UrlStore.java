@@ -0,0 +1,40 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.storage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mj.mysearch.webcrawler.PageRecord;
+
+
+/**
+ * The urls of the crawled pages (DocId_Url), read back to show the results and to
+ * select the pages of a domain.
+ */
+public interface UrlStore {
+	
+	/**
+	 * Store the urls of a batch of visited pages.
+	 * @param records
+	 */
+	void putAll(List<PageRecord> records);
+	
+	
+	/**
+	 * docId => url of the docIds found, one round-trip for all of them
+	 */
+	Map<Integer, String> getUrls(Collection<Integer> docIds);
+	
+	
+	/**
+	 * docIds of the pages whose url contains a match of urlPattern, case insensitive
+	 * @param urlPattern java.util.regex syntax
+	 */
+	Set<Integer> findDocIds(String urlPattern);
+
+}
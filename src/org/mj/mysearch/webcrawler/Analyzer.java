@@ -0,0 +1,212 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Text analysis chain shared by the crawlers and the query side:
+ * Tokenizer (lower-casing) -> LengthFilter -> NumericFilter -> StopwordFilter -> PorterStemmer
+ * 
+ * Configured per deployment with the properties below, read from the system properties
+ * (-Dmysearch.analyzer.stem=false ...) or from the file named by -Dmysearch.analyzer.config.
+ * Documents and queries must be analyzed with the same configuration.
+ * 
+ *   mysearch.analyzer.lowercase       true
+ *   mysearch.analyzer.maxTokenLength  40, 0 for no limit
+ *   mysearch.analyzer.dropNumbers     true
+ *   mysearch.analyzer.stopwords       english, none, or the path of a file with one stopword per line
+ *   mysearch.analyzer.stem            true
+ * 
+ * Works in place on the tokenizer buffer, one instance per thread.
+ */
+public class Analyzer {
+	
+	private static final Logger logger = LoggerFactory.getLogger(Analyzer.class);
+	
+	public static final String PREFIX = "mysearch.analyzer.";
+	
+	private final Tokenizer tokenizer = new Tokenizer();
+	private final TokenFilter[] filters;
+	private int length;
+	private int position;
+	
+	
+	/**
+	 * constructor class
+	 * @param config properties named as in the class comment, missing ones take the default
+	 */
+	public Analyzer(Properties config) {
+		
+		boolean lowerCase = Boolean.parseBoolean(config.getProperty(PREFIX + "lowercase", "true"));
+		int maxTokenLength = Integer.parseInt(config.getProperty(PREFIX + "maxTokenLength", "40"));
+		boolean dropNumbers = Boolean.parseBoolean(config.getProperty(PREFIX + "dropNumbers", "true"));
+		String stopwords = config.getProperty(PREFIX + "stopwords", "english");
+		boolean stem = Boolean.parseBoolean(config.getProperty(PREFIX + "stem", "true"));
+		
+		tokenizer.setLowerCase(lowerCase);
+		
+		List<TokenFilter> filterList = new ArrayList<>();
+		if (maxTokenLength > 0) {
+			filterList.add(new LengthFilter(maxTokenLength));
+		}
+		if (dropNumbers) {
+			filterList.add(new NumericFilter());
+		}
+		if (!"none".equals(stopwords)) {
+			filterList.add(new StopwordFilter(loadStopwords(stopwords, lowerCase)));
+		}
+		if (stem) {
+			filterList.add(new PorterStemmer());
+		}
+		filters = filterList.toArray(new TokenFilter[filterList.size()]);
+	}
+	
+	
+	/**
+	 * Analyzer configured by the system properties, see the class comment.
+	 */
+	public static Analyzer fromSystemProperties() {
+		
+		Properties config = new Properties();
+		String path = System.getProperty(PREFIX + "config");
+		if (path != null) {
+			try (InputStream in = new FileInputStream(path)) {
+				config.load(in);
+			} catch (IOException e) {
+				logger.error("Error while reading analyzer config {}, using the defaults.", path);
+			}
+		}
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(PREFIX)) {
+				config.setProperty(name, System.getProperty(name));
+			}
+		}
+		return new Analyzer(config);
+	}
+	
+	
+	private static List<String> loadStopwords(String stopwords, boolean lowerCase) {
+		
+		List<String> list = new ArrayList<>();
+		if ("english".equals(stopwords)) {
+			list.addAll(Arrays.asList(StopwordFilter.ENGLISH_STOPWORDS));
+		} else {
+			try {
+				for (String line : Files.readAllLines(Paths.get(stopwords), StandardCharsets.UTF_8)) {
+					line = line.trim();
+					if (!line.isEmpty() && !line.startsWith("#")) {
+						list.add(lowerCase ? line.toLowerCase() : line);
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Error while reading stopwords {}, using the English list.", stopwords);
+				list.addAll(Arrays.asList(StopwordFilter.ENGLISH_STOPWORDS));
+			}
+		}
+		return list;
+	}
+	
+	
+	/**
+	 * Start analyzing a new text.
+	 * @param text
+	 */
+	public void reset(CharSequence text) {
+		tokenizer.reset(text);
+		length = 0;
+		position = -1;
+	}
+	
+	
+	/**
+	 * Move to the next token that goes through all the filters.
+	 * @return false at the end of the text
+	 */
+	public boolean next() {
+		
+		while (tokenizer.next()) {
+			position++;
+			length = tokenizer.length();
+			char[] buffer = tokenizer.buffer();
+			for (int f = 0; f < filters.length && length > 0; f++) {
+				length = filters[f].filter(buffer, length);
+			}
+			if (length > 0) {
+				return true;
+			}
+		}
+		length = 0;
+		return false;
+	}
+	
+	
+	/**
+	 * Characters of the current term, valid up to length() and until the next call to next()
+	 */
+	public char[] buffer() {
+		return tokenizer.buffer();
+	}
+	
+	
+	public int length() {
+		return length;
+	}
+	
+	
+	/**
+	 * Position of the current term in the text, counting the dropped tokens too (stopwords,
+	 * numbers), so that "bank of america" and "bank on america" give the same term positions
+	 */
+	public int position() {
+		return position;
+	}
+	
+	
+	/**
+	 * @return the current term as a new String
+	 */
+	public String term() {
+		return new String(tokenizer.buffer(), 0, length);
+	}
+	
+	
+	/**
+	 * Count the terms of text into termCounter, with their positions if it records them.
+	 */
+	public void analyze(CharSequence text, TermCounter termCounter) {
+		reset(text);
+		while (next()) {
+			termCounter.addOccurrence(tokenizer.buffer(), 0, length, position);
+		}
+	}
+	
+	
+	/**
+	 * Terms of a query, in order, repeated terms kept.
+	 */
+	public List<String> terms(CharSequence query) {
+		List<String> terms = new ArrayList<>();
+		reset(query);
+		while (next()) {
+			terms.add(term());
+		}
+		return terms;
+	}
+
+}
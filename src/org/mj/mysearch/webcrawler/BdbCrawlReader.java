@@ -0,0 +1,165 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.IntegerBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+
+/**
+ * Reads back the databases written by TextCrawlerBDB, for RevIndexer and PageRank
+ * to work from a BDB crawl instead of MongoDB.
+ * 
+ * The environments are opened read only, the records come in increasing docId order
+ * (the keys are sorted big endian ints).
+ */
+public class BdbCrawlReader {
+	
+	private static final Logger logger = LoggerFactory.getLogger(BdbCrawlReader.class);
+	
+	
+	/**
+	 * Receives the pages of the index database.
+	 */
+	public interface PageVisitor {
+		
+		/**
+		 * @param docId
+		 * @param words terms of the page, valid up to size and only during the call
+		 * @param counts count of each term
+		 * @param size number of terms
+		 */
+		void visit(int docId, String[] words, int[] counts, int size) throws IOException;
+	}
+	
+	
+	/**
+	 * Receives the outgoing links of the pages.
+	 */
+	public interface LinkVisitor {
+		
+		/**
+		 * @param docId
+		 * @param linkDocIds sorted distinct docIds of the outgoing urls
+		 */
+		void visit(int docId, int[] linkDocIds);
+	}
+	
+	
+	private static final TermVectorBinding TERM_VECTOR_BINDING = new TermVectorBinding();
+	private static final LinkListBinding LINK_LIST_BINDING = new LinkListBinding();
+	
+	
+	/**
+	 * Read every page of the index environment, with its terms.
+	 * @param indexEnvDir index environment directory of TextCrawlerBDB
+	 * @param visitor
+	 * @return number of pages read
+	 */
+	public static int readPages(File indexEnvDir, PageVisitor visitor) throws IOException {
+		
+		Environment env = openReadOnly(indexEnvDir);
+		try {
+			DatabaseConfig dbConfig = readOnlyConfig();
+			String[] terms = BdbTermDictionary.load(env, dbConfig);
+			
+			Database indexDB = env.openDatabase(null, TextCrawlerBDB.INDEX_DB_NAME, dbConfig);
+			int numOfPages = 0;
+			String[] words = new String[1024];
+			try (Cursor cursor = indexDB.openCursor(null, null)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				while (cursor.getNext(key, value, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+					TermVector vector = TERM_VECTOR_BINDING.entryToObject(value);
+					if (vector.size > words.length) {
+						words = new String[2 * vector.size];
+					}
+					for (int k = 0; k < vector.size; k++) {
+						words[k] = terms[vector.termIds[k]];
+					}
+					visitor.visit(IntegerBinding.entryToInt(key), words, vector.counts, vector.size);
+					numOfPages++;
+				}
+			} finally {
+				indexDB.close();
+			}
+			
+			logger.info("Read {} pages from {}.", numOfPages, indexEnvDir);
+			return numOfPages;
+			
+		} catch (DatabaseException e) {
+			throw new IOException("Cannot read the index database in " + indexEnvDir, e);
+		} finally {
+			env.close();
+		}
+	}
+	
+	
+	/**
+	 * Read the outgoing links of every page of the link environment.
+	 * @param outgoingEnvDir link environment directory of TextCrawlerBDB
+	 * @param visitor
+	 * @return number of pages read
+	 */
+	public static int readLinks(File outgoingEnvDir, LinkVisitor visitor) throws IOException {
+		
+		Environment env = openReadOnly(outgoingEnvDir);
+		try {
+			Database outgoingUrlDB = env.openDatabase(null, TextCrawlerBDB.URL_DB_NAME, readOnlyConfig());
+			int numOfPages = 0;
+			try (Cursor cursor = outgoingUrlDB.openCursor(null, null)) {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				while (cursor.getNext(key, value, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+					visitor.visit(IntegerBinding.entryToInt(key), LINK_LIST_BINDING.entryToObject(value));
+					numOfPages++;
+				}
+			} finally {
+				outgoingUrlDB.close();
+			}
+			
+			logger.info("Read the links of {} pages from {}.", numOfPages, outgoingEnvDir);
+			return numOfPages;
+			
+		} catch (DatabaseException e) {
+			throw new IOException("Cannot read the link database in " + outgoingEnvDir, e);
+		} finally {
+			env.close();
+		}
+	}
+	
+	
+	private static Environment openReadOnly(File envDir) throws IOException {
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setReadOnly(true);
+		try {
+			return new Environment(envDir, envConfig);
+		} catch (DatabaseException e) {
+			throw new IOException("Cannot open the environment in " + envDir, e);
+		}
+	}
+	
+	
+	private static DatabaseConfig readOnlyConfig() {
+		DatabaseConfig dbConfig = new DatabaseConfig();
+		dbConfig.setReadOnly(true);
+		return dbConfig;
+	}
+
+}
@@ -0,0 +1,343 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.IntegerBinding;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Durability;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.je.TransactionConfig;
+
+
+/**
+ * Write-behind group committer of the TextCrawlerBDB databases, shared by the crawler
+ * threads of a process (see acquire()).
+ * 
+ * The crawlers queue their records, one committer thread writes the records of many pages
+ * in one transaction per environment, committed when it holds batchSize pages or its first
+ * page waited batchDelayMs. A commit costs one log write (and fsync), instead of two per page.
+ * 
+ * With a resumable crawl, write() returns once the record is committed: crawler4j marks a
+ * page processed in its frontier after visit() returns, so after a crash every page the
+ * frontier has done is in the databases, and the others are crawled again (a put by docId,
+ * the second write replaces the first). The committer does not wait then, the records queued
+ * during a commit make the next group. Without a resumable crawl, write() only queues.
+ * 
+ * Configured by the system properties:
+ * 
+ *   mysearch.bdb.durability    SYNC, WRITE_NO_SYNC (default) or NO_SYNC, of the batch commits:
+ *                              WRITE_NO_SYNC survives a crash of the process, SYNC also of the machine
+ *   mysearch.bdb.batchSize     maximum number of pages of a transaction, default 1000
+ *   mysearch.bdb.batchDelayMs  maximum wait of a queued page without a resumable crawl, default 1000
+ */
+public class BdbCrawlWriter {
+	
+	private static final Logger logger = LoggerFactory.getLogger(BdbCrawlWriter.class);
+	
+	public static final String PREFIX = "mysearch.bdb.";
+	
+	private static final TermVectorBinding TERM_VECTOR_BINDING = new TermVectorBinding();
+	private static final LinkListBinding LINK_LIST_BINDING = new LinkListBinding();
+	
+	/** writers by index environment directory */
+	private static final Map<File, BdbCrawlWriter> writers = new HashMap<>();
+	
+	/** a page record, with the latch of its commit when the crawler waits for it */
+	private static class Record {
+		
+		final int docId;
+		final TermVector vector;
+		final int[] linkDocIds;
+		final CountDownLatch committed;
+		DatabaseException error;
+		
+		Record(int docId, TermVector vector, int[] linkDocIds, boolean waitForCommit) {
+			this.docId = docId;
+			this.vector = vector;
+			this.linkDocIds = linkDocIds;
+			this.committed = waitForCommit ? new CountDownLatch(1) : null;
+		}
+	}
+	
+	/** marks the end of the queue for the committer */
+	private static final Record END = new Record(-1, null, null, false);
+	
+	private final File indexEnvDir;
+	private final boolean waitForCommit;
+	private final int batchSize;
+	private final long batchDelayMs;
+	private final TransactionConfig txnConfig;
+	
+	private final Environment indexDBEnv, outgoingDBEnv;
+	private final DatabaseConfig dbConfig;
+	private final Database indexDB, outgoingUrlDB;
+	private final BlockingQueue<Record> queue;
+	private final Thread committer;
+	private int references;
+	
+	
+	/**
+	 * constructor class, opens the environments and starts the committer
+	 * @param indexEnvDir
+	 * @param outgoingEnvDir
+	 * @param waitForCommit see the class comment
+	 * @param durability of the batch commits
+	 * @param batchSize
+	 * @param batchDelayMs
+	 */
+	public BdbCrawlWriter(File indexEnvDir, File outgoingEnvDir, boolean waitForCommit, Durability durability,
+			int batchSize, long batchDelayMs) throws DatabaseException {
+		
+		this.indexEnvDir = indexEnvDir;
+		this.waitForCommit = waitForCommit;
+		this.batchSize = batchSize;
+		this.batchDelayMs = batchDelayMs;
+		
+		txnConfig = new TransactionConfig();
+		txnConfig.setDurability(durability);
+		
+		indexEnvDir.mkdirs();
+		outgoingEnvDir.mkdirs();
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setAllowCreate(true);
+		envConfig.setTransactional(true);
+		// the auto-commits of the term dictionaries, logged before the batches that use
+		// their ids, are made durable by the commit of those batches
+		envConfig.setDurability(Durability.COMMIT_NO_SYNC);
+		indexDBEnv = new Environment(indexEnvDir, envConfig);
+		outgoingDBEnv = new Environment(outgoingEnvDir, envConfig);
+		
+		dbConfig = new DatabaseConfig();
+		dbConfig.setAllowCreate(true);
+		dbConfig.setTransactional(true);
+		indexDB = indexDBEnv.openDatabase(null, TextCrawlerBDB.INDEX_DB_NAME, dbConfig);
+		outgoingUrlDB = outgoingDBEnv.openDatabase(null, TextCrawlerBDB.URL_DB_NAME, dbConfig);
+		
+		queue = new ArrayBlockingQueue<>(4 * batchSize);
+		committer = new Thread(new Committer(), "BdbCrawlWriter-committer");
+		committer.start();
+		
+		logger.info("Successfully initialized {} and {}, commits {}, up to {} pages.", indexEnvDir, outgoingEnvDir,
+				durability.getLocalSync(), batchSize);
+	}
+	
+	
+	/**
+	 * The writer of indexEnvDir shared by the crawlers of the process, configured by the system
+	 * properties, until every crawler calls release().
+	 * @param indexEnvDir
+	 * @param outgoingEnvDir
+	 * @param waitForCommit true for a resumable crawl
+	 */
+	public static BdbCrawlWriter acquire(File indexEnvDir, File outgoingEnvDir, boolean waitForCommit)
+			throws DatabaseException {
+		
+		synchronized (writers) {
+			BdbCrawlWriter writer = writers.get(indexEnvDir.getAbsoluteFile());
+			if (writer == null) {
+				Durability.SyncPolicy syncPolicy = Durability.SyncPolicy.valueOf(
+						System.getProperty(PREFIX + "durability", "WRITE_NO_SYNC"));
+				writer = new BdbCrawlWriter(indexEnvDir, outgoingEnvDir, waitForCommit,
+						new Durability(syncPolicy, Durability.SyncPolicy.NO_SYNC, Durability.ReplicaAckPolicy.NONE),
+						Integer.parseInt(System.getProperty(PREFIX + "batchSize", "1000")),
+						Long.parseLong(System.getProperty(PREFIX + "batchDelayMs", "1000")));
+				writers.put(indexEnvDir.getAbsoluteFile(), writer);
+			}
+			writer.references++;
+			return writer;
+		}
+	}
+	
+	
+	/**
+	 * Release a writer of acquire(), the last release closes it.
+	 */
+	public void release() {
+		
+		synchronized (writers) {
+			if (--references == 0) {
+				writers.remove(indexEnvDir.getAbsoluteFile());
+				close();
+			}
+		}
+	}
+	
+	
+	/**
+	 * A new term dictionary handle in the index environment, one per crawler thread
+	 */
+	public BdbTermDictionary newTermDictionary() throws DatabaseException {
+		return new BdbTermDictionary(indexDBEnv, dbConfig);
+	}
+	
+	
+	/**
+	 * Queue the records of a page, and wait for their commit if waitForCommit.
+	 * @param docId
+	 * @param vector
+	 * @param linkDocIds
+	 * @throws DatabaseException if the commit failed
+	 */
+	public void write(int docId, TermVector vector, int[] linkDocIds) throws DatabaseException {
+		
+		Record record = new Record(docId, vector, linkDocIds, waitForCommit);
+		try {
+			queue.put(record);
+			if (record.committed != null) {
+				record.committed.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted, docId {} may not be saved.", docId);
+			return;
+		}
+		if (record.error != null) {
+			throw record.error;
+		}
+	}
+	
+	
+	/**
+	 * Commit everything still queued, stop the committer and close the databases.
+	 */
+	public void close() {
+		
+		logger.info("Shutting down BdbCrawlWriter.");
+		
+		try {
+			queue.put(END);
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while waiting for the committer.");
+		}
+		
+		try {
+			indexDB.close();
+			outgoingUrlDB.close();
+			indexDBEnv.close();
+			outgoingDBEnv.close();
+		} catch (DatabaseException dbe) {
+			logger.error("Error while shutting down the databases.");
+			dbe.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Drains the queue into batches, one transaction per environment and batch.
+	 */
+	private class Committer implements Runnable {
+		
+		private final List<Record> batch = new ArrayList<>(batchSize);
+		
+		@Override
+		public void run() {
+			
+			boolean running = true;
+			while (running) {
+				
+				try {
+					Record first = queue.take();
+					batch.add(first);
+					long deadline = System.currentTimeMillis() + batchDelayMs;
+					while (batch.size() < batchSize && batch.get(batch.size() - 1) != END) {
+						queue.drainTo(batch, batchSize - batch.size());
+						long wait = deadline - System.currentTimeMillis();
+						if (waitForCommit || wait <= 0 || batch.size() >= batchSize) {
+							// the crawlers of a resumable crawl wait for this commit
+							break;
+						}
+						Record next = queue.poll(wait, TimeUnit.MILLISECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running = false;
+				}
+				
+				if (!batch.isEmpty() && batch.get(batch.size() - 1) == END) {
+					batch.remove(batch.size() - 1);
+					running = false;
+				}
+				commit();
+			}
+		}
+		
+		
+		private void commit() {
+			
+			if (batch.isEmpty()) {
+				return;
+			}
+			
+			DatabaseException error = null;
+			Transaction txnIndexDB = null, txnOutgoingUrlDB = null;
+			try {
+				txnIndexDB = indexDBEnv.beginTransaction(null, txnConfig);
+				txnOutgoingUrlDB = outgoingDBEnv.beginTransaction(null, txnConfig);
+				
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry value = new DatabaseEntry();
+				for (Record record : batch) {
+					IntegerBinding.intToEntry(record.docId, key);
+					TERM_VECTOR_BINDING.objectToEntry(record.vector, value);
+					indexDB.put(txnIndexDB, key, value);
+					LINK_LIST_BINDING.objectToEntry(record.linkDocIds, value);
+					outgoingUrlDB.put(txnOutgoingUrlDB, key, value);
+				}
+				
+				// a page committed to the index only is crawled again after a crash
+				txnIndexDB.commit();
+				txnIndexDB = null;
+				txnOutgoingUrlDB.commit();
+				txnOutgoingUrlDB = null;
+			
+			} catch (DatabaseException e) {
+				logger.error("Error while committing {} pages, {}", batch.size(), e.getMessage());
+				error = e;
+				for (Transaction txn : new Transaction[] {txnIndexDB, txnOutgoingUrlDB}) {
+					if (txn != null) {
+						try {
+							txn.abort();
+						} catch (DatabaseException abortError) {
+							abortError.printStackTrace();
+						}
+					}
+				}
+			}
+			
+			for (Record record : batch) {
+				record.error = error;
+				if (record.committed != null) {
+					record.committed.countDown();
+				}
+			}
+			batch.clear();
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.IntegerBinding;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Sequence;
+import com.sleepycat.je.SequenceConfig;
+
+
+/**
+ * Term => int id dictionary of the TextCrawlerBDB index records, in the same environment.
+ * 
+ * The ids come from a JE Sequence, a new term is inserted with putNoOverwrite so that
+ * the crawlers of one process (each with its own handle) agree on its id, the loser of
+ * a race reads the winner's id back. Every handle caches the ids it has seen.
+ */
+public class BdbTermDictionary {
+	
+	private static final Logger logger = LoggerFactory.getLogger(BdbTermDictionary.class);
+	
+	static final String DB_NAME = "TermId";
+	static final String SEQUENCE_DB_NAME = "TermIdSequence";
+	
+	private static final DatabaseEntry SEQUENCE_KEY = new DatabaseEntry(new byte[] {0});
+	
+	private final Database termIdDB, sequenceDB;
+	private final Sequence sequence;
+	private final HashMap<String, Integer> cache = new HashMap<>();
+	
+	
+	/**
+	 * constructor class, opens (or creates) the dictionary in env
+	 * @param env
+	 * @param dbConfig configuration of the other databases of env
+	 */
+	public BdbTermDictionary(Environment env, DatabaseConfig dbConfig) throws DatabaseException {
+		
+		termIdDB = env.openDatabase(null, DB_NAME, dbConfig);
+		sequenceDB = env.openDatabase(null, SEQUENCE_DB_NAME, dbConfig);
+		
+		SequenceConfig sequenceConfig = new SequenceConfig();
+		sequenceConfig.setAllowCreate(true);
+		sequenceConfig.setCacheSize(64);
+		sequence = sequenceDB.openSequence(null, SEQUENCE_KEY, sequenceConfig);
+	}
+	
+	
+	/**
+	 * Id of term, a new one if it is not in the dictionary yet
+	 */
+	public int id(String term) throws DatabaseException {
+		
+		Integer cached = cache.get(term);
+		if (cached != null) {
+			return cached;
+		}
+		
+		DatabaseEntry key = new DatabaseEntry();
+		DatabaseEntry value = new DatabaseEntry();
+		StringBinding.stringToEntry(term, key);
+		
+		if (termIdDB.get(null, key, value, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+			IntegerBinding.intToEntry((int) sequence.get(null, 1), value);
+			if (termIdDB.putNoOverwrite(null, key, value) == OperationStatus.KEYEXIST) {
+				// added by another crawler meanwhile, its id wins
+				termIdDB.get(null, key, value, LockMode.DEFAULT);
+			}
+		}
+		
+		int id = IntegerBinding.entryToInt(value);
+		cache.put(term, id);
+		return id;
+	}
+	
+	
+	/**
+	 * Terms of the dictionary in env by id, null for the ids never handed out
+	 */
+	public static String[] load(Environment env, DatabaseConfig dbConfig) throws DatabaseException {
+		
+		String[] terms = new String[1024];
+		int numOfTerms = 0;
+		
+		Database termIdDB = env.openDatabase(null, DB_NAME, dbConfig);
+		try (Cursor cursor = termIdDB.openCursor(null, null)) {
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			while (cursor.getNext(key, value, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+				int id = IntegerBinding.entryToInt(value);
+				if (id >= terms.length) {
+					terms = Arrays.copyOf(terms, Math.max(2 * terms.length, id + 1));
+				}
+				terms[id] = StringBinding.entryToString(key);
+				numOfTerms++;
+			}
+		} finally {
+			termIdDB.close();
+		}
+		
+		logger.info("Loaded {} terms.", numOfTerms);
+		return terms;
+	}
+	
+	
+	public void close() throws DatabaseException {
+		sequence.close();
+		sequenceDB.close();
+		termIdDB.close();
+	}
+
+}
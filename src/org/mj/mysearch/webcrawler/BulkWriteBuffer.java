@@ -0,0 +1,98 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+
+
+/**
+ * Buffers the writes to one MongoDB collection and sends them as one
+ * unordered bulkWrite, once batchSize writes are pending or flush() is called.
+ *
+ * Not thread safe, each writer thread keeps its own buffers.
+ */
+public class BulkWriteBuffer {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkWriteBuffer.class);
+
+	private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+	private final MongoCollection<Document> collection;
+	private final int batchSize;
+
+	private final List<WriteModel<Document>> pending;
+
+
+	/**
+	 * constructor class
+	 * @param collection
+	 * @param batchSize flush once this many writes are pending
+	 */
+	public BulkWriteBuffer(MongoCollection<Document> collection, int batchSize) {
+		this.collection = collection;
+		this.batchSize = batchSize;
+		this.pending = new ArrayList<>(batchSize);
+	}
+
+
+	/**
+	 * Queue the insertion of document.
+	 * @param document
+	 */
+	public void insert(Document document) {
+		write(new InsertOneModel<>(document));
+	}
+
+
+	/**
+	 * Queue a write, flush if the batch is full.
+	 * @param model
+	 */
+	public void write(WriteModel<Document> model) {
+
+		pending.add(model);
+		if (pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+
+	/**
+	 * Send the pending writes. Being unordered, one failed write does not stop the others,
+	 * the failures are logged and dropped.
+	 */
+	public void flush() {
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		try {
+			collection.bulkWrite(pending, UNORDERED);
+		} catch (MongoBulkWriteException e) {
+			logger.error("{} of {} writes to {} failed, first error: {}", e.getWriteErrors().size(), pending.size(),
+					collection.getNamespace(), e.getWriteErrors().get(0).getMessage());
+		} finally {
+			pending.clear();
+		}
+	}
+
+
+	public int size() {
+		return pending.size();
+	}
+
+}
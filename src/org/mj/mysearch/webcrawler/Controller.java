@@ -1,6 +1,11 @@
 package org.mj.mysearch.webcrawler;
 
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mj.mysearch.revindexer.StreamingIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,17 +20,42 @@ public class Controller {
 	
 	private static final Logger logger = LoggerFactory.getLogger(Controller.class);
 	
+	private static final long STREAM_MEMORY_BUDGET = 256L << 20;
+	
 	public static void main(String[] args) throws Exception {
 		
-		if (args.length != 2) {
+		File streamDir = null;
+		boolean store = true;
+		long flushIntervalMs = StreamingIndexer.DEFAULT_FLUSH_INTERVAL_MS;
+		List<String> positional = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("--stream=")) {
+				// index the pages in process into an incrementally updated index
+				streamDir = new File(arg.substring("--stream=".length()));
+			} else if (arg.startsWith("--flush=")) {
+				flushIntervalMs = Long.parseLong(arg.substring("--flush=".length()));
+			} else if ("--no-store".equals(arg)) {
+				// with --stream, do not write the pages to MongoDB
+				store = false;
+			} else {
+				positional.add(arg);
+			}
+		}
+		args = positional.toArray(new String[positional.size()]);
+		
+		if (args.length < 2 || (!store && streamDir == null)) {
 			logger.info("Need parameters: ");
 			logger.info("\t rootFolder (for intermediate crawl data)");
 			logger.info("\t numberOfCrawlers (number of concurrent threads)");
+			logger.info("\t [numberOfWriters] (number of database writer threads, default 2)");
+			logger.info("\t [--stream=indexDir [--flush=ms] [--no-store]] (index the pages as they are crawled, "
+					+ "searchable within ms, default 2000, without writing them to MongoDB with --no-store)");
 			return;
 		}
 		
 		String crawlStorageFolder = args[0];
 		int numberOfCrawlers = Integer.parseInt(args[1]);
+		int numberOfWriters = args.length > 2 ? Integer.parseInt(args[2]) : 2;
 		
 		CrawlConfig config = new CrawlConfig();
 		
@@ -46,7 +76,19 @@ public class Controller {
 	    controller.addSeed("http://www.ics.uci.edu/~lopes/");
 	    controller.addSeed("http://www.ics.uci.edu/~welling/");
 		
-		controller.start(TextCrawlerMongoDB.class, numberOfCrawlers);
+		// one MongoDB client and writer pool shared by all the crawlers
+		PageSink pageSink = store ? new CrawlStore(numberOfWriters) : null;
+		if (streamDir != null) {
+			pageSink = new StreamingIndexer(streamDir, new File(System.getProperty("java.io.tmpdir")), 
+					STREAM_MEMORY_BUDGET, flushIntervalMs, pageSink);
+		}
+		controller.setCustomData(pageSink);
+		
+		try {
+			controller.start(TextCrawlerMongoDB.class, numberOfCrawlers);
+		} finally {
+			pageSink.shutDown();
+		}
 		
 	}
 
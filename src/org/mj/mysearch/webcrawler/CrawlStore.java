@@ -0,0 +1,207 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.mj.mysearch.storage.Storage;
+import org.mj.mysearch.storage.Storages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Process-wide storage of the crawl shared by all the crawler threads.
+ * 
+ * Owned by the Controller, which hands it to the crawlers through
+ * CrawlController.setCustomData(). It writes to a Storage (MongoDB or JE, see
+ * Storages). Crawlers only put PageRecords on a bounded queue, a fixed number
+ * of writer threads take them off and hand them to the stores in batches,
+ * so the parsing threads never wait on the database (unless the writers
+ * fall a whole queue behind).
+ */
+public class CrawlStore implements PageSink {
+	
+	private static final Logger logger = LoggerFactory.getLogger(CrawlStore.class);
+	
+	private static final int WRITE_BATCH_SIZE = 200;
+	private static final long WRITE_MAX_DELAY_MS = 5000;
+	private static final int QUEUE_CAPACITY = 4096;
+	
+	/** marks the end of the queue, a writer taking it puts it back for the next one */
+	private static final PageRecord END = new PageRecord(-1, null, null, null, null, 0, null);
+	
+	private final Storage storage;
+	private final boolean ownsStorage;
+	private final BlockingQueue<PageRecord> queue;
+	private final Thread[] writers;
+	
+	
+	/**
+	 * constructor class, opens the storage of the system properties (see Storages) and
+	 * starts the writer threads, the storage is closed by shutDown()
+	 * @param numOfWriters number of writer threads
+	 */
+	public CrawlStore(int numOfWriters) {
+		this(Storages.fromSystemProperties(), true, numOfWriters);
+	}
+	
+	
+	/**
+	 * constructor class, starts the writer threads, storage stays open after shutDown()
+	 * @param storage
+	 * @param numOfWriters number of writer threads
+	 */
+	public CrawlStore(Storage storage, int numOfWriters) {
+		this(storage, false, numOfWriters);
+	}
+	
+	
+	private CrawlStore(Storage storage, boolean ownsStorage, int numOfWriters) {
+		
+		this.storage = storage;
+		this.ownsStorage = ownsStorage;
+		
+		queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		writers = new Thread[numOfWriters];
+		for (int i = 0; i < numOfWriters; i++) {
+			writers[i] = new Thread(new Writer(), "CrawlStore-writer-" + i);
+			writers[i].start();
+		}
+		
+		logger.info("Successfully initialized CrawlStore with {} writer(s).", numOfWriters);
+	}
+	
+	
+	/**
+	 * Queue a visited page, called by the crawler threads.
+	 * Blocks only when the queue is full.
+	 * @param record
+	 */
+	@Override
+	public void submit(PageRecord record) {
+		try {
+			queue.put(record);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted, docId {} not saved.", record.docId);
+		}
+	}
+	
+	
+	/**
+	 * Write everything still queued, stop the writers and close the storage if it owns it.
+	 */
+	@Override
+	public void shutDown() {
+		
+		logger.info("Shutting down CrawlStore.");
+		
+		try {
+			queue.put(END);
+			for (Thread writer : writers) {
+				writer.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while waiting for the writers.");
+		}
+		
+		if (ownsStorage) {
+			storage.close();
+		}
+	}
+	
+	
+	/**
+	 * Drains the queue into its own batch, written to the stores when it holds
+	 * WRITE_BATCH_SIZE pages or its first page is WRITE_MAX_DELAY_MS old.
+	 */
+	private class Writer implements Runnable {
+		
+		private final List<PageRecord> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+		private final List<PageRecord> pending = new ArrayList<>(WRITE_BATCH_SIZE);
+		private long firstPendingTime;
+		
+		@Override
+		public void run() {
+			
+			boolean running = true;
+			while (running) {
+				
+				try {
+					PageRecord first = queue.poll(WRITE_MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+					if (first != null) {
+						batch.add(first);
+						queue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running = false;
+				}
+				
+				for (PageRecord record : batch) {
+					if (record == END) {
+						running = false;
+						continue;
+					}
+					if (pending.isEmpty()) {
+						firstPendingTime = System.currentTimeMillis();
+					}
+					pending.add(record);
+					if (pending.size() >= WRITE_BATCH_SIZE) {
+						flush();
+					}
+				}
+				batch.clear();
+				
+				if (!running) {
+					// drainTo() may hand it to one writer only
+					queue.offer(END);
+				}
+				if (!running || System.currentTimeMillis() - firstPendingTime >= WRITE_MAX_DELAY_MS) {
+					flush();
+				}
+			}
+		}
+		
+		
+		private void flush() {
+			
+			if (pending.isEmpty()) {
+				return;
+			}
+			
+			// each store on its own, a failed store does not keep the batch from the others
+			try {
+				storage.getDocumentStore().putAll(pending);
+			} catch (Exception e) {
+				logError("DocumentStore", e);
+			}
+			try {
+				storage.getLinkStore().putAll(pending);
+			} catch (Exception e) {
+				logError("LinkStore", e);
+			}
+			try {
+				storage.getUrlStore().putAll(pending);
+			} catch (Exception e) {
+				logError("UrlStore", e);
+			}
+			pending.clear();
+		}
+		
+		
+		private void logError(String store, Exception e) {
+			logger.error("Error while saving {} pages (docIds {} to {}) to the {}, {}", pending.size(), 
+					pending.get(0).docId, pending.get(pending.size() - 1).docId, store, e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+
+/**
+ * Drops the tokens longer than maxLength (base64 blobs, concatenated identifiers ...)
+ */
+public class LengthFilter implements TokenFilter {
+	
+	private final int maxLength;
+	
+	
+	public LengthFilter(int maxLength) {
+		this.maxLength = maxLength;
+	}
+	
+	
+	@Override
+	public int filter(char[] buffer, int length) {
+		return length > maxLength ? 0 : length;
+	}
+
+}
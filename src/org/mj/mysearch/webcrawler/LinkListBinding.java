@@ -0,0 +1,54 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.Arrays;
+
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+
+/**
+ * Binary outgoing link record of TextCrawlerBDB: packed int number of links, then the
+ * linked docIds in increasing order as packed gaps from the previous one (from 0 for
+ * the first). The docIds of the links of a page are close, the gaps take 1 or 2 bytes.
+ * 
+ * Duplicate docIds are dropped, records are read back sorted.
+ */
+public class LinkListBinding extends TupleBinding<int[]> {
+	
+	@Override
+	public int[] entryToObject(TupleInput input) {
+		
+		int[] linkDocIds = new int[input.readPackedInt()];
+		for (int k = 0, docId = 0; k < linkDocIds.length; k++) {
+			docId += input.readPackedInt();
+			linkDocIds[k] = docId;
+		}
+		return linkDocIds;
+	}
+	
+	
+	@Override
+	public void objectToEntry(int[] linkDocIds, TupleOutput output) {
+		
+		int[] sorted = linkDocIds.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int k = 0; k < sorted.length; k++) {
+			if (n == 0 || sorted[k] != sorted[n - 1]) {
+				sorted[n++] = sorted[k];
+			}
+		}
+		
+		output.writePackedInt(n);
+		for (int k = 0, previous = 0; k < n; k++) {
+			output.writePackedInt(sorted[k] - previous);
+			previous = sorted[k];
+		}
+	}
+
+}
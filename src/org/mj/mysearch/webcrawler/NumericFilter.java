@@ -0,0 +1,23 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+
+/**
+ * Drops the tokens made of digits only (page numbers, dates, counters ...)
+ */
+public class NumericFilter implements TokenFilter {
+	
+	@Override
+	public int filter(char[] buffer, int length) {
+		for (int i = 0; i < length; i++) {
+			if (!Character.isDigit(buffer[i])) {
+				return length;
+			}
+		}
+		return 0;
+	}
+
+}
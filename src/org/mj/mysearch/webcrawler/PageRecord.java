@@ -0,0 +1,40 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+
+/**
+ * Everything a crawler keeps of a visited page, handed to a PageSink (CrawlStore, StreamingIndexer).
+ * 
+ * words[k] appears counts[k] times in the page, linkDocIds are the docIds of the outgoing urls.
+ * docLength is the number of indexed tokens of the page, used for BM25 length normalization.
+ * positions[k] are the encoded token positions of words[k] (see TermCounter), null if not recorded.
+ */
+public class PageRecord {
+	
+	public final int docId;
+	public final String url;
+	public final String[] words;
+	public final int[] counts;
+	public final byte[][] positions;
+	public final int docLength;
+	public final int[] linkDocIds;
+	
+	
+	/**
+	 * constructor class
+	 */
+	public PageRecord(int docId, String url, String[] words, int[] counts, byte[][] positions, int docLength, 
+			int[] linkDocIds) {
+		this.docId = docId;
+		this.url = url;
+		this.words = words;
+		this.counts = counts;
+		this.positions = positions;
+		this.docLength = docLength;
+		this.linkDocIds = linkDocIds;
+	}
+
+}
@@ -0,0 +1,29 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+
+/**
+ * Where the crawlers hand their visited pages: the CrawlStore writes them to MongoDB,
+ * a StreamingIndexer (revindexer) indexes them in process.
+ * 
+ * Shared by all the crawler threads, see Controller.
+ */
+public interface PageSink {
+	
+	/**
+	 * Take a visited page, called by the crawler threads.
+	 * May block when the sink falls behind, to slow the crawlers down.
+	 * @param record
+	 */
+	void submit(PageRecord record);
+	
+	
+	/**
+	 * Process everything submitted, then release the resources.
+	 */
+	void shutDown();
+
+}
@@ -0,0 +1,41 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.Collection;
+
+
+/**
+ * Drops the tokens found in a stopword list, looked up straight from the char[] buffer.
+ */
+public class StopwordFilter implements TokenFilter {
+	
+	/** same short English list as Lucene's StandardAnalyzer */
+	public static final String[] ENGLISH_STOPWORDS = {
+		"a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is", "it", 
+		"no", "not", "of", "on", "or", "such", "that", "the", "their", "then", "there", "these", "they", 
+		"this", "to", "was", "will", "with"
+	};
+	
+	private final TermCounter stopwords = new TermCounter();
+	
+	
+	/**
+	 * constructor class
+	 * @param stopwords already normalized like the tokens (lower-cased ...)
+	 */
+	public StopwordFilter(Collection<String> stopwords) {
+		for (String stopword : stopwords) {
+			this.stopwords.add(stopword, 1);
+		}
+	}
+	
+	
+	@Override
+	public int filter(char[] buffer, int length) {
+		return stopwords.get(buffer, 0, length) > 0 ? 0 : length;
+	}
+
+}
@@ -0,0 +1,356 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.Arrays;
+
+
+/**
+ * Counts terms of a page in an open-addressing (linear probing) hash table
+ * of String keys and primitive int counts.
+ * 
+ * Terms are added straight from a char[] slice, the slice is hashed once
+ * and a String is only created the first time a term is seen in the page.
+ * Terms are kept in insertion order, so iterating and clear() cost the number
+ * of distinct terms, not the table capacity. Meant to be reused for every page
+ * of one crawler thread, not thread safe.
+ * 
+ * Built with recordPositions, addOccurrence() also keeps the token positions of
+ * every term, delta encoded from the previous position of the term (the first one
+ * from 0) as variable-byte ints: 7 bits per byte, low bits first, the high bit set
+ * on every byte but the last one.
+ */
+public class TermCounter {
+	
+	private static final int MAX_REUSED_CAPACITY = 1 << 16;
+	
+	private String[] keys;
+	private int[] counts;
+	private int[] slots;
+	private int size, mask;
+	
+	private final boolean recordPositions;
+	private byte[][] positions;
+	private int[] positionLengths;
+	private int[] lastPositions;
+	
+	
+	/**
+	 * constructor class
+	 */
+	public TermCounter() {
+		this(false);
+	}
+	
+	
+	/**
+	 * constructor class
+	 * @param recordPositions keep the positions given to addOccurrence()
+	 */
+	public TermCounter(boolean recordPositions) {
+		this.recordPositions = recordPositions;
+		allocate(1024);
+	}
+	
+	
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		counts = new int[capacity];
+		slots = new int[capacity / 2];
+		mask = capacity - 1;
+		size = 0;
+		if (recordPositions) {
+			positions = new byte[capacity][];
+			positionLengths = new int[capacity];
+			lastPositions = new int[capacity];
+		}
+	}
+	
+	
+	/**
+	 * Add one occurrence of the term buffer[offset, offset + length)
+	 */
+	public void add(char[] buffer, int offset, int length) {
+		add(buffer, offset, length, 1);
+	}
+	
+	
+	/**
+	 * Add count occurrences of the term buffer[offset, offset + length)
+	 */
+	public void add(char[] buffer, int offset, int length, int count) {
+		find(buffer, offset, length, count);
+	}
+	
+	
+	/**
+	 * Add one occurrence of the term buffer[offset, offset + length) at position,
+	 * positions of a term must be given in increasing order.
+	 */
+	public void addOccurrence(char[] buffer, int offset, int length, int position) {
+		
+		int slot = find(buffer, offset, length, 1);
+		if (!recordPositions) {
+			return;
+		}
+		
+		byte[] bytes = positions[slot];
+		int n = positionLengths[slot];
+		if (bytes == null) {
+			bytes = positions[slot] = new byte[8];
+		} else if (n + 5 > bytes.length) {
+			bytes = positions[slot] = Arrays.copyOf(bytes, Math.max(2 * bytes.length, n + 5));
+		}
+		int delta = position - lastPositions[slot];
+		while ((delta & ~0x7F) != 0) {
+			bytes[n++] = (byte) ((delta & 0x7F) | 0x80);
+			delta >>>= 7;
+		}
+		bytes[n++] = (byte) delta;
+		positionLengths[slot] = n;
+		lastPositions[slot] = position;
+	}
+	
+	
+	/**
+	 * Add count occurrences of the term buffer[offset, offset + length).
+	 * @return its slot
+	 */
+	private int find(char[] buffer, int offset, int length, int count) {
+		
+		// same hash as String.hashCode()
+		int hash = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+		
+		int slot = mix(hash) & mask;
+		String key;
+		while ((key = keys[slot]) != null) {
+			if (key.hashCode() == hash && equals(key, buffer, offset, length)) {
+				counts[slot] += count;
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		
+		keys[slot] = new String(buffer, offset, length);
+		counts[slot] = count;
+		slots[size++] = slot;
+		if (recordPositions) {
+			positionLengths[slot] = 0;
+			lastPositions[slot] = 0;
+		}
+		
+		if (size == slots.length) {
+			rehash();
+			return slots[size - 1];
+		}
+		return slot;
+	}
+	
+	
+	/**
+	 * Add count occurrences of term.
+	 */
+	public void add(String term, int count) {
+		char[] buffer = term.toCharArray();
+		add(buffer, 0, buffer.length, count);
+	}
+	
+	
+	private static boolean equals(String key, char[] buffer, int offset, int length) {
+		if (key.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key.charAt(i) != buffer[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	
+	/**
+	 * Double the table, keeping the insertion order.
+	 */
+	private void rehash() {
+		
+		String[] oldKeys = keys;
+		int[] oldCounts = counts;
+		int[] oldSlots = slots;
+		int oldSize = size;
+		byte[][] oldPositions = positions;
+		int[] oldPositionLengths = positionLengths;
+		int[] oldLastPositions = lastPositions;
+		
+		allocate(2 * oldKeys.length);
+		
+		for (int k = 0; k < oldSize; k++) {
+			String key = oldKeys[oldSlots[k]];
+			int slot = mix(key.hashCode()) & mask;
+			while (keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			counts[slot] = oldCounts[oldSlots[k]];
+			slots[size++] = slot;
+			if (recordPositions) {
+				positions[slot] = oldPositions[oldSlots[k]];
+				positionLengths[slot] = oldPositionLengths[oldSlots[k]];
+				lastPositions[slot] = oldLastPositions[oldSlots[k]];
+			}
+		}
+	}
+	
+	
+	/**
+	 * Forget all terms, keeps the table unless a huge page made it grow too much.
+	 */
+	public void clear() {
+		if (keys.length > MAX_REUSED_CAPACITY) {
+			allocate(1024);
+			return;
+		}
+		for (int k = 0; k < size; k++) {
+			keys[slots[k]] = null;
+		}
+		size = 0;
+	}
+	
+	
+	/**
+	 * Number of distinct terms
+	 */
+	public int size() {
+		return size;
+	}
+	
+	
+	/**
+	 * @param k 0 based, in insertion order
+	 */
+	public String termAt(int k) {
+		return keys[slots[k]];
+	}
+	
+	
+	/**
+	 * @param k 0 based, in insertion order
+	 */
+	public int countAt(int k) {
+		return counts[slots[k]];
+	}
+	
+	
+	/**
+	 * Encoded positions of term k, see the class comment
+	 * @param k 0 based, in insertion order
+	 * @return a new array, empty when the positions are not recorded
+	 */
+	public byte[] positionsAt(int k) {
+		if (!recordPositions || positions[slots[k]] == null) {
+			return new byte[0];
+		}
+		return Arrays.copyOf(positions[slots[k]], positionLengths[slots[k]]);
+	}
+	
+	
+	/**
+	 * Encoded positions of all the terms in insertion order, see positionsAt()
+	 */
+	public byte[][] positions() {
+		byte[][] result = new byte[size][];
+		for (int k = 0; k < size; k++) {
+			result[k] = positionsAt(k);
+		}
+		return result;
+	}
+	
+	
+	/**
+	 * Count of the term buffer[offset, offset + length), 0 if absent
+	 */
+	public int get(char[] buffer, int offset, int length) {
+		int hash = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+		int slot = mix(hash) & mask;
+		String key;
+		while ((key = keys[slot]) != null) {
+			if (key.hashCode() == hash && equals(key, buffer, offset, length)) {
+				return counts[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+	
+	
+	/**
+	 * Count of term, 0 if absent
+	 */
+	public int get(String term) {
+		int hash = term.hashCode();
+		int slot = mix(hash) & mask;
+		String key;
+		while ((key = keys[slot]) != null) {
+			if (key.hashCode() == hash && key.equals(term)) {
+				return counts[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+	
+	
+	/**
+	 * Terms in insertion order, a new array
+	 */
+	public String[] terms() {
+		String[] terms = new String[size];
+		for (int k = 0; k < size; k++) {
+			terms[k] = keys[slots[k]];
+		}
+		return terms;
+	}
+	
+	
+	/**
+	 * Counts in insertion order, a new array
+	 */
+	public int[] counts() {
+		int[] result = new int[size];
+		for (int k = 0; k < size; k++) {
+			result[k] = counts[slots[k]];
+		}
+		return result;
+	}
+	
+	
+	/**
+	 * Same format as HashMap.toString(): {term1=count1, term2=count2}
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(16 * size + 2).append('{');
+		for (int k = 0; k < size; k++) {
+			if (k > 0) {
+				sb.append(", ");
+			}
+			sb.append(keys[slots[k]]).append('=').append(counts[slots[k]]);
+		}
+		return sb.append('}').toString();
+	}
+
+}
@@ -0,0 +1,45 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+
+/**
+ * The terms of a page as ids of a BdbTermDictionary with their counts, the value
+ * of a TextCrawlerBDB index record (see TermVectorBinding).
+ * 
+ * termIds[k] appears counts[k] times in the page, for k < size.
+ */
+public class TermVector {
+	
+	public final int[] termIds;
+	public final int[] counts;
+	public final int size;
+	
+	
+	/**
+	 * constructor class
+	 * @param termIds distinct term ids, in any order
+	 * @param counts
+	 * @param size
+	 */
+	public TermVector(int[] termIds, int[] counts, int size) {
+		this.termIds = termIds;
+		this.counts = counts;
+		this.size = size;
+	}
+	
+	
+	/**
+	 * Number of tokens of the page
+	 */
+	public int length() {
+		int length = 0;
+		for (int k = 0; k < size; k++) {
+			length += counts[k];
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,58 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.Arrays;
+
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+
+/**
+ * Binary TermVector record: packed int size, then per term in increasing id order
+ * the packed gap from the previous id (from 0 for the first) and the packed count.
+ * 
+ * A packed int takes 1 byte up to 119, most gaps and counts fit in one byte each.
+ * Records are read back with their term ids sorted.
+ */
+public class TermVectorBinding extends TupleBinding<TermVector> {
+	
+	@Override
+	public TermVector entryToObject(TupleInput input) {
+		
+		int size = input.readPackedInt();
+		int[] termIds = new int[size];
+		int[] counts = new int[size];
+		for (int k = 0, termId = 0; k < size; k++) {
+			termId += input.readPackedInt();
+			termIds[k] = termId;
+			counts[k] = input.readPackedInt();
+		}
+		return new TermVector(termIds, counts, size);
+	}
+	
+	
+	@Override
+	public void objectToEntry(TermVector vector, TupleOutput output) {
+		
+		// sorted by id, the count following its id
+		long[] packed = new long[vector.size];
+		for (int k = 0; k < vector.size; k++) {
+			packed[k] = ((long) vector.termIds[k] << 32) | (vector.counts[k] & 0xffffffffL);
+		}
+		Arrays.sort(packed);
+		
+		output.writePackedInt(vector.size);
+		int previous = 0;
+		for (long entry : packed) {
+			int termId = (int) (entry >>> 32);
+			output.writePackedInt(termId - previous);
+			output.writePackedInt((int) entry);
+			previous = termId;
+		}
+	}
+
+}
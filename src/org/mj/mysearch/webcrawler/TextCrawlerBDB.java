@@ -3,23 +3,14 @@ package org.mj.mysearch.webcrawler;
 
 import java.io.FileNotFoundException;
 import java.util.regex.Pattern;
+import java.util.Arrays;
 import java.util.Set;
-import java.util.HashMap;
 import java.util.HashSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-import com.sleepycat.je.Cursor;
-import com.sleepycat.je.Database;
-import com.sleepycat.je.DatabaseConfig;
-import com.sleepycat.je.Cursor;
-import com.sleepycat.je.DatabaseEntry;
-import com.sleepycat.je.Environment;
-import com.sleepycat.je.EnvironmentConfig;
-import com.sleepycat.je.OperationStatus;
-import com.sleepycat.je.Transaction;
 import com.sleepycat.je.DatabaseException;
 
 
@@ -43,18 +34,21 @@ public class TextCrawlerBDB extends WebCrawler {
 	
 	private static final Pattern IMAGE_EXTENSIONS = Pattern.compile(".*\\.(bmp|gif|jpg|png)$");
 	
-	private static final String INDEX_DB_NAME = "WebCrawlerIndexDB";
-	private static final String URL_DB_NAME = "OutgoingUrlDB";
+	// binary records (see TermVectorBinding and LinkListBinding) keyed by docId as a big endian int,
+	// new names so that the databases of the former text records are never misread
+	static final String INDEX_DB_NAME = "DocId_TermVector";
+	static final String URL_DB_NAME = "DocId_LinkDocIds";
 	
 	private boolean resumable;
-	private DatabaseConfig dbConfig;
-	private Environment indexDBEnv, outgoingDBEnv;
-	private Database indexDB, outgoingUrlDB;
-	//private Transaction txnIndexDB,txnOutgoingUrlDB;
+	private BdbCrawlWriter writer;
+	private BdbTermDictionary termDictionary;
 
 	String indexDBPath, outgoingDBPath;
 	
-	protected final Object mutex = new Object();
+	// reused for every page of this crawler thread
+	private final Analyzer analyzer = Analyzer.fromSystemProperties();
+	private final TermCounter termCounter = new TermCounter();
+	
 	/*
 	 * (non-Javadoc)
 	 * @see edu.uci.ics.crawler4j.crawler.WebCrawler#onStart()
@@ -62,30 +56,19 @@ public class TextCrawlerBDB extends WebCrawler {
 	@Override
 	public void onStart() {
 		
-		resumable = true;
-		indexDBPath = "D:\\workspace\\java\\WebCrawler\\tmp\\indexDB";
-		outgoingDBPath = "D:\\workspace\\java\\WebCrawler\\tmp\\outgoingDB";
+		// the frontier of a resumable crawl must never be ahead of the databases, see BdbCrawlWriter
+		resumable = getMyController().getConfig().isResumableCrawling();
+		String crawlStorageFolder = getMyController().getConfig().getCrawlStorageFolder();
+		indexDBPath = new File(crawlStorageFolder, "indexDB").getPath();
+		outgoingDBPath = new File(crawlStorageFolder, "outgoingDB").getPath();
 		
 		try {
 			
-			EnvironmentConfig envConfig = new EnvironmentConfig();
-			envConfig.setAllowCreate(true);
-			envConfig.setTransactional(true);
-			indexDBEnv = new Environment(new File(indexDBPath), envConfig);
-			outgoingDBEnv = new Environment(new File(outgoingDBPath), envConfig);
-			
-			
-			dbConfig = new DatabaseConfig();
-			dbConfig.setAllowCreate(true);
-			dbConfig.setTransactional(resumable);
-			dbConfig.setDeferredWrite(!resumable);
-			
-			indexDB = indexDBEnv.openDatabase(null, INDEX_DB_NAME, dbConfig);
-			outgoingUrlDB = outgoingDBEnv.openDatabase(null, URL_DB_NAME, dbConfig);
+			// one writer and group commits for all the crawlers of the process
+			writer = BdbCrawlWriter.acquire(new File(indexDBPath), new File(outgoingDBPath), resumable);
+			termDictionary = writer.newTermDictionary();
 			
 			logger.info("Successfully initialized two databases.");
-			//txnIndexDB = indexDBEnv.beginTransaction(null, null);
-			//txnOutgoingUrlDB = outgoingDBEnv.beginTransaction(null, null);
 			
 		} catch (DatabaseException dbe) {
 			shutDown();
@@ -107,34 +90,17 @@ public class TextCrawlerBDB extends WebCrawler {
 	 */
 	public void shutDown() {
 		try {
-			if (indexDB != null) {
-				indexDB.close();
+			if (termDictionary != null) {
+				termDictionary.close();
 			}
 		} catch (DatabaseException dbe) {
-			logger.error("Error while shutting down the index database.");
+			logger.error("Error while shutting down the term dictionary.");
 			dbe.printStackTrace();
 		}
 		
-		try {
-			if (outgoingUrlDB != null) {
-				outgoingUrlDB.close();
-			}
-		} catch (DatabaseException dbe) {
-			logger.error("Error while shutting down the outgoingUrl database.");
-			dbe.printStackTrace();
-		}
-		
-		try {
-			if (indexDBEnv != null) {
-				indexDBEnv.close();
-			}
-			if (outgoingDBEnv != null) {
-				outgoingDBEnv.close();
-			}
-			
-			
-		} catch (DatabaseException dbe) {
-			dbe.printStackTrace();
+		if (writer != null) {
+			writer.release();
+			writer = null;
 		}
 	}
 	
@@ -159,15 +125,13 @@ public class TextCrawlerBDB extends WebCrawler {
 		 * 
 		 * Index
 		 * sleepycat db
-		 * k = docId, v = HashMap<String, Integer>, where String as word, Integer as count
+		 * k = docId, v = TermVector, the term ids (see BdbTermDictionary) and their counts
 		 * 
 		 * Link
 		 * sleepycat db
-		 * k = docId, v = HashSet<String>, String as docId of the outgoing urls. 
+		 * k = docId, v = int[], the docIds of the outgoing urls. 
 		 * */
 		
-		HashMap<String, Integer> wordCountMap = new HashMap<>();
-		
 		int docid = page.getWebURL().getDocid();
 		String url = page.getWebURL().getURL();
 		
@@ -180,52 +144,30 @@ public class TextCrawlerBDB extends WebCrawler {
 			
 			logger.info("URL: {}", url);
 			
-			String[] words = text.split(" ");
-			for (int i = 0; i < words.length; i++) {
-				// TO-DO skip nonsense words
-				if (!wordCountMap.containsKey(words[i])) {
-					wordCountMap.put(words[i], 1);
-				} else {
-					wordCountMap.put(words[i], wordCountMap.get(words[i])+1);
-				}	
-			}
+			// stopwords, numbers, over-long tokens are dropped, terms are stemmed, see Analyzer
+			termCounter.clear();
+			analyzer.analyze(text, termCounter);
 			
-			synchronized(mutex) {
-				try {
-					Transaction txnIndexDB = indexDBEnv.beginTransaction(null, null);
-					DatabaseEntry key = new DatabaseEntry(Integer.toString(docid).getBytes());
-					DatabaseEntry valueIndexDB = new DatabaseEntry(wordCountMap.toString().getBytes());
-					//logger.info("{},{}", Integer.toString(docid), wordCountMap.toString());
-					indexDB.put(txnIndexDB, key, valueIndexDB);
-					txnIndexDB.commit();
-					
-				} catch (DatabaseException e) {
-					logger.error("Error while working with indexDB, {}", e.getMessage());
-					throw e;
-				}
+			int[] termIds = new int[termCounter.size()];
+			for (int k = 0; k < termIds.length; k++) {
+				termIds[k] = termDictionary.id(termCounter.termAt(k));
 			}
 			
-			
-			
-			
+			int[] linkDocIds = new int[links.size()];
+			int numOfLinks = 0;
 			for (WebURL outgoingUrl : links) {
-				linkDocId.add(outgoingUrl.getDocid());
+				if (linkDocId.add(outgoingUrl.getDocid())) {
+					linkDocIds[numOfLinks++] = outgoingUrl.getDocid();
+				}
 			}
 			
 			
-			synchronized(mutex) {
-				try {
-					
-					DatabaseEntry key2 = new DatabaseEntry(Integer.toString(docid).getBytes());
-					Transaction txnOutgoingUrlDB = outgoingDBEnv.beginTransaction(null, null);
-					DatabaseEntry valueOutgoingUrlDB = new DatabaseEntry(linkDocId.toString().getBytes());
-					//logger.info("{},{}", Integer.toString(docid), linkDocId.toString());
-					outgoingUrlDB.put(txnOutgoingUrlDB, key2, valueOutgoingUrlDB);
-					txnOutgoingUrlDB.commit();
-				} catch (DatabaseException e) {
-					logger.error("Error while working with outgoingDB, {}", e.getMessage());
-					throw e;
-				}
+			try {
+				writer.write(docid, new TermVector(termIds, Arrays.copyOf(termCounter.counts(), termIds.length), termIds.length), 
+						Arrays.copyOf(linkDocIds, numOfLinks));
+			} catch (DatabaseException e) {
+				logger.error("Error while saving docId {}, {}", docid, e.getMessage());
+				throw e;
 			}
 			
 			
@@ -19,9 +19,7 @@ package org.mj.mysearch.webcrawler;
 
 import java.util.regex.Pattern;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.Set;
-import java.util.HashMap;
 import java.util.HashSet;
 
 
@@ -29,13 +27,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
-
-import org.bson.Document;
-
-
-
 import edu.uci.ics.crawler4j.crawler.Page;
 import edu.uci.ics.crawler4j.crawler.WebCrawler;
 import edu.uci.ics.crawler4j.parser.HtmlParseData;
@@ -55,40 +46,28 @@ public class TextCrawlerMongoDB extends WebCrawler {
 	
 	private static final Pattern IMAGE_EXTENSIONS = Pattern.compile(".*\\.(bmp|gif|jpg|png)$");
 	
-	private static final String INDEX_DB_NAME = "WebCrawlerIndexDB";
-	private static final String URL_DB_NAME = "OutgoingUrlDB";
-	private static final String DOC_DB_NAME = "DocUrlDB";
+	private PageSink pageSink;
+	private boolean ownsPageSink;
 	
-	private MongoClient mongoClient;
-	private MongoDatabase indexDB, outgoingUrlDB, docIdUrlDB;
-
+	// reused for every page of this crawler thread
+	private final Analyzer analyzer = Analyzer.fromSystemProperties();
+	private final TermCounter termCounter = new TermCounter(true);
 	
-	protected final Object mutex = new Object();
 	/*
 	 * (non-Javadoc)
 	 * @see edu.uci.ics.crawler4j.crawler.WebCrawler#onStart()
 	 */
 	@Override
-	// TO-DO add index
 	public void onStart() {
 		
-		
-		try {
-			
-			mongoClient = new MongoClient();
-			indexDB = mongoClient.getDatabase(INDEX_DB_NAME);
-			outgoingUrlDB = mongoClient.getDatabase(URL_DB_NAME);
-			docIdUrlDB = mongoClient.getDatabase(DOC_DB_NAME);
-			
-			logger.info("Successfully initialized two databases.");
-			//txnIndexDB = indexDBEnv.beginTransaction(null, null);
-			//txnOutgoingUrlDB = outgoingDBEnv.beginTransaction(null, null);
-			
-		} catch (Exception dbe) {
-			shutDown();
-			logger.error("Error while openining index or outgoingUrlDB database.");
-			dbe.printStackTrace();			
-			
+		// shared by all the crawlers, see Controller
+		Object customData = getMyController().getCustomData();
+		if (customData instanceof PageSink) {
+			pageSink = (PageSink) customData;
+		} else {
+			logger.warn("No shared PageSink set on the CrawlController, crawler {} opens its own CrawlStore.", getMyId());
+			pageSink = new CrawlStore(1);
+			ownsPageSink = true;
 		}
 	}
 	
@@ -96,19 +75,8 @@ public class TextCrawlerMongoDB extends WebCrawler {
 	@Override
 	public void onBeforeExit() {
 		logger.info("Finishing.");
-		shutDown();
-	}
-	
-	/*
-	 * 
-	 */
-	public void shutDown() {
-		try {
-			mongoClient.close();
-			
-		} catch (Exception e) {
-			logger.error("Error while shutting down MongoDB Client.");
-			e.printStackTrace();
+		if (ownsPageSink) {
+			pageSink.shutDown();
 		}
 	}
 	
@@ -133,8 +101,6 @@ public class TextCrawlerMongoDB extends WebCrawler {
 		 * 
 		 * */
 		
-		HashMap<String, Integer> wordCountMap = new HashMap<>();
-		
 		int docid = page.getWebURL().getDocid();
 		String url = page.getWebURL().getURL();
 		
@@ -147,77 +113,28 @@ public class TextCrawlerMongoDB extends WebCrawler {
 			
 			logger.info("URL: {}", url);
 			
-			String[] words = text.split("\\W");
-			for (int i = 0; i < words.length; i++) {
-				// TO-DO skip nonsense words
-				String word = words[i];
-				if (word.endsWith(".")) {
-					word = word.substring(0, word.length()-1);
-				}
-				if (!wordCountMap.containsKey(word)) {
-					wordCountMap.put(word, 1);
-				} else {
-					wordCountMap.put(word, wordCountMap.get(word)+1);
-				}	
-			}
-			
+			// stopwords, numbers, over-long tokens are dropped, terms are stemmed, see Analyzer,
+			// the token positions of every term are kept for the phrase queries
+			termCounter.clear();
+			analyzer.analyze(text, termCounter);
 			
-			// Index DB dump
-			synchronized(mutex) {
-				try {
-					
-					indexDB.getCollection("DocId_WordCount").insertOne(new Document().append("doc_id", docid)
-							.append("word_count", Arrays.asList()));
-					for (Map.Entry<String, Integer> entry : wordCountMap.entrySet()) {
-						indexDB.getCollection("DocId_WordCount").updateOne(new Document("doc_id", docid), 
-								new Document("$push", new Document("word_count", new Document(entry.getKey(), entry.getValue()))));
-					}
-							
-					
-				} catch (Exception e) {
-					logger.error("Error while working with indexDB, {}", e.getMessage());
-					throw e;
-				}
+			int[] counts = termCounter.counts();
+			int docLength = 0;
+			for (int count : counts) {
+				docLength += count;
 			}
 			
-			
-			
-			
+			int[] linkDocIds = new int[links.size()];
+			int numOfLinks = 0;
 			for (WebURL outgoingUrl : links) {
-				linkDocId.add(outgoingUrl.getDocid());
-			}
-			
-			
-			// outgoing Url DB dump
-			synchronized(mutex) {
-				try {
-					
-					outgoingUrlDB.getCollection("DocId_LinkDocId").insertOne(new Document().append("doc_id", docid)
-							.append("link_docId", Arrays.asList()));
-					for (int url_item : linkDocId) {
-						outgoingUrlDB.getCollection("DocId_LinkDocId").updateOne(new Document("doc_id", docid),
-								new Document("$push", new Document("link_docId", url_item)));
-					}
-					
-				} catch (Exception e) {
-					logger.error("Error while working with outgoingDB, {}", e.getMessage());
-					throw e;
+				if (linkDocId.add(outgoingUrl.getDocid())) {
+					linkDocIds[numOfLinks++] = outgoingUrl.getDocid();
 				}
 			}
 			
-			
-			// docId DB dump
-			synchronized(mutex) {
-				try {
-					
-					docIdUrlDB.getCollection("DocId_Url").insertOne(new Document().append("doc_id", docid)
-							.append("url", url));
-					
-				} catch (Exception e) {
-					logger.error("Error while working with docIdUrlDB, {}", e.getMessage());
-					throw e;
-				}
-			}
+			// handed to the writer threads of the CrawlStore, or to the StreamingIndexer
+			pageSink.submit(new PageRecord(docid, url, termCounter.terms(), counts, termCounter.positions(), docLength,
+					Arrays.copyOf(linkDocIds, numOfLinks)));
 			
 			
 		}
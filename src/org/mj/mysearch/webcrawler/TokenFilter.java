@@ -0,0 +1,20 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+
+/**
+ * One step of the Analyzer chain, works in place on the token characters.
+ */
+public interface TokenFilter {
+	
+	/**
+	 * @param buffer token characters, may be rewritten in place
+	 * @param length token length
+	 * @return new token length, 0 to drop the token
+	 */
+	int filter(char[] buffer, int length);
+
+}
@@ -0,0 +1,117 @@
+/**
+ * @author Jun
+ */
+
+package org.mj.mysearch.webcrawler;
+
+import java.util.Arrays;
+
+
+/**
+ * Splits a text into (by default lower-cased) tokens of letters and digits.
+ * 
+ * Scans the characters directly instead of String.split(), no regex and no
+ * String[] per page. The current token is kept in a reused char[] buffer,
+ * empty tokens are never returned. One instance per crawler thread:
+ * 
+ *   tokenizer.reset(text);
+ *   while (tokenizer.next()) {
+ *       termCounter.add(tokenizer.buffer(), 0, tokenizer.length());
+ *   }
+ */
+public class Tokenizer {
+	
+	/** lower-cased ASCII letters and digits, 0 for the other ASCII characters */
+	private static final char[] ASCII = new char[128];
+	static {
+		for (char c = 0; c < 128; c++) {
+			ASCII[c] = Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+		}
+	}
+	
+	private CharSequence text;
+	private int position, textLength;
+	
+	private char[] buffer = new char[64];
+	private int length;
+	
+	private boolean lowerCase = true;
+	
+	
+	/**
+	 * @param lowerCase lower-case the tokens, true by default
+	 */
+	public void setLowerCase(boolean lowerCase) {
+		this.lowerCase = lowerCase;
+	}
+	
+	
+	/**
+	 * Start tokenizing a new text.
+	 * @param text
+	 */
+	public void reset(CharSequence text) {
+		this.text = text;
+		this.textLength = text.length();
+		this.position = 0;
+		this.length = 0;
+	}
+	
+	
+	/**
+	 * Move to the next token.
+	 * @return false at the end of the text
+	 */
+	public boolean next() {
+		
+		length = 0;
+		
+		while (position < textLength && normalize(text.charAt(position)) == 0) {
+			position++;
+		}
+		
+		char c;
+		while (position < textLength && (c = normalize(text.charAt(position))) != 0) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, 2 * length);
+			}
+			buffer[length++] = lowerCase ? c : text.charAt(position);
+			position++;
+		}
+		
+		return length > 0;
+	}
+	
+	
+	/**
+	 * @return c lower-cased if it is a letter or a digit, 0 otherwise
+	 */
+	private static char normalize(char c) {
+		if (c < 128) {
+			return ASCII[c];
+		}
+		return Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+	}
+	
+	
+	/**
+	 * Characters of the current token, valid up to length() and until the next call to next()
+	 */
+	public char[] buffer() {
+		return buffer;
+	}
+	
+	
+	public int length() {
+		return length;
+	}
+	
+	
+	/**
+	 * @return the current token as a new String
+	 */
+	public String term() {
+		return new String(buffer, 0, length);
+	}
+
+}